@@ -0,0 +1,61 @@
+package ca.on.oicr.pde.coverage;
+
+/**
+ * Base counts for a run of bins on one chromosome, sorted by start. Each read
+ * adds the number of reference bases its alignment spans inside each bin,
+ * which is what samtools bedcov sums position by position: matches, deletions
+ * and reference skips all count, soft clips and insertions do not.
+ */
+final class BinCounter {
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnds;
+    private final long[] counts;
+
+    /**
+     * @param starts 0-based bin starts, non-decreasing
+     * @param ends bin ends, exclusive
+     */
+    BinCounter(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        this.maxEnds = new int[ends.length];
+        this.counts = new long[starts.length];
+        int maxEnd = Integer.MIN_VALUE;
+        for (int i = 0; i < ends.length; i++) {
+            if (i > 0 && starts[i] < starts[i - 1]) {
+                throw new IllegalArgumentException("Bins are not sorted by start");
+            }
+            maxEnd = Math.max(maxEnd, ends[i]);
+            maxEnds[i] = maxEnd;
+        }
+    }
+
+    /**
+     * Add a read covering reference positions [start, end).
+     */
+    void add(int start, int end) {
+        // first bin that can reach the read; bins may overlap, so search the running maximum of the ends
+        int lo = 0;
+        int hi = maxEnds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxEnds[mid] <= start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < starts.length && starts[i] < end; i++) {
+            int overlap = Math.min(ends[i], end) - Math.max(starts[i], start);
+            if (overlap > 0) {
+                counts[i] += overlap;
+            }
+        }
+    }
+
+    long[] getCounts() {
+        return counts;
+    }
+}
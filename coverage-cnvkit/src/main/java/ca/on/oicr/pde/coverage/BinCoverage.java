@@ -0,0 +1,299 @@
+package ca.on.oicr.pde.coverage;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Target and antitarget coverage for cnvkit, a drop-in for
+ * {@code cnvkit.py coverage <bam> <bed> -o <out.cnn>}.
+ *
+ * <pre>
+ * BinCoverage [-p threads] [-q min-mapq] [--chunk-size bins] &lt;bam&gt; &lt;bed&gt; -o &lt;out.cnn&gt;
+ * </pre>
+ *
+ * Bins are split into chunks of consecutive bins on one chromosome. Each
+ * chunk is a single indexed query over its span, so a thread only reads the
+ * BAM blocks for its own region, and every read is added to all the bins it
+ * overlaps in one pass. Counting follows samtools bedcov as cnvkit 0.9.3 runs
+ * it: unmapped, secondary, QC-failed and duplicate reads and reads below the
+ * minimum mapping quality are skipped, and overlapping mates both count.
+ * samtools' pileup depth cap (8000 reads per position) is not applied.
+ *
+ * The output has cnvkit's columns: chromosome, start, end, gene, mean depth
+ * and log2 depth, with -20 for bins without coverage, in BED order.
+ */
+public class BinCoverage {
+
+    private static final double NULL_LOG2_COVERAGE = -20.0;
+    private static final String HEADER = "chromosome\tstart\tend\tgene\tdepth\tlog2";
+
+    private final File bam;
+    private final int threads;
+    private final int minMapq;
+    private final int chunkSize;
+
+    public BinCoverage(File bam, int threads, int minMapq, int chunkSize) {
+        this.bam = bam;
+        this.threads = threads;
+        this.minMapq = minMapq;
+        this.chunkSize = chunkSize;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = 1;
+        int minMapq = 0;
+        int chunkSize = 1000;
+        List<String> files = new ArrayList<String>();
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-q") && i + 1 < args.length) {
+                minMapq = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--chunk-size") && i + 1 < args.length) {
+                chunkSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() != 2 || output == null || threads < 1 || chunkSize < 1) {
+            System.err.println("Usage: BinCoverage [-p threads] [-q min-mapq] [--chunk-size bins] <bam> <bed> -o <out.cnn>");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        List<Region> regions = new BinCoverage(new File(files.get(0)), threads, minMapq, chunkSize)
+                .run(new File(files.get(1)), new File(output));
+        System.err.println("Wrote " + regions.size() + " bins to " + output + " in "
+                + (System.currentTimeMillis() - start) / 1000.0 + " s");
+    }
+
+    /**
+     * Count coverage for the bins in a BED file and write the .cnn.
+     */
+    public List<Region> run(File bed, File out) throws IOException, InterruptedException {
+        List<Region> regions = readBed(bed);
+        ensureIndex();
+        final Queue<SamReader> readers = new ConcurrentLinkedQueue<SamReader>();
+        final ThreadLocal<SamReader> reader = new ThreadLocal<SamReader>() {
+            @Override
+            protected SamReader initialValue() {
+                SamReader r = open(bam);
+                readers.add(r);
+                return r;
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> counts = new ArrayList<Future<long[]>>();
+            for (final List<Region> chunk : chunk(regions)) {
+                counts.add(pool.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        return count(reader.get(), chunk);
+                    }
+                }));
+            }
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8));
+            try {
+                w.write(HEADER + "\n");
+                int i = 0;
+                for (Future<long[]> f : counts) {
+                    for (long basecount : f.get()) {
+                        w.write(row(regions.get(i++), basecount));
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Coverage failed for " + bam, e.getCause());
+            } finally {
+                w.close();
+            }
+        } finally {
+            pool.shutdownNow();
+            for (SamReader r : readers) {
+                r.close();
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Runs of consecutive bins on one chromosome, in increasing start order,
+     * of at most chunkSize bins.
+     */
+    List<List<Region>> chunk(List<Region> regions) {
+        List<List<Region>> chunks = new ArrayList<List<Region>>();
+        List<Region> current = new ArrayList<Region>();
+        for (Region r : regions) {
+            if (!current.isEmpty()) {
+                Region last = current.get(current.size() - 1);
+                if (current.size() == chunkSize || !last.chromosome.equals(r.chromosome) || r.start < last.start) {
+                    chunks.add(current);
+                    current = new ArrayList<Region>();
+                }
+            }
+            current.add(r);
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private long[] count(SamReader reader, List<Region> chunk) {
+        int[] starts = new int[chunk.size()];
+        int[] ends = new int[chunk.size()];
+        int queryEnd = 0;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = chunk.get(i).start;
+            ends[i] = chunk.get(i).end;
+            queryEnd = Math.max(queryEnd, ends[i]);
+        }
+        BinCounter counter = new BinCounter(starts, ends);
+        if (queryEnd <= starts[0]) {
+            return counter.getCounts();
+        }
+        SAMRecordIterator it = reader.queryOverlapping(chunk.get(0).chromosome, starts[0] + 1, queryEnd);
+        try {
+            while (it.hasNext()) {
+                SAMRecord rec = it.next();
+                if (rec.getReadUnmappedFlag() || rec.isSecondaryAlignment() || rec.getReadFailsVendorQualityCheckFlag()
+                        || rec.getDuplicateReadFlag() || rec.getMappingQuality() < minMapq) {
+                    continue;
+                }
+                counter.add(rec.getAlignmentStart() - 1, rec.getAlignmentEnd());
+            }
+        } finally {
+            it.close();
+        }
+        return counter.getCounts();
+    }
+
+    /**
+     * cnvkit indexes the BAM itself when there is no index, do the same. The
+     * scattered coverage jobs of one BAM may all find it missing, so each
+     * writes its own temporary index and moves it into place: a job that
+     * opens the BAM meanwhile sees no index or a whole one.
+     */
+    private void ensureIndex() throws IOException {
+        SamReader reader = open(bam);
+        try {
+            if (reader.hasIndex()) {
+                return;
+            }
+        } finally {
+            reader.close();
+        }
+        File bai = new File(bam.getPath() + ".bai");
+        System.err.println("Indexing " + bam + " to " + bai);
+        reader = SamReaderFactory.makeDefault()
+                .validationStringency(ValidationStringency.SILENT)
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .open(bam);
+        File tmp = File.createTempFile(bai.getName() + ".", ".tmp", bai.getAbsoluteFile().getParentFile());
+        try {
+            try {
+                BAMIndexer.createIndex(reader, tmp);
+            } finally {
+                reader.close();
+            }
+            Files.move(tmp.toPath(), bai.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static SamReader open(File bam) {
+        return SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam);
+    }
+
+    static List<Region> readBed(File bed) throws IOException {
+        List<Region> regions = new ArrayList<Region>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(bed), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+                    continue;
+                }
+                String[] f = line.split("\t", -1);
+                if (f.length < 3) {
+                    throw new IOException("Malformed line in " + bed + ": " + line);
+                }
+                regions.add(new Region(f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2]), f.length > 3 ? f[3] : "-"));
+            }
+        } finally {
+            in.close();
+        }
+        return regions;
+    }
+
+    static String row(Region r, long basecount) {
+        int span = r.end - r.start;
+        double depth = span > 0 ? (double) basecount / span : 0;
+        double log2 = depth > 0 ? Math.log(depth) / Math.log(2) : NULL_LOG2_COVERAGE;
+        return r.chromosome + "\t" + r.start + "\t" + r.end + "\t" + r.gene + "\t" + format(depth) + "\t" + format(log2) + "\n";
+    }
+
+    /**
+     * Python's "%.6g", which cnvkit writes its tables with.
+     */
+    static String format(double value) {
+        if (value == 0) {
+            return "0";
+        }
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(6, RoundingMode.HALF_EVEN));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= 6) {
+            String digits = rounded.unscaledValue().abs().toString().replaceFirst("0+$", "");
+            return (rounded.signum() < 0 ? "-" : "") + digits.charAt(0)
+                    + (digits.length() > 1 ? "." + digits.substring(1) : "")
+                    + (exponent < 0 ? "e-" : "e+") + String.format("%02d", Math.abs(exponent));
+        }
+        return rounded.stripTrailingZeros().toPlainString();
+    }
+
+    static class Region {
+
+        final String chromosome;
+        final int start;
+        final int end;
+        final String gene;
+
+        Region(String chromosome, int start, int end, String gene) {
+            this.chromosome = chromosome;
+            this.start = start;
+            this.end = end;
+            this.gene = gene;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ca.on.oicr.pde.coverage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+
+public class BinCoverageTest {
+
+    @org.testng.annotations.Test
+    public void countsBasesInsideEachBin() {
+        BinCounter counter = new BinCounter(new int[]{100, 200, 250}, new int[]{200, 300, 260});
+        counter.add(50, 150);   // 50 bases in the first bin
+        counter.add(190, 255);  // spans the first two bins and part of the nested one
+        counter.add(300, 400);  // after every bin
+        counter.add(0, 100);    // ends where the first bin starts
+        Assert.assertArrayEquals(new long[]{60, 55, 5}, counter.getCounts());
+    }
+
+    @org.testng.annotations.Test
+    public void writesCnvkitRows() {
+        BinCoverage.Region bin = new BinCoverage.Region("chr1", 100, 250, "GENE");
+        Assert.assertEquals("chr1\t100\t250\tGENE\t0.333333\t-1.58496\n", BinCoverage.row(bin, 50));
+        Assert.assertEquals("chr1\t100\t250\tGENE\t0\t-20\n", BinCoverage.row(bin, 0));
+        Assert.assertEquals("chr1\t5\t5\t-\t0\t-20\n", BinCoverage.row(new BinCoverage.Region("chr1", 5, 5, "-"), 0));
+        Assert.assertEquals("1.23457e+06", BinCoverage.format(1234567));
+    }
+
+    @org.testng.annotations.Test
+    public void chunksStayOnOneChromosome() throws IOException {
+        File bed = Files.createTempFile("bins", ".bed").toFile();
+        Files.write(bed.toPath(), ("track name=bins\nchr1\t0\t10\tA\nchr1\t10\t20\tA\nchr1\t20\t30\tB\n"
+                + "chr2\t0\t10\tC\nchr2\t5\t8\tD\n").getBytes(StandardCharsets.UTF_8));
+        List<BinCoverage.Region> regions = BinCoverage.readBed(bed);
+        List<List<BinCoverage.Region>> chunks = new BinCoverage(bed, 2, 0, 2).chunk(regions);
+        Assert.assertEquals(Arrays.asList(2, 1, 2), Arrays.asList(chunks.get(0).size(), chunks.get(1).size(), chunks.get(2).size()));
+        Assert.assertEquals("chr2", chunks.get(2).get(0).chromosome);
+    }
+}
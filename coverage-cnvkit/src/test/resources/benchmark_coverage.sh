@@ -0,0 +1,42 @@
+#!/bin/bash
+# Compare cnvkit.py coverage with BinCoverage on one BAM and BED.
+# Usage: benchmark_coverage.sh <bam> <bed> [threads]
+# Run from coverage-cnvkit after mvn package, with cnvkit.py on the PATH.
+set -euo pipefail
+
+bam=$1
+bed=$2
+threads=${3:-4}
+jar=$(ls "$(dirname "$0")"/../../../target/coverage-cnvkit-*-jar-with-dependencies.jar)
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# GNU time reports peak RSS, fall back to the bash keyword without it
+timed() {
+    local label=$1
+    shift
+    if [ -x /usr/bin/time ]; then
+        /usr/bin/time -f "$label: %e s wall, %U s user, %M KB peak RSS" "$@"
+    else
+        local TIMEFORMAT="$label: %R s wall, %U s user"
+        time "$@"
+    fi
+}
+
+bins=$(grep -vc '^track\|^browser\|^#' "$bed")
+echo "input: $(du -h "$bam" | cut -f1) BAM, $bins bins"
+
+timed "cnvkit.py coverage ($threads processes)" \
+    cnvkit.py coverage "$bam" "$bed" -p "$threads" -o "$work/cnvkit.cnn"
+
+timed "BinCoverage ($threads threads)" \
+    java -jar "$jar" -p "$threads" "$bam" "$bed" -o "$work/java.cnn"
+
+# same bins in the same order, depths equal to the printed precision
+paste "$work/cnvkit.cnn" "$work/java.cnn" | awk -F'\t' '
+    NR == 1 { next }
+    $1 != $7 || $2 != $8 || $3 != $9 || $4 != $10 { print "bin mismatch at line " NR ": " $0; bad++; next }
+    { d = $5 - $11; if (d < 0) d = -d; m = $5 < 0 ? -$5 : $5; if (d > 1e-5 * m + 1e-9) { print "depth mismatch at line " NR ": " $5 " " $11; bad++ } }
+    END { if (bad) { print bad " differences"; exit 1 } }'
+[ "$(wc -l < "$work/cnvkit.cnn")" -eq "$(wc -l < "$work/java.cnn")" ]
+echo "coverage matches"
@@ -0,0 +1,106 @@
+package ca.on.oicr.pde.deciders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.seqware.common.hibernate.FindAllTheFiles.Header;
+import net.sourceforge.seqware.common.module.ReturnValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How the cnvkitDecider hooks scale with the size of the file provenance.
+ *
+ * separateFiles and checkFileDetails are timed over the whole provenance;
+ * doFinalCheck and modifyIniFile are called once per group by the decider,
+ * so they are timed for a single group, cycling through all of them. Run with
+ * the GC profiler to get the allocation rate as well:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar -prof gc -p records=100000 separateFiles
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeciderBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int records;
+
+    private List<ReturnValue> provenance;
+    private cnvkitDecider decider;
+    private List<String> groupPaths;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        provenance = new ProvenanceGenerator(42, 0.2).generate(records);
+        decider = newDecider();
+        groupPaths = new ArrayList<String>();
+        for (List<ReturnValue> group : decider.separateFiles(provenance, Header.FILE_SWA.getTitle()).values()) {
+            // the decider only gets to the final check with files that passed checkFileDetails
+            ReturnValue rv = group.get(0);
+            if (decider.checkFileDetails(rv, rv.getFiles().get(0))) {
+                groupPaths.add(rv.getFiles().get(0).getFilePath());
+            }
+        }
+        Collections.shuffle(groupPaths, new Random(42));
+    }
+
+    @Benchmark
+    public Map<String, List<ReturnValue>> separateFiles() {
+        return newDecider().separateFiles(provenance, Header.FILE_SWA.getTitle());
+    }
+
+    @Benchmark
+    public int checkFileDetails() {
+        int accepted = 0;
+        for (ReturnValue rv : provenance) {
+            if (decider.checkFileDetails(rv, rv.getFiles().get(0))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    @Benchmark
+    public ReturnValue doFinalCheck() {
+        return decider.doFinalCheck(nextGroup(), "0");
+    }
+
+    @Benchmark
+    public Map<String, String> modifyIniFile() {
+        return decider.modifyIniFile(nextGroup(), "0");
+    }
+
+    private String nextGroup() {
+        String path = groupPaths.get(next);
+        next = (next + 1) % groupPaths.size();
+        return path;
+    }
+
+    private static cnvkitDecider newDecider() {
+        cnvkitDecider d = new cnvkitDecider();
+        d.setParams(Arrays.asList("--template-type", "EX"));
+        d.parse_parameters();
+        return d;
+    }
+}
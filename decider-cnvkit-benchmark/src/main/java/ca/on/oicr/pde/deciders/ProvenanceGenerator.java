@@ -0,0 +1,144 @@
+package ca.on.oicr.pde.deciders;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import net.sourceforge.seqware.common.hibernate.FindAllTheFiles.Header;
+import net.sourceforge.seqware.common.module.FileMetadata;
+import net.sourceforge.seqware.common.module.ReturnValue;
+
+/**
+ * Synthetic file provenance shaped like a large study: donors with tumour and
+ * reference libraries of several template types, each sequenced on a few
+ * lanes. Every lane has a BAM and its index, some also a VCF. A share of the
+ * BAMs is processed again on a later date, which gives the decider duplicate
+ * IUS records to choose from, and a few records have no tissue type.
+ *
+ * The same seed always gives the same records.
+ */
+public class ProvenanceGenerator {
+
+    public static final String BAM_METATYPE = "application/bam";
+
+    private static final String[] TEMPLATE_TYPES = {"EX", "EX", "EX", "EX", "WG", "WG", "TS", "WT"};
+    private static final String[] TUMOUR_TISSUE_TYPES = {"P", "P", "P", "M", "X", "R"};
+    private static final String[] WORKFLOWS = {"BamMergePreprocessing", "GATKRecalibrationAndReordering"};
+    private static final String[] BARCODES = {"NoIndex", "ACGTAC", "TTAGGC", "GATCAG", "CAGATC", "GGCTAC"};
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private final Random random;
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+    private final double reprocessedFraction;
+    private final long firstDate;
+    private int fileSwid = 100000;
+
+    /**
+     * @param seed random seed
+     * @param reprocessedFraction share of BAMs that get a second, newer record for the same IUS
+     */
+    public ProvenanceGenerator(long seed, double reprocessedFraction) {
+        this.random = new Random(seed);
+        this.reprocessedFraction = reprocessedFraction;
+        this.firstDate = 1420070400000L; // 2015-01-01
+    }
+
+    /**
+     * Generate about the given number of records (the last lane may add a few
+     * more).
+     */
+    public List<ReturnValue> generate(int records) {
+        List<ReturnValue> values = new ArrayList<ReturnValue>(records + 8);
+        for (int donor = 0; values.size() < records; donor++) {
+            String study = "STUDY" + (donor / 500);
+            String donorName = study + "_" + String.format("%05d", donor);
+            // a reference sample and one or two tumour samples per donor
+            int samples = 2 + random.nextInt(2);
+            for (int sample = 0; sample < samples && values.size() < records; sample++) {
+                String tissueType = sample == 0 ? "R" : TUMOUR_TISSUE_TYPES[random.nextInt(TUMOUR_TISSUE_TYPES.length)];
+                String templateType = TEMPLATE_TYPES[random.nextInt(TEMPLATE_TYPES.length)];
+                String library = donorName + "_" + tissueType + "_" + sample + "_" + templateType;
+                int lanes = 1 + random.nextInt(3);
+                for (int lane = 1; lane <= lanes; lane++) {
+                    Lane l = new Lane(study, donorName, library, tissueType, templateType,
+                            "RUN" + random.nextInt(2000), Integer.toString(1 + random.nextInt(8)),
+                            BARCODES[random.nextInt(BARCODES.length)], WORKFLOWS[random.nextInt(WORKFLOWS.length)]);
+                    long date = firstDate + random.nextInt(3 * 365) * DAY + random.nextInt((int) DAY);
+                    values.add(l.record(BAM_METATYPE, ".bam", date));
+                    values.add(l.record("application/bam-index", ".bai", date));
+                    if (random.nextInt(4) == 0) {
+                        values.add(l.record("text/vcf", ".vcf.gz", date));
+                    }
+                    if (random.nextDouble() < reprocessedFraction) {
+                        values.add(l.record(BAM_METATYPE, ".bam", date + (1 + random.nextInt(90)) * DAY));
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private class Lane {
+
+        private final String study;
+        private final String donor;
+        private final String library;
+        private final String tissueType;
+        private final String templateType;
+        private final String run;
+        private final String lane;
+        private final String barcode;
+        private final String workflow;
+
+        Lane(String study, String donor, String library, String tissueType, String templateType, String run, String lane,
+                String barcode, String workflow) {
+            this.study = study;
+            this.donor = donor;
+            this.library = library;
+            this.tissueType = tissueType;
+            this.templateType = templateType;
+            this.run = run;
+            this.lane = lane;
+            this.barcode = barcode;
+            this.workflow = workflow;
+        }
+
+        ReturnValue record(String metatype, String extension, long date) {
+            int swid = fileSwid++;
+            ReturnValue rv = new ReturnValue();
+            rv.setAttribute(Header.FILE_SWA.getTitle(), Integer.toString(swid));
+            rv.setAttribute(Header.PROCESSING_DATE.getTitle(), format.format(new Date(date)));
+            rv.setAttribute(Header.WORKFLOW_NAME.getTitle(), workflow);
+            rv.setAttribute(Header.WORKFLOW_RUN_SWA.getTitle(), Integer.toString(swid / 3));
+            rv.setAttribute(Header.STUDY_TITLE.getTitle(), study);
+            rv.setAttribute(Header.ROOT_SAMPLE_NAME.getTitle(), donor);
+            rv.setAttribute(Header.PARENT_SAMPLE_NAME.getTitle(), donor + "_" + tissueType);
+            rv.setAttribute(Header.SAMPLE_NAME.getTitle(), library);
+            rv.setAttribute(Header.SEQUENCER_RUN_NAME.getTitle(), run);
+            rv.setAttribute(Header.LANE_NUM.getTitle(), lane);
+            rv.setAttribute(Header.IUS_TAG.getTitle(), barcode);
+            String prefix = Header.SAMPLE_TAG_PREFIX.getTitle();
+            rv.setAttribute(prefix + Lims.LIBRARY_TEMPLATE_TYPE.getAttributeTitle(), templateType);
+            // one record in fifty lacks a tissue type
+            if (random.nextInt(50) != 0) {
+                rv.setAttribute(prefix + Lims.TISSUE_TYPE.getAttributeTitle(), tissueType);
+            }
+            rv.setAttribute(prefix + "geo_external_name", donor.toLowerCase());
+            if (random.nextBoolean()) {
+                rv.setAttribute(prefix + Lims.GROUP_ID.getAttributeTitle(), "G" + random.nextInt(10));
+                rv.setAttribute(prefix + Lims.GROUP_DESC.getAttributeTitle(), "group " + random.nextInt(10));
+            }
+
+            FileMetadata fm = new FileMetadata();
+            fm.setMetaType(metatype);
+            fm.setFilePath("/oicr/data/archive/seqware/seqware_analysis/results/" + study + "/" + swid + "/"
+                    + library + "_" + run + "_" + lane + "_" + barcode + extension);
+            fm.setMd5sum(Integer.toHexString(random.nextInt()));
+            ArrayList<FileMetadata> files = new ArrayList<FileMetadata>();
+            files.add(fm);
+            rv.setFiles(files);
+            return rv;
+        }
+    }
+}
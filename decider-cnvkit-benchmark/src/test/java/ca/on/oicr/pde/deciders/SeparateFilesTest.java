@@ -0,0 +1,167 @@
+package ca.on.oicr.pde.deciders;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.sourceforge.seqware.common.hibernate.FindAllTheFiles.Header;
+import net.sourceforge.seqware.common.module.FileMetadata;
+import net.sourceforge.seqware.common.module.ReturnValue;
+import org.junit.Assert;
+
+public class SeparateFilesTest {
+
+    // enough records for the parallel grouping to split them into several tasks
+    private static final int RECORDS = 40000;
+
+    @org.testng.annotations.Test
+    public void streamingGivesTheGroupsOfTheOriginalGrouping() {
+        List<ReturnValue> provenance = provenance();
+        Map<String, List<String>> list = swids(newDecider().separateFiles(provenance, Header.FILE_SWA.getTitle()));
+        Map<String, List<String>> iterator = swids(newDecider().separateFiles(provenance.iterator(), Header.FILE_SWA.getTitle()));
+
+        Assert.assertEquals(list, iterator);
+        Assert.assertEquals(new ArrayList<String>(list.keySet()), new ArrayList<String>(iterator.keySet()));
+        Assert.assertEquals(sorted(originalGrouping(provenance)), sorted(list));
+    }
+
+    @org.testng.annotations.Test
+    public void threadsDoNotChangeTheGroupsOrTheirOrder() {
+        List<ReturnValue> provenance = provenance();
+        Map<String, List<String>> single = swids(newDecider("1").separateFiles(provenance, Header.FILE_SWA.getTitle()));
+        for (String threads : Arrays.asList("4", "16")) {
+            Map<String, List<String>> parallel = swids(newDecider(threads).separateFiles(provenance, Header.FILE_SWA.getTitle()));
+            Assert.assertEquals(single, parallel);
+            Assert.assertEquals(new ArrayList<String>(single.keySet()), new ArrayList<String>(parallel.keySet()));
+        }
+    }
+
+    private static cnvkitDecider newDecider() {
+        return newDecider("1");
+    }
+
+    private static cnvkitDecider newDecider(String threads) {
+        cnvkitDecider d = new cnvkitDecider();
+        d.setParams(Arrays.asList("--template-type", "EX", "--threads", threads));
+        d.parse_parameters();
+        d.init();
+        return d;
+    }
+
+    /**
+     * Generated provenance with ties on the processing date: copies of some
+     * BAM records under another file SWID, some after the original and some
+     * before it.
+     */
+    private static List<ReturnValue> provenance() {
+        List<ReturnValue> generated = new ProvenanceGenerator(7, 0.2).generate(RECORDS);
+        List<ReturnValue> before = new ArrayList<ReturnValue>();
+        List<ReturnValue> after = new ArrayList<ReturnValue>();
+        for (int i = 0; i < generated.size(); i++) {
+            ReturnValue rv = generated.get(i);
+            if (!rv.getFiles().get(0).getMetaType().equals(ProvenanceGenerator.BAM_METATYPE)) {
+                continue;
+            }
+            if (i % 7 == 0) {
+                after.add(copy(rv, "9" + i));
+            } else if (i % 11 == 0) {
+                before.add(copy(rv, "8" + i));
+            }
+        }
+        List<ReturnValue> provenance = new ArrayList<ReturnValue>(before);
+        provenance.addAll(generated);
+        provenance.addAll(after);
+        return provenance;
+    }
+
+    private static ReturnValue copy(ReturnValue rv, String swid) {
+        ReturnValue copy = new ReturnValue();
+        copy.setAttributes(new HashMap<String, String>(rv.getAttributes()));
+        copy.setAttribute(Header.FILE_SWA.getTitle(), swid);
+        FileMetadata fm = new FileMetadata();
+        fm.setMetaType(rv.getFiles().get(0).getMetaType());
+        fm.setFilePath(rv.getFiles().get(0).getFilePath() + "." + swid);
+        fm.setMd5sum(rv.getFiles().get(0).getMd5sum());
+        ArrayList<FileMetadata> files = new ArrayList<FileMetadata>();
+        files.add(fm);
+        copy.setFiles(files);
+        return copy;
+    }
+
+    /**
+     * separateFiles as it was before it streamed the records: the first BAM
+     * record with the latest processing date of each IUS, grouped by IUS.
+     */
+    private static Map<String, List<String>> originalGrouping(List<ReturnValue> provenance) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+        Map<List<String>, ReturnValue> newest = new HashMap<List<String>, ReturnValue>();
+        Map<List<String>, Long> dates = new HashMap<List<String>, Long>();
+        for (ReturnValue rv : provenance) {
+            if (!rv.getFiles().get(0).getMetaType().equals(ProvenanceGenerator.BAM_METATYPE)) {
+                continue;
+            }
+            List<String> ius = Arrays.asList(rv.getAttribute(Header.SAMPLE_NAME.getTitle()),
+                    rv.getAttribute(Header.SEQUENCER_RUN_NAME.getTitle()), rv.getAttribute(Header.LANE_NUM.getTitle()),
+                    rv.getAttribute(Header.IUS_TAG.getTitle()), rv.getAttribute(Header.WORKFLOW_NAME.getTitle()));
+            long date;
+            try {
+                date = format.parse(rv.getAttribute(Header.PROCESSING_DATE.getTitle())).getTime();
+            } catch (ParseException e) {
+                date = Long.MIN_VALUE;
+            }
+            if (!newest.containsKey(ius) || date > dates.get(ius)) {
+                newest.put(ius, rv);
+                dates.put(ius, date);
+            }
+        }
+        Map<String, List<String>> groups = new HashMap<String, List<String>>();
+        for (Map.Entry<List<String>, ReturnValue> e : newest.entrySet()) {
+            StringBuilder name = new StringBuilder();
+            for (String field : e.getKey()) {
+                name.append(field);
+            }
+            List<String> group = groups.get(name.toString());
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(name.toString(), group);
+            }
+            group.add(e.getValue().getAttribute(Header.FILE_SWA.getTitle()));
+        }
+        return groups;
+    }
+
+    /**
+     * The file SWIDs of each group, in the order of the map and the groups.
+     */
+    private static Map<String, List<String>> swids(Map<String, List<ReturnValue>> groups) {
+        Map<String, List<String>> swids = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<ReturnValue>> e : groups.entrySet()) {
+            List<String> group = new ArrayList<String>();
+            for (ReturnValue rv : e.getValue()) {
+                group.add(rv.getAttribute(Header.FILE_SWA.getTitle()));
+            }
+            swids.put(e.getKey(), group);
+        }
+        return swids;
+    }
+
+    /**
+     * The groups by name, with the file SWIDs of each sorted, for groupings
+     * that do not keep an order.
+     */
+    private static Map<String, List<String>> sorted(Map<String, List<String>> groups) {
+        Map<String, List<String>> sorted = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> e : groups.entrySet()) {
+            List<String> group = new ArrayList<String>(e.getValue());
+            Collections.sort(group);
+            sorted.put(e.getKey(), group);
+        }
+        return sorted;
+    }
+}
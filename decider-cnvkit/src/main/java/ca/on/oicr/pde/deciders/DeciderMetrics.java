@@ -0,0 +1,174 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters for the phases of a decider run, written at exit as JSON
+ * and in the Prometheus text format (for the node exporter's textfile
+ * collector).
+ *
+ * Phase times are wall clock. The hooks BasicDecider calls once per group or
+ * file (checkFileDetails, doFinalCheck, modifyIniFile) are timed as the total
+ * over all calls, so they overlap the phases they are called from.
+ * Provenance is fetched by BasicDecider itself and is timed as the gap
+ * between init and separateFiles. Submitting with --submit-threads happens in
+ * clean_up and is timed on its own. Counters may be updated from several
+ * threads.
+ */
+public class DeciderMetrics {
+
+    public enum Phase {
+        INIT, FETCH_PROVENANCE, SEPARATE_FILES, CHECK_FILE_DETAILS, FINAL_CHECK, MODIFY_INI, SCHEDULE, SUBMIT, CLEAN_UP
+    }
+
+    public enum Counter {
+        // records read from the file provenance
+        RECORDS_SEEN,
+        // groups handed back by separateFiles
+        GROUPS,
+        // IUS held back until the pooled reference of their kit is built
+        WAITING_FOR_REFERENCE,
+        FINAL_CHECK_PASSED, FINAL_CHECK_FAILED,
+        // ini files written; in --test and --dry-run mode nothing is launched
+        RUNS_SCHEDULED, RUNS_ABORTED,
+        // with --result-index, runs not scheduled as one with the same fingerprint has run
+        RUNS_REUSED,
+        // with --submit-threads, runs submitted after all ini files are written
+        RUNS_SUBMITTED, SUBMIT_RETRIES, SUBMIT_FAILED
+    }
+
+    /**
+     * Reasons records or files are turned away. The first two apply to
+     * records in separateFiles, the others to checkFileDetails calls.
+     */
+    public enum Rule {
+        METATYPE, OLDER_THAN_WATERMARK, TISSUE_TYPE, TEMPLATE_TYPE, TUMOR_TYPE, FILE_DETAILS
+    }
+
+    private static final String PREFIX = "cnvkit_decider_";
+
+    private final Map<Phase, AtomicLong> nanos = new EnumMap<Phase, AtomicLong>(Phase.class);
+    private final Map<Counter, AtomicLong> counters = new EnumMap<Counter, AtomicLong>(Counter.class);
+    private final Map<Rule, AtomicLong> rejected = new EnumMap<Rule, AtomicLong>(Rule.class);
+    private final long started = System.currentTimeMillis();
+
+    public DeciderMetrics() {
+        for (Phase p : Phase.values()) {
+            nanos.put(p, new AtomicLong());
+        }
+        for (Counter c : Counter.values()) {
+            counters.put(c, new AtomicLong());
+        }
+        for (Rule r : Rule.values()) {
+            rejected.put(r, new AtomicLong());
+        }
+    }
+
+    /**
+     * Add the time since {@code start}, a {@link System#nanoTime()} value, to
+     * the phase.
+     */
+    public void time(Phase phase, long start) {
+        nanos.get(phase).addAndGet(System.nanoTime() - start);
+    }
+
+    public void count(Counter counter, long n) {
+        counters.get(counter).addAndGet(n);
+    }
+
+    public void reject(Rule rule) {
+        rejected.get(rule).incrementAndGet();
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter).get();
+    }
+
+    public long get(Rule rule) {
+        return rejected.get(rule).get();
+    }
+
+    public double seconds(Phase phase) {
+        return nanos.get(phase).get() / 1e9;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"started\": ").append(started);
+        sb.append(",\n  \"phase_seconds\": {");
+        String sep = "";
+        for (Phase p : Phase.values()) {
+            sb.append(sep).append("\n    \"").append(name(p)).append("\": ").append(format(seconds(p)));
+            sep = ",";
+        }
+        sb.append("\n  },\n  \"counters\": {");
+        sep = "";
+        for (Counter c : Counter.values()) {
+            sb.append(sep).append("\n    \"").append(name(c)).append("\": ").append(get(c));
+            sep = ",";
+        }
+        sb.append("\n  },\n  \"rejected\": {");
+        sep = "";
+        for (Rule r : Rule.values()) {
+            sb.append(sep).append("\n    \"").append(name(r)).append("\": ").append(get(r));
+            sep = ",";
+        }
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP " + PREFIX + "phase_seconds Wall time of each phase of the last decider run\n");
+        sb.append("# TYPE " + PREFIX + "phase_seconds gauge\n");
+        for (Phase p : Phase.values()) {
+            sb.append(PREFIX + "phase_seconds{phase=\"").append(name(p)).append("\"} ").append(format(seconds(p))).append('\n');
+        }
+        for (Counter c : Counter.values()) {
+            sb.append("# TYPE " + PREFIX).append(name(c)).append(" gauge\n");
+            sb.append(PREFIX).append(name(c)).append(' ').append(get(c)).append('\n');
+        }
+        sb.append("# HELP " + PREFIX + "rejected Records or files turned away by each rule in the last decider run\n");
+        sb.append("# TYPE " + PREFIX + "rejected gauge\n");
+        for (Rule r : Rule.values()) {
+            sb.append(PREFIX + "rejected{rule=\"").append(name(r)).append("\"} ").append(get(r)).append('\n');
+        }
+        sb.append("# TYPE " + PREFIX + "last_run_timestamp_seconds gauge\n");
+        sb.append(PREFIX + "last_run_timestamp_seconds ").append(started / 1000).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Write next to the file and move it over, so that a scraper never reads
+     * a partly written file.
+     */
+    public static void write(File file, String content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String name(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String format(double seconds) {
+        return String.format(Locale.ROOT, "%.6f", seconds);
+    }
+}
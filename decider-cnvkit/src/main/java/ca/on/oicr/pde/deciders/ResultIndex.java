@@ -0,0 +1,294 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Workflow runs by the fingerprint of what they were run on, kept in a
+ * directory of its own so that a run scheduled by one decider run is found by
+ * the next. index.tsv lists the runs the decider scheduled and the md5sums of
+ * the references it had to compute. A run that finishes writes a marker named after its
+ * fingerprint to done/, holding its workflow run accession and outputs; the
+ * markers are folded into the index when it is loaded.
+ *
+ * Lines of index.tsv are tab separated: "run", fingerprint, name, state
+ * (scheduled or done), workflow run accession and the time it was recorded,
+ * or "md5", path, size, modification time and md5sum.
+ */
+public class ResultIndex {
+
+    public static final String SCHEDULED = "scheduled";
+    public static final String DONE = "done";
+    private static final String HEADER = "#cnvkit result index";
+    private static final String NULL_FIELD = "\\N";
+    private static final String PARTIAL = ".tmp";
+
+    /**
+     * A workflow run recorded under its fingerprint.
+     */
+    public static final class Run {
+
+        private final String fingerprint;
+        private final String name;
+        private final String state;
+        private final String accession;
+        private final long recorded;
+
+        public Run(String fingerprint, String name, String state, String accession, long recorded) {
+            this.fingerprint = fingerprint;
+            this.name = name;
+            this.state = state;
+            this.accession = accession;
+            this.recorded = recorded;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAccession() {
+            return accession;
+        }
+
+        public long getRecorded() {
+            return recorded;
+        }
+
+        public boolean isDone() {
+            return DONE.equals(state);
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Run> runs = new TreeMap<String, Run>();
+    // path to size, modification time and md5sum
+    private final Map<String, String[]> md5s = new TreeMap<String, String[]>();
+    // markers to delete on save
+    private final Set<String> invalidated = new TreeSet<String>();
+
+    public ResultIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Where finished runs drop their markers.
+     */
+    public File getMarkerDir() {
+        return new File(dir, "done");
+    }
+
+    /**
+     * Read index.tsv if there is one, then mark the runs that wrote a marker
+     * since as done. A marker without an entry, e.g. of a run scheduled by a
+     * decider run that failed to save the index, gets one.
+     */
+    public void load() throws IOException {
+        File index = new File(dir, "index.tsv");
+        if (index.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8));
+            try {
+                String line = in.readLine();
+                if (line == null || !line.startsWith(HEADER)) {
+                    throw new IOException("Not a result index: " + index);
+                }
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f[0].equals("run") && f.length == 6) {
+                        runs.put(f[1], new Run(f[1], f[2], f[3], unescape(f[4]), Long.parseLong(f[5])));
+                    } else if (f[0].equals("md5") && f.length == 5) {
+                        md5s.put(f[1], new String[]{f[2], f[3], f[4]});
+                    } else {
+                        throw new IOException("Malformed line in " + index + ": " + line);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in " + index, e);
+            } finally {
+                in.close();
+            }
+        }
+        File[] markers = getMarkerDir().listFiles();
+        if (markers == null) {
+            return;
+        }
+        for (File marker : markers) {
+            String fingerprint = marker.getName();
+            if (fingerprint.endsWith(PARTIAL)) {
+                continue;
+            }
+            Run run = runs.get(fingerprint);
+            if (run == null || !run.isDone()) {
+                runs.put(fingerprint, new Run(fingerprint, run == null ? "" : run.getName(), DONE,
+                        readAccession(marker), marker.lastModified()));
+            }
+        }
+    }
+
+    /**
+     * Write index.tsv next to the old one and move it over, then delete the
+     * markers of the runs invalidated.
+     */
+    public void save() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(dir, "index.tsv" + PARTIAL);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            out.write(HEADER + "\n");
+            for (Run run : runs.values()) {
+                out.write("run\t" + run.fingerprint + "\t" + run.name + "\t" + run.state + "\t" + escape(run.accession)
+                        + "\t" + run.recorded + "\n");
+            }
+            for (Map.Entry<String, String[]> e : md5s.entrySet()) {
+                String[] v = e.getValue();
+                out.write("md5\t" + e.getKey() + "\t" + v[0] + "\t" + v[1] + "\t" + v[2] + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, "index.tsv").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        for (String fingerprint : invalidated) {
+            Files.deleteIfExists(new File(getMarkerDir(), fingerprint).toPath());
+        }
+        invalidated.clear();
+    }
+
+    public Run get(String fingerprint) {
+        return runs.get(fingerprint);
+    }
+
+    public Collection<Run> getRuns() {
+        return runs.values();
+    }
+
+    public void scheduled(String fingerprint, String name) {
+        runs.put(fingerprint, new Run(fingerprint, name, SCHEDULED, null, System.currentTimeMillis()));
+    }
+
+    /**
+     * Forget the runs with this fingerprint or name, or every run for "all",
+     * so that they are scheduled again. Their markers go on save.
+     *
+     * @return the runs forgotten
+     */
+    public List<Run> invalidate(String fingerprintOrName) {
+        List<Run> removed = new ArrayList<Run>();
+        for (Run run : new ArrayList<Run>(runs.values())) {
+            if (fingerprintOrName.equals("all") || run.fingerprint.equals(fingerprintOrName) || run.name.equals(fingerprintOrName)) {
+                runs.remove(run.fingerprint);
+                invalidated.add(run.fingerprint);
+                removed.add(run);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The md5sum of a file, computed once for each size and modification
+     * time of the path.
+     */
+    public String md5(File file) throws IOException {
+        String size = String.valueOf(file.length());
+        String modified = String.valueOf(file.lastModified());
+        String[] known = md5s.get(file.getPath());
+        if (known != null && known[0].equals(size) && known[1].equals(modified)) {
+            return known[2];
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md5.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        String sum = hex(md5.digest());
+        md5s.put(file.getPath(), new String[]{size, modified, sum});
+        return sum;
+    }
+
+    /**
+     * SHA-256 of the parts, one per line.
+     */
+    public static String fingerprint(List<String> parts) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String part : parts) {
+            sha.update((part + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return hex(sha.digest());
+    }
+
+    /**
+     * The workflow_run_accession line of a marker, null if it has none.
+     */
+    private static String readAccession(File marker) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(marker), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", 2);
+                if (f[0].equals("workflow_run_accession") && f.length == 2 && !f[1].isEmpty()) {
+                    return f[1];
+                }
+            }
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String escape(String value) {
+        return value == null ? NULL_FIELD : value;
+    }
+
+    private static String unescape(String field) {
+        return field.equals(NULL_FIELD) ? null : field;
+    }
+}
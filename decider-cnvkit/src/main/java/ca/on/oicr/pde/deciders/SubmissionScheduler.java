@@ -0,0 +1,262 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sourceforge.seqware.common.util.Log;
+
+/**
+ * Submits prepared workflow runs on a bounded pool of threads instead of one
+ * after another, without flooding the metadata service during a backfill. At
+ * most maxSubmitting submissions to a queue are under way at once and
+ * consecutive submissions to a queue start at least minIntervalMillis apart.
+ * A submission is over once its run is scheduled, so this limits the calls to
+ * the metadata service, not the runs waiting or running on the cluster.
+ * A submission that fails with an IOException is tried again, up to attempts
+ * times, after a backoff that doubles from backoffMillis; any other exception
+ * fails it straight away.
+ */
+public class SubmissionScheduler {
+
+    // the backoff stops doubling here
+    private static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000L;
+    // completed submissions between progress reports
+    private static final int PROGRESS_EVERY = 25;
+
+    /**
+     * Schedules one workflow run, e.g. through the metadata database.
+     */
+    public interface Launcher {
+
+        /**
+         * @return the accession of the new workflow run, or null if the
+         * backend does not report it
+         * @throws IOException if the failure may be transient and the
+         * submission is worth trying again
+         */
+        String launch(Submission submission) throws IOException;
+    }
+
+    /**
+     * The ini of a workflow run and what it is linked to.
+     */
+    public static final class Submission {
+
+        private final String name;
+        private final Map<String, String> ini;
+        private final String parentAccessions;
+        private final String inputFiles;
+        private final String queue;
+
+        /**
+         * @param inputFiles comma-separated SWIDs of the files the run reads,
+         * which the next decider run looks for previous runs by
+         */
+        public Submission(String name, Map<String, String> ini, String parentAccessions, String inputFiles, String queue) {
+            this.name = name;
+            this.ini = ini;
+            this.parentAccessions = parentAccessions;
+            this.inputFiles = inputFiles;
+            this.queue = queue == null ? "" : queue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, String> getIni() {
+            return ini;
+        }
+
+        public String getParentAccessions() {
+            return parentAccessions;
+        }
+
+        public String getInputFiles() {
+            return inputFiles;
+        }
+
+        public String getQueue() {
+            return queue;
+        }
+    }
+
+    /**
+     * The outcome of a submission: the run accession, or the last error.
+     */
+    public static final class Result {
+
+        private final Submission submission;
+        private final String accession;
+        private final int attempts;
+        private final Exception error;
+
+        private Result(Submission submission, String accession, int attempts, Exception error) {
+            this.submission = submission;
+            this.accession = accession;
+            this.attempts = attempts;
+            this.error = error;
+        }
+
+        public Submission getSubmission() {
+            return submission;
+        }
+
+        public String getAccession() {
+            return accession;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSubmitted() {
+            return error == null;
+        }
+    }
+
+    /**
+     * The submissions under way for a queue and when the next one may start.
+     */
+    private static final class Slot {
+
+        private final Semaphore submitting;
+        private long next = Long.MIN_VALUE;
+
+        private Slot(int maxSubmitting) {
+            this.submitting = new Semaphore(maxSubmitting, true);
+        }
+    }
+
+    private final Launcher launcher;
+    private final int threads;
+    private final int maxSubmitting;
+    private final long minIntervalMillis;
+    private final int attempts;
+    private final long backoffMillis;
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    public SubmissionScheduler(Launcher launcher, int threads, int maxSubmitting, long minIntervalMillis, int attempts,
+            long backoffMillis) {
+        if (threads < 1 || maxSubmitting < 1 || attempts < 1 || minIntervalMillis < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("threads, maxSubmitting and attempts must be positive, the delays not negative");
+        }
+        this.launcher = launcher;
+        this.threads = threads;
+        this.maxSubmitting = maxSubmitting;
+        this.minIntervalMillis = minIntervalMillis;
+        this.attempts = attempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Submit all runs and wait for them.
+     *
+     * @return one result per submission, in the same order
+     */
+    public List<Result> submit(List<Submission> submissions) throws InterruptedException {
+        if (submissions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int total = submissions.size();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, total));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Submission submission : submissions) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws InterruptedException {
+                        Result result = submitOne(submission);
+                        if (!result.isSubmitted()) {
+                            failed.incrementAndGet();
+                        }
+                        int n = done.incrementAndGet();
+                        if (n % PROGRESS_EVERY == 0 || n == total) {
+                            Log.stdout("Submitted " + (n - failed.get()) + " of " + total + " workflow runs, " + failed.get() + " failed");
+                        }
+                        return result;
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // submitOne catches everything the launcher throws
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result submitOne(Submission submission) throws InterruptedException {
+        Slot slot = slot(submission.getQueue());
+        Exception error = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            if (attempt > 1) {
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(attempt - 2, 30));
+                Log.stdout("Retrying " + submission.getName() + " in " + backoff + " ms after: " + error.getMessage());
+                Thread.sleep(backoff);
+            }
+            slot.submitting.acquire();
+            try {
+                waitForTurn(slot);
+                return new Result(submission, launcher.launch(submission), attempt, null);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                Log.error("Could not submit " + submission.getName(), e);
+                return new Result(submission, null, attempt, e);
+            } finally {
+                slot.submitting.release();
+            }
+        }
+        Log.error("Could not submit " + submission.getName() + " in " + attempts + " attempts", error);
+        return new Result(submission, null, attempts, error);
+    }
+
+    private synchronized Slot slot(String queue) {
+        Slot slot = slots.get(queue);
+        if (slot == null) {
+            slot = new Slot(maxSubmitting);
+            slots.put(queue, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Reserve the next start time of the queue and sleep until it comes.
+     */
+    private void waitForTurn(Slot slot) throws InterruptedException {
+        long wait;
+        synchronized (slot) {
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, slot.next);
+            slot.next = start + minIntervalMillis;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Schedules a workflow run with SeqWare's WorkflowScheduler plugin, the way
+ * BasicDecider does, but in a JVM of its own so that several runs can be
+ * scheduled at once. A non-zero exit before the run was created, e.g. the
+ * metadata web service timing out, is reported as an IOException and tried
+ * again. Once WorkflowScheduler has reported the new run, a later failure,
+ * e.g. while linking it to its parents, is not tried again, as that would
+ * create the run a second time.
+ */
+public class WorkflowSchedulerLauncher implements SubmissionScheduler.Launcher {
+
+    private static final Pattern ACCESSION = Pattern.compile("Created workflow run with SWID: (\\d+)");
+
+    private final String workflowAccession;
+    private final String host;
+    private final File iniDir;
+
+    /**
+     * @param host the host to schedule on, or null for the one in the
+     * SeqWare settings
+     * @param iniDir where the ini files of the runs are written
+     */
+    public WorkflowSchedulerLauncher(String workflowAccession, String host, File iniDir) {
+        this.workflowAccession = workflowAccession;
+        this.host = host;
+        this.iniDir = iniDir;
+    }
+
+    @Override
+    public String launch(SubmissionScheduler.Submission submission) throws IOException {
+        File ini = File.createTempFile("cnvkit." + submission.getName() + ".", ".ini", iniDir);
+        writeIni(ini, submission.getIni());
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("net.sourceforge.seqware.pipeline.runner.PluginRunner");
+        command.add("--plugin");
+        command.add("net.sourceforge.seqware.pipeline.plugins.WorkflowScheduler");
+        command.add("--");
+        command.add("--workflow-accession");
+        command.add(workflowAccession);
+        command.add("--ini-files");
+        command.add(ini.getPath());
+        if (submission.getInputFiles() != null && !submission.getInputFiles().isEmpty()) {
+            command.add("--input-files");
+            command.add(submission.getInputFiles());
+        }
+        if (submission.getParentAccessions() != null && !submission.getParentAccessions().isEmpty()) {
+            command.add("--parent-accessions");
+            command.add(submission.getParentAccessions());
+            command.add("--link-workflow-run-to-parents");
+            command.add(submission.getParentAccessions());
+        }
+        if (host != null) {
+            command.add("--host");
+            command.add(host);
+        }
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String accession = null;
+        StringBuilder output = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                output.append(line).append('\n');
+                Matcher m = ACCESSION.matcher(line);
+                if (m.find()) {
+                    accession = m.group(1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            int status = process.waitFor();
+            if (status != 0 && accession != null) {
+                throw new IllegalStateException("WorkflowScheduler created workflow run " + accession + " but exited with " + status
+                        + " for " + ini + ", not trying again:\n" + output);
+            }
+            if (status != 0) {
+                throw new IOException("WorkflowScheduler exited with " + status + " for " + ini + ":\n" + output);
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scheduling " + ini);
+        }
+        return accession;
+    }
+
+    private static void writeIni(File file, Map<String, String> ini) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            for (Map.Entry<String, String> e : ini.entrySet()) {
+                out.write(e.getKey() + "=" + e.getValue() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,14 +1,39 @@
 package ca.on.oicr.pde.deciders;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import net.sourceforge.seqware.common.hibernate.FindAllTheFiles.Header;
 import net.sourceforge.seqware.common.module.FileMetadata;
 import net.sourceforge.seqware.common.module.ReturnValue;
@@ -22,8 +47,22 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class cnvkitDecider extends OicrDecider {
 
-    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+    // SimpleDateFormat is not thread-safe, records may be read on several threads
+    private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+        }
+    };
+    // provenance records handed to each fork/join task
+    private static final int RECORDS_PER_TASK = 8192;
+    private static final String STATE_HEADER = "#watermark\t";
+    private static final String NULL_FIELD = "\\N";
+    private static final String REFERENCE_GROUP = "reference:";
     private Map<String, BeSmall> fileSwaToSmall;
+    private Map<String, BeSmall> pathToSmall;
+    // LIMS values repeat across thousands of files, keep one copy of each
+    private ConcurrentMap<String, String> dictionary;
 
     private String templateType = "EX";
     private String queue = "";
@@ -34,18 +73,89 @@ public class cnvkitDecider extends OicrDecider {
 
     private final static String BAM_METATYPE = "application/bam";
     private String tumorType;
+    private int threads = 1;
+    // tumour BAMs packed into one workflow run
+    private int cohortSize = 1;
+    private String stateFile;
+    // processing date of the newest BAM seen by the previous run, older files are not read again
+    private long watermark = Long.MIN_VALUE;
+    // newest BAM of each IUS as of the previous run
+    private Map<IusKey, Seen> lastRun = new HashMap<IusKey, Seen>();
+    // IUS of the state file without a finished run, read again whatever their date
+    private Set<IusKey> unsettled = new HashSet<IusKey>();
+    // BAMs returned by separateFiles whose IUS has no finished run, by path
+    private Map<String, IusKey> returned = new HashMap<String, IusKey>();
+    // BAMs that passed checkFileDetails and that got to doFinalCheck
+    private Set<String> accepted = new HashSet<String>();
+    private Set<String> finalChecked = new HashSet<String>();
+    private boolean stateChanged = false;
+    private String referenceStore;
+    // capture kits whose pooled-normal reference is built by this run
+    private Map<String, PooledReference> pendingReferences = new TreeMap<String, PooledReference>();
+    // capture kit to the stored reference its tumours are called against
+    private Map<String, String> kitReferences = new HashMap<String, String>();
+    private final DeciderMetrics metrics = new DeciderMetrics();
+    private String metricsJson;
+    private String metricsProm;
+    // System.nanoTime() at the end of init and of separateFiles, 0 if not reached yet
+    private long initialized;
+    private long separated;
+    private boolean aborted;
+    // with --submit-threads the prepared runs are held back and submitted together in clean_up
+    private SubmissionScheduler scheduler;
+    private List<SubmissionScheduler.Submission> submissions = new ArrayList<SubmissionScheduler.Submission>();
+    private Map<SubmissionScheduler.Submission, String> submittedPaths = new HashMap<SubmissionScheduler.Submission, String>();
+    private static final long SUBMIT_BACKOFF_MILLIS = 5000;
+    // finished runs by the fingerprint of their inputs, null without --result-index
+    private ResultIndex results;
+    // fingerprints of the runs scheduled by this decider run
+    private Set<String> fingerprints = new HashSet<String>();
+    private boolean reused;
+    // ini entries that name or place a run rather than change its results
+    private static final Set<String> NOT_FINGERPRINTED = new HashSet<String>(Arrays.asList("input_bam_file",
+            "input_files_normal", "output_filename_prefix", "sample_name", "output_dir", "output_prefix", "manual_output",
+            "data_dir", "queue", "cnvkit_mem", "result_fingerprint", "result_marker_dir"));
 
     public cnvkitDecider() {
         super();
         fileSwaToSmall = new HashMap<String, BeSmall>();
+        pathToSmall = new HashMap<String, BeSmall>();
+        dictionary = new ConcurrentHashMap<String, String>();
         parser.acceptsAll(Arrays.asList("ini-file"), "Optional: the location of the INI file.").withRequiredArg();
         parser.accepts("template-type", "Required. Set the template type to limit the workflow run so that it runs on data only of this template type").withRequiredArg();
         parser.accepts("queue", "Optional: Set the queue (Default: not set)").withRequiredArg();
         parser.accepts("tumor-type", "Optional: Set tumor tissue type to something other than primary tumor (P), i.e. X . Default: Not set (All)").withRequiredArg();
+        parser.accepts("threads", "Optional: Number of threads used to group the file provenance (Default: 1)").withRequiredArg();
+        parser.accepts("cohort-size", "Optional: Pack up to this many tumour BAMs into one workflow run, requires --state-file to keep the cohorts (Default: 1)").withRequiredArg();
+        parser.accepts("state-file", "Optional: File to keep the newest BAM of each IUS and its workflow run in between runs. Only BAMs processed since the previous run "
+                + "and IUS whose run has not finished are considered, IUS rejected by the file checks are not considered again until they get a new BAM "
+                + "(Default: not set)").withRequiredArg();
+        parser.accepts("full-rescan", "Optional: Consider the whole file provenance and rebuild the state file");
+        parser.accepts("reference-store", "Optional: Directory of pooled-normal references, one per capture kit and set of normal BAMs. "
+                + "Tumours are called against the reference of their kit, which is built first if it is missing (Default: not set)").withRequiredArg();
+        parser.accepts("metrics-json", "Optional: Write the time spent in each phase and the record counters to this JSON file at exit (Default: not set)").withRequiredArg();
+        parser.accepts("metrics-prom", "Optional: Write the same metrics in the Prometheus text format, e.g. for the node exporter's textfile collector (Default: not set)").withRequiredArg();
+        parser.accepts("result-index", "Optional: Directory of an index of the workflow runs by a fingerprint of their BAMs, reference, "
+                + "workflow and parameters. Runs whose fingerprint has a finished run are not scheduled again (Default: not set)").withRequiredArg();
+        parser.accepts("invalidate-results", "Optional: With --result-index, forget the runs with these comma-separated fingerprints "
+                + "or output names, or all of them, so that they are scheduled again").withRequiredArg();
+        parser.accepts("submit-threads", "Optional: Write all ini files first, then submit the workflow runs on this many threads instead of one at a time (Default: not set)").withRequiredArg();
+        parser.accepts("max-submitting", "Optional: With --submit-threads, the most WorkflowScheduler calls under way at once for each queue. "
+                + "This does not limit the runs waiting or running on the cluster (Default: the number of submit threads)").withRequiredArg();
+        parser.accepts("submit-interval", "Optional: With --submit-threads, the least number of seconds between two submissions to the same queue (Default: 0)").withRequiredArg();
+        parser.accepts("submit-attempts", "Optional: With --submit-threads, how often a failed submission is tried, waiting 5 seconds before the second try and twice as long before each further one (Default: 3)").withRequiredArg();
     }
 
     @Override
     public ReturnValue init() {
+        long start = System.nanoTime();
+        ReturnValue rv = initOptions();
+        metrics.time(DeciderMetrics.Phase.INIT, start);
+        initialized = System.nanoTime();
+        return rv;
+    }
+
+    private ReturnValue initOptions() {
         Log.debug("INIT");
         this.setMetaType(Arrays.asList(BAM_METATYPE));
         this.setHeadersToGroupBy(Arrays.asList(Header.FILE_SWA));
@@ -62,6 +172,102 @@ public class cnvkitDecider extends OicrDecider {
             this.queue = options.valueOf("queue").toString();
         }
 
+        if (this.options.has("threads")) {
+            try {
+                this.threads = Integer.parseInt(options.valueOf("threads").toString());
+            } catch (NumberFormatException e) {
+                this.threads = 0;
+            }
+            if (this.threads < 1) {
+                Log.error("--threads requires a positive number, e.g. 4");
+                rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                return rv;
+            }
+        }
+
+        if (this.options.has("cohort-size")) {
+            try {
+                this.cohortSize = Integer.parseInt(options.valueOf("cohort-size").toString());
+            } catch (NumberFormatException e) {
+                this.cohortSize = 0;
+            }
+            if (this.cohortSize < 1) {
+                Log.error("--cohort-size requires a positive number, e.g. 8");
+                rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                return rv;
+            }
+        }
+
+        if (this.options.has("state-file")) {
+            this.stateFile = options.valueOf("state-file").toString();
+            if (this.options.has("full-rescan")) {
+                Log.stdout("Full rescan, " + stateFile + " will be rebuilt");
+            } else if (new File(stateFile).exists()) {
+                try {
+                    loadState(new File(stateFile));
+                } catch (IOException e) {
+                    Log.error("Could not read the state file " + stateFile + ", run with --full-rescan to rebuild it", e);
+                    rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                    return rv;
+                }
+            }
+        }
+
+        if (this.cohortSize > 1 && this.stateFile == null) {
+            Log.error("--cohort-size requires --state-file, which keeps the BAMs of each cohort together across runs");
+            rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+            return rv;
+        }
+
+        if (this.options.has("metrics-json")) {
+            this.metricsJson = options.valueOf("metrics-json").toString();
+        }
+        if (this.options.has("metrics-prom")) {
+            this.metricsProm = options.valueOf("metrics-prom").toString();
+        }
+
+        if (this.options.has("result-index")) {
+            this.results = new ResultIndex(new File(options.valueOf("result-index").toString()));
+            try {
+                results.load();
+            } catch (IOException e) {
+                Log.error("Could not read the result index in " + options.valueOf("result-index"), e);
+                rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                return rv;
+            }
+            if (this.options.has("invalidate-results")) {
+                for (String key : options.valueOf("invalidate-results").toString().split(",")) {
+                    for (ResultIndex.Run run : results.invalidate(key.trim())) {
+                        Log.stdout("Invalidated " + run.getName() + " (" + run.getFingerprint() + ")");
+                    }
+                }
+            }
+        }
+
+        if (this.options.has("submit-threads") && !this.options.has("test") && !this.options.has("dry-run")) {
+            int submitThreads = countOption("submit-threads", 1);
+            int maxSubmitting = countOption("max-submitting", submitThreads);
+            int interval = countOption("submit-interval", 0);
+            int attempts = countOption("submit-attempts", 3);
+            if (submitThreads < 1 || maxSubmitting < 1 || interval < 0 || attempts < 1) {
+                Log.error("--submit-threads, --max-submitting and --submit-attempts require a positive number, --submit-interval a number of seconds");
+                rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                return rv;
+            }
+            String host = this.options.has("host") ? options.valueOf("host").toString() : null;
+            this.scheduler = new SubmissionScheduler(new WorkflowSchedulerLauncher(options.valueOf("wf-accession").toString(), host, null),
+                    submitThreads, maxSubmitting, interval * 1000L, attempts, SUBMIT_BACKOFF_MILLIS);
+        }
+
+        if (this.options.has("reference-store")) {
+            this.referenceStore = options.valueOf("reference-store").toString();
+            if (!new File(referenceStore).isDirectory()) {
+                Log.error("--reference-store requires an existing directory");
+                rv.setExitStatus(ReturnValue.INVALIDARGUMENT);
+                return rv;
+            }
+        }
+
         if (this.options.has("template-type")) {
             this.templateType = options.valueOf("template-type").toString();
             if (!this.templateType.equals("EX")) { // check for template type
@@ -81,6 +287,21 @@ public class cnvkitDecider extends OicrDecider {
         return rv;
     }
 
+    /**
+     * The value of an integer option, the default if it is not given or -1 if
+     * it is not a number or negative.
+     */
+    private int countOption(String option, int defaultValue) {
+        if (!this.options.has(option)) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(-1, Integer.parseInt(options.valueOf(option).toString()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Final check
      *
@@ -91,24 +312,36 @@ public class cnvkitDecider extends OicrDecider {
      */
     @Override
     protected ReturnValue doFinalCheck(String commaSeparatedFilePaths, String commaSeparatedParentAccessions) {
+        long start = System.nanoTime();
+        finalChecked.addAll(Arrays.asList(commaSeparatedFilePaths.split(",")));
+        ReturnValue rv = finalCheck(commaSeparatedFilePaths, commaSeparatedParentAccessions);
+        metrics.time(DeciderMetrics.Phase.FINAL_CHECK, start);
+        metrics.count(rv.getExitStatus() == ReturnValue.SUCCESS
+                ? DeciderMetrics.Counter.FINAL_CHECK_PASSED : DeciderMetrics.Counter.FINAL_CHECK_FAILED, 1);
+        return rv;
+    }
+
+    private ReturnValue finalCheck(String commaSeparatedFilePaths, String commaSeparatedParentAccessions) {
         String[] filePaths = commaSeparatedFilePaths.split(",");
-        boolean haveBam = false;
+        if (referenceFor(filePaths) != null) {
+            return super.doFinalCheck(commaSeparatedFilePaths, commaSeparatedParentAccessions);
+        }
+        int tumours = 0;
 
         // Check for duplicate file names and exclude them from analysis
         for (String p : filePaths) {
+            BeSmall bs = pathToSmall.get(p);
+            if (bs == null) {
+                continue;
+            }
+            String tt = bs.getTissueType();
 
-            for (BeSmall bs : fileSwaToSmall.values()) {
-                if (!bs.getPath().equals(p)) {
-                    continue;
-                }
-                String tt = bs.getTissueType();
-
-                if (!tt.isEmpty() && !tt.equals("R")) {
-                    haveBam = true;
-                }
+            if (!tt.isEmpty() && !tt.equals("R")) {
+                tumours++;
             }
         }
-        if (haveBam && (filePaths.length == 1)) { // check one file per filePaths
+        // check one file per filePaths, or up to cohort-size tumour BAMs
+        if (tumours > 0 && tumours == filePaths.length && filePaths.length <= cohortSize) {
             return super.doFinalCheck(commaSeparatedFilePaths, commaSeparatedParentAccessions);
         }
         Log.error("Data not available, WON'T RUN");
@@ -117,94 +350,482 @@ public class cnvkitDecider extends OicrDecider {
 
     @Override
     protected boolean checkFileDetails(ReturnValue returnValue, FileMetadata fm) {
+        long start = System.nanoTime();
+        DeciderMetrics.Rule rule = rejectedBy(returnValue, fm);
+        metrics.time(DeciderMetrics.Phase.CHECK_FILE_DETAILS, start);
+        if (rule != null) {
+            metrics.reject(rule);
+            return false;
+        }
+        accepted.add(fm.getFilePath() + "");
+        return true;
+    }
+
+    /**
+     * The rule the file fails, or null if it can be processed. The decider's
+     * own checks while grouping call this directly, so that the counters and
+     * the timer of checkFileDetails only cover the calls from BasicDecider;
+     * IUS declined while grouping with a state file are counted there.
+     */
+    private DeciderMetrics.Rule rejectedBy(ReturnValue returnValue, FileMetadata fm) {
         Log.debug("CHECK FILE DETAILS:" + fm);
         String currentTtype = returnValue.getAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + "geo_library_source_template_type");
         String currentTissueType = returnValue.getAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + "geo_tissue_type");
 
         if (null == currentTissueType) {
-            return false; // we need only those which have their tissue type set
+            return DeciderMetrics.Rule.TISSUE_TYPE; // we need only those which have their tissue type set
         }
 
         // Filter the data of a different template type if filter is specified
         if (!this.templateType.equalsIgnoreCase(currentTtype)) {
             Log.warn("Excluding file with SWID = [" + returnValue.getAttribute(Header.FILE_SWA.getTitle())
                     + "] due to template type/geo_library_source_template_type = [" + currentTtype + "]");
-            return false;
+            return DeciderMetrics.Rule.TEMPLATE_TYPE;
         }
 
         // Do not process tumor tissues of type that doesn't match set parameter
         if (null != this.tumorType) {
-            return false;
+            return DeciderMetrics.Rule.TUMOR_TYPE;
         }
 
-        return super.checkFileDetails(returnValue, fm);
+        return super.checkFileDetails(returnValue, fm) ? null : DeciderMetrics.Rule.FILE_DETAILS;
     }
 
     @Override
     public Map<String, List<ReturnValue>> separateFiles(List<ReturnValue> vals, String groupBy) {
+        if (threads == 1) {
+            return separateFiles(vals.iterator(), groupBy);
+        }
+        long start = startSeparating();
         Log.debug("Number of files from file provenance = " + vals.size());
+        metrics.count(DeciderMetrics.Counter.RECORDS_SEEN, vals.size());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return separate(pool.invoke(new NewestPerIus(vals, 0, vals.size())), groupBy);
+        } finally {
+            pool.shutdown();
+            metrics.time(DeciderMetrics.Phase.SEPARATE_FILES, start);
+            separated = System.nanoTime();
+        }
+    }
 
-        // get files from study
-        Map<String, ReturnValue> iusDeetsToRV = new HashMap<String, ReturnValue>();
-        // Override the supplied group-by value
-        for (ReturnValue currentRV : vals) {
-            boolean metatypeOK = false;
+    /**
+     * Group file provenance records as they are read. Records without a BAM
+     * are dropped straight away and only the newest record for each IUS is
+     * kept, so memory grows with the number of groups rather than with the
+     * size of the provenance. That only holds for callers that stream the
+     * records: BasicDecider loads the whole provenance and passes it as a
+     * List. With a state file, BAMs older than the previous run are dropped
+     * as well and only the IUS whose newest BAM changed or whose run has not
+     * finished are returned.
+     *
+     * @param vals file provenance records, read once
+     * @param groupBy attribute that identifies a file
+     * @return the newest BAM of each IUS, grouped by IUS
+     */
+    public Map<String, List<ReturnValue>> separateFiles(Iterator<ReturnValue> vals, String groupBy) {
+        long start = startSeparating();
+        int index = 0;
+        Map<IusKey, Newest> iusDeetsToRV = new HashMap<IusKey, Newest>();
+        while (vals.hasNext()) {
+            Newest current = candidate(vals.next(), index);
+            if (current != null) {
+                keepNewest(iusDeetsToRV, current);
+            }
+            index++;
+        }
+        Log.debug("Number of files from file provenance = " + index);
+        metrics.count(DeciderMetrics.Counter.RECORDS_SEEN, index);
+        Map<String, List<ReturnValue>> groups = separate(iusDeetsToRV, groupBy);
+        metrics.time(DeciderMetrics.Phase.SEPARATE_FILES, start);
+        separated = System.nanoTime();
+        return groups;
+    }
 
-            for (int f = 0; f < currentRV.getFiles().size(); f++) {
-                try {
-                    if (currentRV.getFiles().get(f).getMetaType().equals(BAM_METATYPE)) {
-                        metatypeOK = true;
-                    }
-                } catch (Exception e) {
-                    Log.stderr("Error checking a file");
+    /**
+     * BasicDecider fetches the file provenance between init and
+     * separateFiles, time that gap once.
+     */
+    private long startSeparating() {
+        if (initialized != 0) {
+            metrics.time(DeciderMetrics.Phase.FETCH_PROVENANCE, initialized);
+            initialized = 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Turn the newest BAM of each IUS into workflow runs: the tumour groups
+     * or cohorts, plus one run for each capture kit whose pooled-normal
+     * reference has to be built.
+     */
+    private Map<String, List<ReturnValue>> separate(Map<IusKey, Newest> newest, String groupBy) {
+        poolNormals(newest.values());
+        Map<String, List<ReturnValue>> groups = packCohorts(group(sinceLastRun(newest), groupBy));
+        for (PooledReference reference : pendingReferences.values()) {
+            groups.put(REFERENCE_GROUP + reference.kit, reference.normals);
+        }
+        metrics.count(DeciderMetrics.Counter.GROUPS, groups.size());
+        return groups;
+    }
+
+    /**
+     * With a reference store, collect the normal BAMs of each capture kit
+     * that pass the file checks. The reference of a kit is stored under a
+     * fingerprint of its normals, so it is built again whenever a normal is
+     * added, removed or reprocessed. Kits whose reference is already in the
+     * store use it, the others get a run that builds it.
+     */
+    private void poolNormals(Collection<Newest> newest) {
+        if (referenceStore == null) {
+            return;
+        }
+        Map<String, List<Newest>> normals = new TreeMap<String, List<Newest>>();
+        for (Newest n : newest) {
+            String kit = n.small.getKit();
+            if (kit == null || kit.isEmpty() || !"R".equals(n.small.getTissueType()) || rejectedBy(n.rv, bamOf(n.rv)) != null) {
+                continue;
+            }
+            List<Newest> kitNormals = normals.get(kit);
+            if (kitNormals == null) {
+                kitNormals = new ArrayList<Newest>();
+                normals.put(kit, kitNormals);
+            }
+            kitNormals.add(n);
+        }
+        for (Map.Entry<String, List<Newest>> e : normals.entrySet()) {
+            String kit = e.getKey();
+            List<Newest> kitNormals = e.getValue();
+            Collections.sort(kitNormals, new Comparator<Newest>() {
+                @Override
+                public int compare(Newest a, Newest b) {
+                    return a.small.getPath().compareTo(b.small.getPath());
                 }
+            });
+            String path = referenceStore + File.separator + kit.replaceAll("[^A-Za-z0-9._-]", "_") + File.separator
+                    + fingerprint(kit, kitNormals) + File.separator + "reference.cnn";
+            if (new File(path).isFile()) {
+                kitReferences.put(kit, path);
+                continue;
             }
-
-            if (!metatypeOK) {
-                continue; // Go to the next value
+            PooledReference reference = new PooledReference(kit, path);
+            for (Newest n : kitNormals) {
+                reference.normals.add(n.rv);
+                reference.paths.add(n.small.getPath());
+                pathToSmall.put(n.small.getPath(), n.small);
             }
+            pendingReferences.put(kit, reference);
+            Log.stdout("Building the " + kit + " reference from " + kitNormals.size() + " normals, its tumours wait for " + path);
+        }
+    }
 
-            BeSmall currentSmall = new BeSmall(currentRV);
-            fileSwaToSmall.put(currentRV.getAttribute(groupBy), currentSmall);
-
-            String fileDeets = currentSmall.getIusDetails();
-            Date currentDate = currentSmall.getDate();
+    /**
+     * SHA-256 of the capture kit and the path and md5sum of each normal, in
+     * path order.
+     */
+    private static String fingerprint(String kit, List<Newest> normals) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha.update(kit.getBytes(StandardCharsets.UTF_8));
+        for (Newest n : normals) {
+            sha.update(("\n" + n.small.getPath() + "\t" + bamOf(n.rv).getMd5sum()).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
 
-            //if there is no entry yet, add it
-            if (iusDeetsToRV.get(fileDeets) == null) {
-                iusDeetsToRV.put(fileDeets, currentRV);
-            } //if there is an entry, compare the current value to the 'old' one in
-            //the map. if the current date is newer than the 'old' date, replace
-            //it in the map
-            else {
-                ReturnValue oldRV = iusDeetsToRV.get(fileDeets);
-                BeSmall oldSmall = fileSwaToSmall.get(oldRV.getAttribute(Header.FILE_SWA.getTitle()));
-                Date oldDate = oldSmall.getDate();
-                if (currentDate.after(oldDate)) {
-                    iusDeetsToRV.put(fileDeets, currentRV);
-                }
+    /**
+     * The reference being built from exactly these BAMs, or null.
+     */
+    private PooledReference referenceFor(String[] filePaths) {
+        Set<String> paths = new TreeSet<String>(Arrays.asList(filePaths));
+        for (PooledReference reference : pendingReferences.values()) {
+            if (reference.paths.equals(paths)) {
+                return reference;
             }
         }
+        return null;
+    }
 
-        //only use those files that entered into the iusDeetsToRV
-        //since it's a map, only the most recent values
-        List<ReturnValue> newValues = new ArrayList<ReturnValue>(iusDeetsToRV.values());
-        Map<String, List<ReturnValue>> map = new HashMap<String, List<ReturnValue>>();
+    /**
+     * Tumours of a kit whose reference is built by this run are held back
+     * until a later run finds it in the store.
+     */
+    private boolean waitsForReference(BeSmall small) {
+        return small.getKit() != null && pendingReferences.containsKey(small.getKit()) && !"R".equals(small.getTissueType());
+    }
+
+    /**
+     * Group the kept records by IUS, in provenance order so that the result
+     * does not depend on how the records were split between threads.
+     */
+    private Map<String, List<ReturnValue>> group(Collection<Newest> newest, String groupBy) {
+        List<Newest> ordered = new ArrayList<Newest>(newest);
+        Collections.sort(ordered, new Comparator<Newest>() {
+            @Override
+            public int compare(Newest a, Newest b) {
+                return Integer.compare(a.index, b.index);
+            }
+        });
 
         //group files according to the designated header (e.g. sample SWID)
-        for (ReturnValue r : newValues) {
-            String currVal = fileSwaToSmall.get(r.getAttribute(Header.FILE_SWA.getTitle())).getGroupByAttribute();
+        Map<String, List<ReturnValue>> map = new HashMap<String, List<ReturnValue>>();
+        for (Newest n : ordered) {
+            fileSwaToSmall.put(n.rv.getAttribute(groupBy), n.small);
+            pathToSmall.put(n.small.getPath(), n.small);
+
+            String currVal = n.small.getGroupByAttribute();
             List<ReturnValue> vs = map.get(currVal);
             if (vs == null) {
                 vs = new ArrayList<ReturnValue>();
+                map.put(currVal, vs);
             }
-            vs.add(r);
-            map.put(currVal, vs);
+            vs.add(n.rv);
         }
 
         return map;
     }
 
+    /**
+     * The record as a candidate for the newest BAM of its IUS, or null if it
+     * has no BAM or is older than the previous run and its IUS has a finished
+     * run.
+     */
+    private Newest candidate(ReturnValue rv, int index) {
+        if (!hasBam(rv)) {
+            metrics.reject(DeciderMetrics.Rule.METATYPE);
+            return null;
+        }
+        long date = processingDate(rv);
+        // every normal is needed to fingerprint the pooled reference of its kit
+        if (date < watermark && !(referenceStore != null
+                && "R".equals(rv.getAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + Lims.TISSUE_TYPE.getAttributeTitle())))
+                && (unsettled.isEmpty() || !unsettled.contains(iusKey(rv, new FileAttributes(rv, rv.getFiles().get(0)))))) {
+            metrics.reject(DeciderMetrics.Rule.OLDER_THAN_WATERMARK);
+            return null;
+        }
+        return new Newest(rv, new BeSmall(rv, date), index);
+    }
+
+    /**
+     * Without a state file every IUS is returned. With one, only the tumour
+     * IUS whose newest BAM is not the one recorded by the previous run, or
+     * whose last run has not finished, so that BasicDecider can check it and
+     * launch it again if it failed. IUS are recorded as pending here and only
+     * as scheduled once their run is, see {@link #recordRun}. IUS waiting for
+     * the reference of their kit are recorded as pending but not returned.
+     * IUS the file checks reject are recorded as declined with their BAM and
+     * are not returned again until they get a newer one.
+     */
+    private Collection<Newest> sinceLastRun(Map<IusKey, Newest> newest) {
+        if (stateFile == null && pendingReferences.isEmpty()) {
+            return newest.values();
+        }
+        List<Newest> changed = new ArrayList<Newest>();
+        int held = 0;
+        int declined = 0;
+        for (Map.Entry<IusKey, Newest> e : newest.entrySet()) {
+            Newest n = e.getValue();
+            long date = n.small.getDate();
+            if (stateFile == null) {
+                if (waitsForReference(n.small)) {
+                    held++;
+                } else {
+                    changed.add(n);
+                }
+                continue;
+            }
+            // a normal never makes a run of its own
+            if ("R".equals(n.small.getTissueType())) {
+                continue;
+            }
+            watermark = Math.max(watermark, date);
+            Seen seen = lastRun.get(e.getKey());
+            if (seen != null && seen.date >= date && isFinished(seen)) {
+                continue;
+            }
+            DeciderMetrics.Rule rule = rejectedBy(n.rv, bamOf(n.rv));
+            if (rule != null) {
+                // BasicDecider would reject it on every run
+                metrics.reject(rule);
+                lastRun.put(e.getKey(), new Seen(date, n.rv.getAttribute(Header.FILE_SWA.getTitle()), n.small.getPath(),
+                        Seen.DECLINED, null));
+                declined++;
+                continue;
+            }
+            if (seen == null || seen.date < date) {
+                lastRun.put(e.getKey(), new Seen(date, n.rv.getAttribute(Header.FILE_SWA.getTitle()), n.small.getPath(),
+                        Seen.PENDING, null));
+            }
+            if (waitsForReference(n.small)) {
+                held++;
+                continue;
+            }
+            returned.put(n.small.getPath(), e.getKey());
+            changed.add(n);
+        }
+        metrics.count(DeciderMetrics.Counter.WAITING_FOR_REFERENCE, held);
+        if (held > 0) {
+            Log.stdout(held + " IUS wait for the reference of their capture kit");
+        }
+        if (stateFile == null) {
+            return changed;
+        }
+        stateChanged = true;
+        if (declined > 0) {
+            Log.stdout(declined + " IUS with a new BAM do not pass the file checks and are not considered again until they get a newer one");
+        }
+        Log.stdout(changed.size() + " of " + lastRun.size() + " IUS have a new BAM or no finished run since the previous run");
+        return changed;
+    }
+
+    /**
+     * A recorded run has finished once the workflow wrote its marker. A
+     * declined IUS has no run to wait for.
+     */
+    private static boolean isFinished(Seen seen) {
+        return seen.state.equals(Seen.DONE) || seen.state.equals(Seen.DECLINED)
+                || (seen.state.equals(Seen.SCHEDULED) && new File(seen.marker).isFile());
+    }
+
+    /**
+     * Record the IUS of a run that was scheduled, with the marker its
+     * workflow writes when it finishes, or as done if a finished run was
+     * reused.
+     */
+    private void recordRun(String commaSeparatedFilePaths, Map<String, String> iniFileMap, boolean done) {
+        String marker = iniFileMap.get("result_marker_dir") + File.separator + iniFileMap.get("result_fingerprint");
+        for (String path : commaSeparatedFilePaths.split(",")) {
+            IusKey key = returned.get(path);
+            Seen seen = key == null ? null : lastRun.get(key);
+            if (seen != null) {
+                lastRun.put(key, new Seen(seen.date, seen.fileSwa, seen.path, done ? Seen.DONE : Seen.SCHEDULED, marker));
+            }
+        }
+    }
+
+    /**
+     * BasicDecider does not launch a group that already has a run, and does
+     * not say so. A pending IUS that passed the file checks but never got to
+     * the final check is taken to be done by a run from before the state
+     * file. The IUS of runs scheduled by this decider are only done once
+     * their marker is written.
+     */
+    private void settleDeclined() {
+        for (Map.Entry<String, IusKey> e : returned.entrySet()) {
+            Seen seen = lastRun.get(e.getValue());
+            if (seen != null && seen.state.equals(Seen.PENDING) && accepted.contains(e.getKey())
+                    && !finalChecked.contains(e.getKey())) {
+                lastRun.put(e.getValue(), new Seen(seen.date, seen.fileSwa, seen.path, Seen.DONE, null));
+            }
+        }
+    }
+
+    /**
+     * Pack the tumour BAMs that pass the file checks into groups of up to
+     * cohort-size BAMs, each becoming one workflow run. BAMs whose run has not
+     * finished go back into the cohort of that run, so that BasicDecider finds
+     * the run under the same files. Only the BAMs without a run are packed,
+     * in group name order, so a new IUS never moves a BAM to another cohort.
+     * A cohort is named after its first group. With a reference store, BAMs of
+     * different capture kits are never packed together, as each kit is called
+     * against its own reference.
+     */
+    private Map<String, List<ReturnValue>> packCohorts(Map<String, List<ReturnValue>> groups) {
+        if (cohortSize == 1) {
+            return groups;
+        }
+        Map<String, List<ReturnValue>> cohorts = new HashMap<String, List<ReturnValue>>();
+        // the cohort being filled for each capture kit and its name
+        Map<String, List<ReturnValue>> open = new TreeMap<String, List<ReturnValue>>();
+        Map<String, String> names = new HashMap<String, String>();
+        // marker of an unfinished run to the name of its cohort
+        Map<String, String> runs = new HashMap<String, String>();
+        for (String key : new TreeSet<String>(groups.keySet())) {
+            for (ReturnValue rv : groups.get(key)) {
+                BeSmall small = pathToSmall.get(rv.getFiles().get(0).getFilePath() + "");
+                String tt = small.getTissueType();
+                if (tt == null || tt.isEmpty() || tt.equals("R") || rejectedBy(rv, bamOf(rv)) != null) {
+                    continue;
+                }
+                IusKey ius = returned.get(small.getPath());
+                Seen seen = ius == null ? null : lastRun.get(ius);
+                if (seen != null && seen.state.equals(Seen.SCHEDULED)) {
+                    String name = runs.get(seen.marker);
+                    if (name == null) {
+                        name = key;
+                        runs.put(seen.marker, name);
+                        cohorts.put(name, new ArrayList<ReturnValue>());
+                    }
+                    cohorts.get(name).add(rv);
+                    continue;
+                }
+                String kit = referenceStore == null || small.getKit() == null ? "" : small.getKit();
+                List<ReturnValue> cohort = open.get(kit);
+                if (cohort == null || cohort.size() == cohortSize) {
+                    if (cohort != null) {
+                        cohorts.put(names.get(kit), cohort);
+                    }
+                    cohort = new ArrayList<ReturnValue>();
+                    open.put(kit, cohort);
+                    names.put(kit, key);
+                }
+                cohort.add(rv);
+            }
+        }
+        for (Map.Entry<String, List<ReturnValue>> e : open.entrySet()) {
+            cohorts.put(names.get(e.getKey()), e.getValue());
+        }
+        Log.stdout("Packed " + groups.size() + " groups into " + cohorts.size() + " cohorts of up to " + cohortSize + " BAMs");
+        return cohorts;
+    }
+
+    /**
+     * Keep a record if there is no entry for its IUS yet or if it is newer
+     * than the entry in the map.
+     */
+    private static void keepNewest(Map<IusKey, Newest> iusDeetsToRV, Newest current) {
+        IusKey fileDeets = current.small.getIusDetails();
+        Newest old = iusDeetsToRV.get(fileDeets);
+        if (old == null || current.isNewerThan(old)) {
+            iusDeetsToRV.put(fileDeets, current);
+        }
+    }
+
+    private static long processingDate(ReturnValue rv) {
+        try {
+            return FORMAT.get().parse(rv.getAttribute(Header.PROCESSING_DATE.getTitle())).getTime();
+        } catch (ParseException ex) {
+            Log.error("Bad date!", ex);
+            ex.printStackTrace();
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static boolean hasBam(ReturnValue rv) {
+        return bamOf(rv) != null;
+    }
+
+    private static FileMetadata bamOf(ReturnValue rv) {
+        for (FileMetadata fm : rv.getFiles()) {
+            try {
+                if (fm.getMetaType().equals(BAM_METATYPE)) {
+                    return fm;
+                }
+            } catch (Exception e) {
+                Log.stderr("Error checking a file");
+            }
+        }
+        return null;
+    }
+
     @Override
     protected String handleGroupByAttribute(String attribute) {
         String a = super.handleGroupByAttribute(attribute);
@@ -217,32 +838,155 @@ public class cnvkitDecider extends OicrDecider {
 
     @Override
     protected Map<String, String> modifyIniFile(String commaSeparatedFilePaths, String commaSeparatedParentAccessions) {
+        long start = System.nanoTime();
+        aborted = false;
+        reused = false;
+        Map<String, String> iniFileMap = iniFile(commaSeparatedFilePaths, commaSeparatedParentAccessions);
+        boolean tumours = referenceFor(commaSeparatedFilePaths.split(",")) == null;
+        if (results != null && !aborted && tumours) {
+            reused = reuse(iniFileMap);
+        }
+        if (stateFile != null && !aborted && tumours && !iniFileMap.containsKey("result_fingerprint")) {
+            // the workflow leaves a marker when it finishes, which tells the next decider run it is done
+            iniFileMap.put("result_fingerprint", UUID.randomUUID().toString());
+            iniFileMap.put("result_marker_dir", new File(stateFile).getAbsolutePath() + ".done");
+        }
+        if (scheduler != null && !aborted && !reused) {
+            // BasicDecider would launch the run right away, submit it with the others in clean_up
+            List<String> fileSwas = new ArrayList<String>();
+            for (String path : commaSeparatedFilePaths.split(",")) {
+                BeSmall small = pathToSmall.get(path);
+                if (small != null) {
+                    fileSwas.add(small.getFileSwa());
+                }
+            }
+            SubmissionScheduler.Submission submission = new SubmissionScheduler.Submission(
+                    iniFileMap.get("output_filename_prefix").split(",")[0], iniFileMap, commaSeparatedParentAccessions,
+                    StringUtils.join(fileSwas, ","), this.queue);
+            submissions.add(submission);
+            submittedPaths.put(submission, commaSeparatedFilePaths);
+            abortSchedulingOfCurrentWorkflowRun();
+        } else if (stateFile != null && !aborted && tumours) {
+            recordRun(commaSeparatedFilePaths, iniFileMap, reused && results.get(iniFileMap.get("result_fingerprint")).isDone());
+        }
+        metrics.time(DeciderMetrics.Phase.MODIFY_INI, start);
+        metrics.count(aborted ? DeciderMetrics.Counter.RUNS_ABORTED
+                : reused ? DeciderMetrics.Counter.RUNS_REUSED : DeciderMetrics.Counter.RUNS_SCHEDULED, 1);
+        return iniFileMap;
+    }
+
+    /**
+     * With a result index, a run is not scheduled if a run with the same
+     * fingerprint has finished, or was scheduled by this decider run, e.g. for
+     * the same BAM in another study. Otherwise it is recorded and the workflow
+     * leaves a marker in the index when it finishes.
+     *
+     * @return true if the run was not scheduled
+     */
+    private boolean reuse(Map<String, String> iniFileMap) {
+        String name = iniFileMap.get("output_filename_prefix");
+        String fingerprint;
+        try {
+            fingerprint = fingerprint(iniFileMap);
+        } catch (IOException e) {
+            Log.error("Could not fingerprint " + name + ", scheduling it anyway", e);
+            return false;
+        }
+        if (fingerprint == null) {
+            Log.stdout("Not looking for a finished run of " + name + ", the file provenance has no md5sum for one of its BAMs");
+            return false;
+        }
+        iniFileMap.put("result_fingerprint", fingerprint);
+        iniFileMap.put("result_marker_dir", results.getMarkerDir().getAbsolutePath());
+        ResultIndex.Run run = results.get(fingerprint);
+        if (run != null && (run.isDone() || fingerprints.contains(fingerprint))) {
+            String by = !run.isDone() ? "a run scheduled just now"
+                    : run.getAccession() == null ? "a finished run" : "workflow run " + run.getAccession();
+            Log.stdout("Not scheduling " + name + ", " + by + " (" + run.getName() + ") has the same inputs and parameters, fingerprint "
+                    + fingerprint);
+            abortSchedulingOfCurrentWorkflowRun();
+            return true;
+        }
+        results.scheduled(fingerprint, name);
+        fingerprints.add(fingerprint);
+        return false;
+    }
+
+    /**
+     * SHA-256 of the workflow accession, which pins the bundle and so the
+     * cnvkit install and default parameters, the md5sum of each BAM from the
+     * file provenance, the md5sum of the reference if it is not the bundle's
+     * and the other ini entries. BAMs are too large to read over NFS for
+     * this, so a run with a BAM that has no md5sum in the provenance has no
+     * fingerprint.
+     *
+     * @return the fingerprint, or null
+     */
+    private String fingerprint(Map<String, String> iniFileMap) throws IOException {
+        List<String> parts = new ArrayList<String>();
+        parts.add("workflow\t" + (options.has("wf-accession") ? options.valueOf("wf-accession") : ""));
+        for (String path : iniFileMap.get("input_bam_file").split(",")) {
+            BeSmall bs = pathToSmall.get(path);
+            String md5 = bs == null ? null : bs.getMd5sum();
+            if (md5 == null || md5.isEmpty()) {
+                return null;
+            }
+            parts.add("bam\t" + md5);
+        }
+        String reference = iniFileMap.get("input_files_normal");
+        if (reference != null) {
+            parts.add("reference\t" + results.md5(new File(reference.trim())));
+        }
+        for (Map.Entry<String, String> e : new TreeMap<String, String>(iniFileMap).entrySet()) {
+            if (!NOT_FINGERPRINTED.contains(e.getKey())) {
+                parts.add("param\t" + e.getKey() + "=" + e.getValue());
+            }
+        }
+        return ResultIndex.fingerprint(parts);
+    }
+
+    private Map<String, String> iniFile(String commaSeparatedFilePaths, String commaSeparatedParentAccessions) {
 
         String[] filePaths = commaSeparatedFilePaths.split(",");
-        String inputBam = new String();
+        PooledReference reference = referenceFor(filePaths);
+        if (reference != null) {
+            return referenceIniFile(reference, filePaths, commaSeparatedFilePaths, commaSeparatedParentAccessions);
+        }
+        List<String> inputBams = new ArrayList<String>();
+        List<String> baseNames = new ArrayList<String>();
         for (String p : filePaths) {
-            for (BeSmall bs : fileSwaToSmall.values()) {
-                if (!bs.getPath().equals(p)) {
-                    continue;
-                }
-                String tt = bs.getTissueType();
-                if (!tt.isEmpty()) {
-                    Log.stdout("WRITING TO INI FILE ... " + bs.getPath());
-                    this.baseName = FilenameUtils.getBaseName(bs.getPath());
-                    inputBam = bs.getPath();
-                } else {
-                    Log.error("THE DONOR does not have data to run the workflow");
-                    abortSchedulingOfCurrentWorkflowRun();
+            BeSmall bs = pathToSmall.get(p);
+            if (bs == null) {
+                continue;
+            }
+            String tt = bs.getTissueType();
+            if (!tt.isEmpty()) {
+                Log.stdout("WRITING TO INI FILE ... " + bs.getPath());
+                this.baseName = FilenameUtils.getBaseName(bs.getPath());
+                // the workflow needs a distinct output prefix for each BAM of a cohort
+                while (baseNames.contains(this.baseName)) {
+                    this.baseName += "_" + baseNames.size();
                 }
+                inputBams.add(bs.getPath());
+                baseNames.add(this.baseName);
+            } else {
+                Log.error("THE DONOR does not have data to run the workflow");
+                aborted = true;
+                abortSchedulingOfCurrentWorkflowRun();
             }
         }
         Map<String, String> iniFileMap = super.modifyIniFile(commaSeparatedFilePaths, commaSeparatedParentAccessions);
-        iniFileMap.put("input_bam_file", inputBam);
+        iniFileMap.put("input_bam_file", StringUtils.join(inputBams, ","));
         iniFileMap.put("data_dir", "data");
         iniFileMap.put("template_type", this.templateType);
-        iniFileMap.put("output_filename_prefix", this.baseName);
+        iniFileMap.put("output_filename_prefix", StringUtils.join(baseNames, ","));
         iniFileMap.put("cnvkit_mem", this.cnvkitmem);
         iniFileMap.put("sample_name", this.samplename);
+        BeSmall first = pathToSmall.get(filePaths[0]);
+        if (first != null && first.getKit() != null && kitReferences.containsKey(first.getKit())) {
+            // a pooled reference replaces the flat one from the workflow ini
+            iniFileMap.put("input_files_normal", kitReferences.get(first.getKit()));
+        }
 
         if (!this.queue.isEmpty()) {
             iniFileMap.put("queue", this.queue);
@@ -252,6 +996,126 @@ public class cnvkitDecider extends OicrDecider {
 //        return super.modifyIniFile(commaSeparatedFilePaths, commaSeparatedParentAccessions);
     }
 
+    /**
+     * A run that covers the normals of a capture kit and copies the pooled
+     * reference into the store.
+     */
+    private Map<String, String> referenceIniFile(PooledReference reference, String[] filePaths,
+            String commaSeparatedFilePaths, String commaSeparatedParentAccessions) {
+        List<String> baseNames = new ArrayList<String>();
+        for (String p : filePaths) {
+            String name = FilenameUtils.getBaseName(p);
+            while (baseNames.contains(name)) {
+                name += "_" + baseNames.size();
+            }
+            baseNames.add(name);
+        }
+        Log.stdout("WRITING TO INI FILE ... " + reference.kit + " reference from " + filePaths.length + " normals");
+        Map<String, String> iniFileMap = super.modifyIniFile(commaSeparatedFilePaths, commaSeparatedParentAccessions);
+        iniFileMap.put("input_bam_file", commaSeparatedFilePaths);
+        iniFileMap.put("data_dir", "data");
+        iniFileMap.put("template_type", this.templateType);
+        iniFileMap.put("output_filename_prefix", StringUtils.join(baseNames, ","));
+        iniFileMap.put("cnvkit_mem", this.cnvkitmem);
+        iniFileMap.put("reference_output", reference.path);
+
+        if (!this.queue.isEmpty()) {
+            iniFileMap.put("queue", this.queue);
+        }
+        return iniFileMap;
+    }
+
+    @Override
+    public ReturnValue clean_up() {
+        if (separated != 0) {
+            metrics.time(DeciderMetrics.Phase.SCHEDULE, separated);
+        }
+        ReturnValue rv = submitAll();
+        long start = System.nanoTime();
+        if (results != null && !options.has("test") && !options.has("dry-run")) {
+            try {
+                results.save();
+            } catch (IOException e) {
+                Log.error("Could not write the result index " + options.valueOf("result-index"), e);
+            }
+        }
+        if (stateFile != null && stateChanged) {
+            if (options.has("test") || options.has("dry-run")) {
+                Log.stdout("Not updating " + stateFile + ", nothing was scheduled");
+            } else {
+                // the IUS of runs that could not be submitted are still pending and considered again next time
+                settleDeclined();
+                try {
+                    saveState(new File(stateFile));
+                } catch (IOException e) {
+                    Log.error("Could not write the state file " + stateFile, e);
+                    if (rv == null) {
+                        rv = new ReturnValue(ReturnValue.FILENOTWRITABLE);
+                    }
+                }
+            }
+        }
+        if (rv == null) {
+            rv = super.clean_up();
+        }
+        metrics.time(DeciderMetrics.Phase.CLEAN_UP, start);
+        writeMetrics();
+        return rv;
+    }
+
+    /**
+     * Submit the runs held back by modifyIniFile.
+     *
+     * @return null if all of them were submitted
+     */
+    private ReturnValue submitAll() {
+        if (submissions.isEmpty()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Log.stdout("Submitting " + submissions.size() + " workflow runs");
+        try {
+            int failed = 0;
+            for (SubmissionScheduler.Result result : scheduler.submit(submissions)) {
+                metrics.count(DeciderMetrics.Counter.SUBMIT_RETRIES, result.getAttempts() - 1);
+                if (result.isSubmitted()) {
+                    metrics.count(DeciderMetrics.Counter.RUNS_SUBMITTED, 1);
+                    String paths = submittedPaths.get(result.getSubmission());
+                    if (stateFile != null && paths != null) {
+                        recordRun(paths, result.getSubmission().getIni(), false);
+                    }
+                    Log.stdout("Scheduled " + result.getSubmission().getName() + " as workflow run " + result.getAccession());
+                } else {
+                    metrics.count(DeciderMetrics.Counter.SUBMIT_FAILED, 1);
+                    failed++;
+                }
+            }
+            return failed == 0 ? null : new ReturnValue(ReturnValue.FAILURE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ReturnValue(ReturnValue.FAILURE);
+        } finally {
+            metrics.time(DeciderMetrics.Phase.SUBMIT, start);
+        }
+    }
+
+    /**
+     * The metrics are for monitoring only, failing to write them does not
+     * fail the run.
+     */
+    private void writeMetrics() {
+        try {
+            if (metricsJson != null) {
+                DeciderMetrics.write(new File(metricsJson), metrics.toJson());
+            }
+            if (metricsProm != null) {
+                DeciderMetrics.write(new File(metricsProm), metrics.toPrometheus());
+            }
+        } catch (IOException e) {
+            Log.error("Could not write the decider metrics", e);
+        }
+    }
+
     public static void main(String args[]) {
 
         List<String> params = new ArrayList<String>();
@@ -264,77 +1128,323 @@ public class cnvkitDecider extends OicrDecider {
 
     }
 
-    private class BeSmall {
+    private IusKey iusKey(ReturnValue rv, FileAttributes fa) {
+        return new IusKey(intern(fa.getLibrarySample()), intern(fa.getSequencerRun()), intern(fa.getLane()),
+                intern(fa.getBarcode()), intern(rv.getAttribute(Header.WORKFLOW_NAME.getTitle())));
+    }
 
-        private Date date = null;
-        private String iusDetails = null;
-        private String groupByAttribute = null;
-        private String tissueType = null;
-        private String path = null;
-        private String extName = null;
-        private String groupID = null;
-        private String groupDescription = null;
-        private String workflowName = null;
-
-        public BeSmall(ReturnValue rv) {
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String known = dictionary.putIfAbsent(value, value);
+        return known == null ? value : known;
+    }
+
+    /**
+     * Read the watermark and the newest BAM of each IUS saved by the previous
+     * run. The first line is the watermark, then one line per IUS with its
+     * library, run, lane, barcode, workflow, processing date, file SWID,
+     * path, the state of its run (pending, scheduled, done or declined) and the marker
+     * the run writes when it finishes, separated by tabs. Lines without the
+     * last two fields are from before runs were recorded and count as done.
+     */
+    private void loadState(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(STATE_HEADER)) {
+                throw new IOException("Not a decider state file: " + file);
+            }
             try {
-                date = format.parse(rv.getAttribute(Header.PROCESSING_DATE.getTitle()));
-            } catch (ParseException ex) {
-                Log.error("Bad date!", ex);
-                ex.printStackTrace();
+                watermark = Long.parseLong(line.substring(STATE_HEADER.length()));
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 8 && f.length != 10) {
+                        throw new IOException("Malformed line in " + file + ": " + line);
+                    }
+                    IusKey key = new IusKey(intern(unescape(f[0])), intern(unescape(f[1])), intern(unescape(f[2])),
+                            intern(unescape(f[3])), intern(unescape(f[4])));
+                    Seen seen = f.length == 8 ? new Seen(Long.parseLong(f[5]), f[6], f[7], Seen.DONE, null)
+                            : new Seen(Long.parseLong(f[5]), f[6], f[7], Seen.parseState(f[8]), unescape(f[9]));
+                    lastRun.put(key, seen);
+                    if (!seen.state.equals(Seen.DONE) && !seen.state.equals(Seen.DECLINED)) {
+                        unsettled.add(key);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in " + file, e);
             }
-            FileAttributes fa = new FileAttributes(rv, rv.getFiles().get(0));
-            workflowName = rv.getAttribute(Header.WORKFLOW_NAME.getTitle());
-            iusDetails = fa.getLibrarySample() + fa.getSequencerRun() + fa.getLane() + fa.getBarcode() + workflowName;
-            tissueType = fa.getLimsValue(Lims.TISSUE_TYPE);
-            extName = rv.getAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + "geo_external_name");
-            if (null == extName || extName.isEmpty()) {
-                extName = "NA";
-            }
-            groupID = fa.getLimsValue(Lims.GROUP_ID);
-            if (null == groupID || groupID.isEmpty()) {
-                groupID = "NA";
-            }
-            groupDescription = fa.getLimsValue(Lims.GROUP_DESC);
-            if (null == groupDescription || groupDescription.isEmpty()) {
-                groupDescription = "NA";
-            }
-            groupByAttribute = iusDetails;
-            path = rv.getFiles().get(0).getFilePath() + "";
+        } finally {
+            in.close();
         }
+        Log.stdout("Loaded " + lastRun.size() + " IUS from " + file);
+    }
 
-        public Date getDate() {
-            return date;
+    /**
+     * Write the state next to the old one and move it over, so that a failed
+     * write leaves the previous state in place.
+     */
+    private void saveState(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            out.write(STATE_HEADER + watermark + "\n");
+            for (Map.Entry<IusKey, Seen> e : lastRun.entrySet()) {
+                IusKey k = e.getKey();
+                Seen v = e.getValue();
+                out.write(escape(k.librarySample) + "\t" + escape(k.sequencerRun) + "\t" + escape(k.lane) + "\t"
+                        + escape(k.barcode) + "\t" + escape(k.workflowName) + "\t" + v.date + "\t" + v.fileSwa + "\t"
+                        + v.path + "\t" + v.state + "\t" + escape(v.marker) + "\n");
+            }
+        } finally {
+            out.close();
         }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Log.stdout("Saved " + lastRun.size() + " IUS to " + file);
+    }
+
+    private static String escape(String value) {
+        return value == null ? NULL_FIELD : value;
+    }
+
+    private static String unescape(String field) {
+        return field.equals(NULL_FIELD) ? null : field;
+    }
+
+    /**
+     * The fields that identify a lane of sequencing processed by one workflow.
+     * Its string form is the concatenation used as the group name.
+     */
+    private static final class IusKey {
+
+        private final String librarySample;
+        private final String sequencerRun;
+        private final String lane;
+        private final String barcode;
+        private final String workflowName;
+        private final int hash;
+
+        IusKey(String librarySample, String sequencerRun, String lane, String barcode, String workflowName) {
+            this.librarySample = librarySample;
+            this.sequencerRun = sequencerRun;
+            this.lane = lane;
+            this.barcode = barcode;
+            this.workflowName = workflowName;
+            this.hash = Arrays.hashCode(new Object[]{librarySample, sequencerRun, lane, barcode, workflowName});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IusKey)) {
+                return false;
+            }
+            IusKey k = (IusKey) o;
+            return hash == k.hash && equal(librarySample, k.librarySample) && equal(sequencerRun, k.sequencerRun)
+                    && equal(lane, k.lane) && equal(barcode, k.barcode) && equal(workflowName, k.workflowName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return librarySample + sequencerRun + lane + barcode + workflowName;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * The record currently kept for an IUS.
+     */
+    private static final class Newest {
+
+        private final ReturnValue rv;
+        private final BeSmall small;
+        // position in the file provenance
+        private final int index;
+
+        Newest(ReturnValue rv, BeSmall small, int index) {
+            this.rv = rv;
+            this.small = small;
+            this.index = index;
+        }
+
+        /**
+         * Later processing dates win, on the same date the record that comes
+         * first in the provenance does, as it would when reading in order.
+         */
+        boolean isNewerThan(Newest other) {
+            long date = small.getDate();
+            long otherDate = other.small.getDate();
+            return date > otherDate || (date == otherDate && index < other.index);
+        }
+    }
+
+    /**
+     * The newest BAM of an IUS and its run as recorded in the state file.
+     */
+    private static final class Seen {
+
+        private static final String PENDING = "pending";
+        private static final String SCHEDULED = "scheduled";
+        private static final String DONE = "done";
+        // rejected by the file checks, no run
+        private static final String DECLINED = "declined";
 
-        public void setDate(Date date) {
+        private final long date;
+        private final String fileSwa;
+        private final String path;
+        private final String state;
+        // written by the workflow when the run finishes, null if there is no run
+        private final String marker;
+
+        Seen(long date, String fileSwa, String path, String state, String marker) {
             this.date = date;
+            this.fileSwa = fileSwa;
+            this.path = path;
+            this.state = state;
+            this.marker = marker;
         }
 
-        public String getGroupByAttribute() {
-            return groupByAttribute;
+        static String parseState(String field) throws IOException {
+            for (String state : Arrays.asList(PENDING, SCHEDULED, DONE, DECLINED)) {
+                if (state.equals(field)) {
+                    return state;
+                }
+            }
+            throw new IOException("Unknown run state " + field);
+        }
+    }
+
+    /**
+     * The normals of a capture kit and where their pooled reference goes.
+     */
+    private static final class PooledReference {
+
+        private final String kit;
+        private final String path;
+        private final List<ReturnValue> normals = new ArrayList<ReturnValue>();
+        private final Set<String> paths = new TreeSet<String>();
+
+        PooledReference(String kit, String path) {
+            this.kit = kit;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The newest BAM record per IUS for a range of the file provenance,
+     * splitting the range in halves until it is small enough for one task.
+     */
+    private class NewestPerIus extends RecursiveTask<Map<IusKey, Newest>> {
+
+        private static final long serialVersionUID = 1L;
+        private final List<ReturnValue> vals;
+        private final int from;
+        private final int to;
+
+        NewestPerIus(List<ReturnValue> vals, int from, int to) {
+            this.vals = vals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<IusKey, Newest> compute() {
+            if (to - from <= RECORDS_PER_TASK) {
+                Map<IusKey, Newest> newest = new HashMap<IusKey, Newest>();
+                for (int i = from; i < to; i++) {
+                    Newest current = candidate(vals.get(i), i);
+                    if (current != null) {
+                        keepNewest(newest, current);
+                    }
+                }
+                return newest;
+            }
+            int middle = (from + to) >>> 1;
+            NewestPerIus left = new NewestPerIus(vals, from, middle);
+            left.fork();
+            Map<IusKey, Newest> newest = new NewestPerIus(vals, middle, to).compute();
+            for (Newest n : left.join().values()) {
+                keepNewest(newest, n);
+            }
+            return newest;
         }
+    }
+
+    private class BeSmall {
 
-        public void setGroupByAttribute(String groupByAttribute) {
-            this.groupByAttribute = groupByAttribute;
+        // processing date in epoch milliseconds, Long.MIN_VALUE if it could not be parsed
+        private final long date;
+        private final IusKey iusDetails;
+        private final String fileSwa;
+        private final String tissueType;
+        // capture kit, normals of the same kit make up a pooled reference
+        private final String kit;
+        private final String path;
+        private final String md5sum;
+        private final String extName;
+        private final String groupID;
+        private final String groupDescription;
+
+        public BeSmall(ReturnValue rv, long date) {
+            this.date = date;
+            FileAttributes fa = new FileAttributes(rv, rv.getFiles().get(0));
+            iusDetails = iusKey(rv, fa);
+            fileSwa = rv.getAttribute(Header.FILE_SWA.getTitle());
+            tissueType = intern(fa.getLimsValue(Lims.TISSUE_TYPE));
+            kit = intern(fa.getLimsValue(Lims.TARGETED_RESEQUENCING));
+            String name = rv.getAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + "geo_external_name");
+            extName = intern(null == name || name.isEmpty() ? "NA" : name);
+            String id = fa.getLimsValue(Lims.GROUP_ID);
+            groupID = intern(null == id || id.isEmpty() ? "NA" : id);
+            String description = fa.getLimsValue(Lims.GROUP_DESC);
+            groupDescription = intern(null == description || description.isEmpty() ? "NA" : description);
+            path = rv.getFiles().get(0).getFilePath() + "";
+            md5sum = rv.getFiles().get(0).getMd5sum();
+        }
+
+        public long getDate() {
+            return date;
+        }
+
+        public String getGroupByAttribute() {
+            return iusDetails.toString();
         }
 
         public String getTissueType() {
             return tissueType;
         }
 
-        public String getIusDetails() {
+        public String getKit() {
+            return kit;
+        }
+
+        public IusKey getIusDetails() {
             return iusDetails;
         }
 
-        public void setIusDetails(String iusDetails) {
-            this.iusDetails = iusDetails;
+        public String getFileSwa() {
+            return fileSwa;
         }
 
         public String getPath() {
             return path;
         }
 
+        public String getMd5sum() {
+            return md5sum;
+        }
+
         public String getExtName() {
             return extName;
         }
@@ -346,10 +1456,6 @@ public class cnvkitDecider extends OicrDecider {
         public String getGroupDescription() {
             return groupDescription;
         }
-
-        public void setPath(String path) {
-            this.path = path;
-        }
     }
 
     /**
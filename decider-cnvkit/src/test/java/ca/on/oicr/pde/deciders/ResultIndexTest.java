@@ -0,0 +1,103 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Assert;
+
+public class ResultIndexTest {
+
+    @org.testng.annotations.Test
+    public void finishedRunsAreFoundByTheNextDeciderRun() throws IOException {
+        File dir = Files.createTempDirectory("results").toFile();
+        ResultIndex first = new ResultIndex(dir);
+        first.load();
+        first.scheduled("f1", "PCSI_0001_P");
+        first.scheduled("f2", "PCSI_0002_P");
+        first.save();
+
+        // the workflow of f1 finishes, a marker is half written for f2
+        write(new File(first.getMarkerDir(), "f1"), "workflow_run_accession\t4242\noutput\tdata/PCSI_0001_P.seg\n");
+        write(new File(first.getMarkerDir(), "f2.tmp"), "workflow_run_accession\t");
+
+        ResultIndex next = new ResultIndex(dir);
+        next.load();
+        Assert.assertTrue(next.get("f1").isDone());
+        Assert.assertEquals("4242", next.get("f1").getAccession());
+        Assert.assertEquals("PCSI_0001_P", next.get("f1").getName());
+        Assert.assertFalse(next.get("f2").isDone());
+        Assert.assertNull(next.get("f2").getAccession());
+        Assert.assertNull(next.get("f3"));
+    }
+
+    @org.testng.annotations.Test
+    public void invalidatedRunsAreForgottenOnSave() throws IOException {
+        File dir = Files.createTempDirectory("results").toFile();
+        ResultIndex index = new ResultIndex(dir);
+        index.scheduled("f1", "PCSI_0001_P");
+        index.scheduled("f2", "PCSI_0002_P");
+        index.scheduled("f3", "PCSI_0003_P");
+        index.save();
+        File marker = new File(index.getMarkerDir(), "f1");
+        write(marker, "workflow_run_accession\t4242\n");
+
+        index = new ResultIndex(dir);
+        index.load();
+        Assert.assertEquals(1, index.invalidate("PCSI_0001_P").size());
+        Assert.assertEquals(1, index.invalidate("f2").size());
+        Assert.assertEquals(0, index.invalidate("f4").size());
+        // until saved, e.g. in --test mode, nothing changes on disk
+        Assert.assertTrue(marker.exists());
+        index.save();
+        Assert.assertFalse(marker.exists());
+
+        index = new ResultIndex(dir);
+        index.load();
+        Assert.assertNull(index.get("f1"));
+        Assert.assertNull(index.get("f2"));
+        Assert.assertEquals(1, index.invalidate("all").size());
+        Assert.assertTrue(index.getRuns().isEmpty());
+    }
+
+    @org.testng.annotations.Test
+    public void md5sumIsComputedOncePerVersionOfAFile() throws IOException {
+        File dir = Files.createTempDirectory("results").toFile();
+        File reference = new File(dir, "reference.cnn");
+        write(reference, "abc");
+        ResultIndex index = new ResultIndex(dir);
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", index.md5(reference));
+        index.save();
+
+        index = new ResultIndex(dir);
+        index.load();
+        // same size and modification time, the recorded sum is trusted
+        long modified = reference.lastModified();
+        write(reference, "xyz");
+        Assert.assertTrue(reference.setLastModified(modified));
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", index.md5(reference));
+        Assert.assertTrue(reference.setLastModified(modified + 1000));
+        Assert.assertEquals("d16fb36f0911f878998c136191af705e", index.md5(reference));
+    }
+
+    @org.testng.annotations.Test
+    public void fingerprintDependsOnEveryPartAndItsPlace() {
+        String fingerprint = ResultIndex.fingerprint(Arrays.asList("bam\ta", "bam\tb"));
+        Assert.assertEquals(64, fingerprint.length());
+        Assert.assertEquals(fingerprint, ResultIndex.fingerprint(Arrays.asList("bam\ta", "bam\tb")));
+        Assert.assertFalse(fingerprint.equals(ResultIndex.fingerprint(Arrays.asList("bam\tb", "bam\ta"))));
+    }
+
+    @org.testng.annotations.Test(expectedExceptions = IOException.class)
+    public void otherFilesAreNotReadAsAnIndex() throws IOException {
+        File dir = Files.createTempDirectory("results").toFile();
+        write(new File(dir, "index.tsv"), "#watermark\t0\n");
+        new ResultIndex(dir).load();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,142 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+
+public class SubmissionSchedulerTest {
+
+    /**
+     * Stands in for the metadata database: hands out accessions, fails the
+     * runs it is told to and records how many submissions overlap.
+     */
+    private static class FakeLauncher implements SubmissionScheduler.Launcher {
+
+        private final long millis;
+        private final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+        private final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+        private final Map<String, AtomicInteger> peak = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger all = new AtomicInteger();
+        private final AtomicInteger allPeak = new AtomicInteger();
+        private final AtomicInteger accessions = new AtomicInteger(1000);
+        private final List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+
+        FakeLauncher(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public String launch(SubmissionScheduler.Submission submission) throws IOException {
+            starts.add(System.currentTimeMillis());
+            String queue = submission.getQueue();
+            running.putIfAbsent(queue, new AtomicInteger());
+            peak.putIfAbsent(queue, new AtomicInteger());
+            max(peak.get(queue), running.get(queue).incrementAndGet());
+            max(allPeak, all.incrementAndGet());
+            try {
+                Thread.sleep(millis);
+                Integer left = failures.get(submission.getName());
+                if (left != null && left < 0) {
+                    throw new IllegalStateException("no such workflow");
+                }
+                if (left != null && left > 0) {
+                    failures.put(submission.getName(), left - 1);
+                    throw new IOException("metadata web service timed out");
+                }
+                return String.valueOf(accessions.incrementAndGet());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                running.get(queue).decrementAndGet();
+                all.decrementAndGet();
+            }
+        }
+
+        private static void max(AtomicInteger peak, int value) {
+            int current;
+            while ((current = peak.get()) < value && !peak.compareAndSet(current, value)) {
+            }
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void submitsEveryRunInOrder() throws InterruptedException {
+        FakeLauncher launcher = new FakeLauncher(1);
+        List<SubmissionScheduler.Submission> submissions = submissions(40, "production");
+        List<SubmissionScheduler.Result> results = new SubmissionScheduler(launcher, 4, 4, 0, 1, 0).submit(submissions);
+        Assert.assertEquals(40, results.size());
+        List<String> accessions = new ArrayList<String>();
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertSame(submissions.get(i), results.get(i).getSubmission());
+            Assert.assertTrue(results.get(i).isSubmitted());
+            Assert.assertEquals(1, results.get(i).getAttempts());
+            Assert.assertFalse(accessions.contains(results.get(i).getAccession()));
+            accessions.add(results.get(i).getAccession());
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void capsSubmissionsPerQueue() throws InterruptedException {
+        FakeLauncher launcher = new FakeLauncher(20);
+        List<SubmissionScheduler.Submission> submissions = new ArrayList<SubmissionScheduler.Submission>();
+        submissions.addAll(submissions(12, "production"));
+        submissions.addAll(submissions(12, "research"));
+        new SubmissionScheduler(launcher, 8, 2, 0, 1, 0).submit(submissions);
+        Assert.assertEquals(2, launcher.peak.get("production").get());
+        Assert.assertEquals(2, launcher.peak.get("research").get());
+        Assert.assertEquals(4, launcher.allPeak.get());
+    }
+
+    @org.testng.annotations.Test
+    public void spacesSubmissionsToAQueue() throws InterruptedException {
+        FakeLauncher launcher = new FakeLauncher(0);
+        new SubmissionScheduler(launcher, 4, 4, 30, 1, 0).submit(submissions(5, ""));
+        List<Long> starts = new ArrayList<Long>(launcher.starts);
+        Collections.sort(starts);
+        Assert.assertTrue(starts.get(4) - starts.get(0) >= 4 * 30);
+    }
+
+    @org.testng.annotations.Test
+    public void retriesTransientFailures() throws InterruptedException {
+        FakeLauncher launcher = new FakeLauncher(0);
+        launcher.failures.put("run0", 2);
+        launcher.failures.put("run1", 5);
+        launcher.failures.put("run2", -1);
+        long start = System.currentTimeMillis();
+        List<SubmissionScheduler.Result> results = new SubmissionScheduler(launcher, 3, 3, 0, 3, 10).submit(submissions(4, ""));
+
+        // two backoffs of 10 and 20 ms
+        Assert.assertTrue(System.currentTimeMillis() - start >= 30);
+        Assert.assertTrue(results.get(0).isSubmitted());
+        Assert.assertEquals(3, results.get(0).getAttempts());
+        Assert.assertFalse(results.get(1).isSubmitted());
+        Assert.assertEquals(3, results.get(1).getAttempts());
+        Assert.assertTrue(results.get(1).getError() instanceof IOException);
+        Assert.assertEquals(Integer.valueOf(2), launcher.failures.get("run1"));
+        // not worth trying again
+        Assert.assertFalse(results.get(2).isSubmitted());
+        Assert.assertEquals(1, results.get(2).getAttempts());
+        Assert.assertTrue(results.get(3).isSubmitted());
+    }
+
+    @org.testng.annotations.Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsAnEmptyPool() {
+        new SubmissionScheduler(new FakeLauncher(0), 0, 1, 0, 1, 0);
+    }
+
+    private static List<SubmissionScheduler.Submission> submissions(int n, String queue) {
+        List<SubmissionScheduler.Submission> submissions = new ArrayList<SubmissionScheduler.Submission>();
+        for (int i = 0; i < n; i++) {
+            Map<String, String> ini = new HashMap<String, String>();
+            ini.put("input_bam_file", "/data/" + queue + i + ".bam");
+            submissions.add(new SubmissionScheduler.Submission("run" + i, ini, String.valueOf(i), String.valueOf(100 + i), queue));
+        }
+        return submissions;
+    }
+}
@@ -0,0 +1,203 @@
+package ca.on.oicr.pde.deciders;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import net.sourceforge.seqware.common.hibernate.FindAllTheFiles.Header;
+import net.sourceforge.seqware.common.module.FileMetadata;
+import net.sourceforge.seqware.common.module.ReturnValue;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+
+public class cnvkitDeciderTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @org.testng.annotations.Test
+    public void incrementalRunsReturnIusUntilTheirRunFinished() throws IOException {
+        File state = new File(Files.createTempDirectory("decider").toFile(), "cnvkit.state");
+        List<ReturnValue> provenance = Arrays.asList(
+                bam("T1", "P", 1420070400000L),
+                bam("T2", "P", 1420070400000L + 30 * DAY),
+                bam("N1", "R", 1420070400000L + 60 * DAY));
+
+        // the first run launches T1, T2 fails to launch
+        Map<String, Map<String, String>> first = run(state, provenance, Arrays.asList("T1"));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T1", "T2")), first.keySet());
+        Assert.assertNotNull(first.get("T1"));
+        Assert.assertNull(first.get("T2"));
+
+        // the run of T1 fails, both come back although T1 is older than the watermark
+        Map<String, Map<String, String>> second = run(state, provenance, Arrays.asList("T1", "T2"));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T1", "T2")), second.keySet());
+        Assert.assertFalse(marker(second.get("T1")).equals(marker(first.get("T1"))));
+
+        // T1 is launched again and finishes, T2 is still running
+        finish(second.get("T1"));
+        Map<String, Map<String, String>> third = run(state, provenance, Arrays.<String>asList());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T2")), third.keySet());
+
+        finish(second.get("T2"));
+        Assert.assertTrue(run(state, provenance, Arrays.<String>asList()).isEmpty());
+    }
+
+    @org.testng.annotations.Test
+    public void iusWithARunFromBeforeTheStateFileAreNotReturnedAgain() throws IOException {
+        File state = new File(Files.createTempDirectory("decider").toFile(), "cnvkit.state");
+        List<ReturnValue> provenance = Arrays.asList(bam("T1", "P", 1420070400000L));
+
+        // BasicDecider finds a previous run of T1 and does not get to the final check
+        Assert.assertEquals(1, run(state, provenance, null).size());
+        Assert.assertTrue(run(state, provenance, null).isEmpty());
+    }
+
+    @org.testng.annotations.Test
+    public void iusRejectedByTheFileChecksAreNotReturnedAgain() throws IOException {
+        File state = new File(Files.createTempDirectory("decider").toFile(), "cnvkit.state");
+        ReturnValue genome = bam("W1", "P", 1420070400000L);
+        genome.setAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + Lims.LIBRARY_TEMPLATE_TYPE.getAttributeTitle(), "WG");
+        List<ReturnValue> provenance = new ArrayList<ReturnValue>(Arrays.asList(bam("T1", "P", 1420070400000L), genome));
+
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T1")), run(state, provenance, Arrays.asList("T1")).keySet());
+        Assert.assertTrue(new String(Files.readAllBytes(state.toPath()), StandardCharsets.UTF_8).contains("\tdeclined\t"));
+        // T1 is still running, W1 is not read again
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T1")), run(state, provenance, Arrays.<String>asList()).keySet());
+
+        // a newer BAM of the same IUS is checked again
+        provenance.add(bam("W1", "P", 1420070400000L + DAY));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("T1", "W1")), run(state, provenance, Arrays.<String>asList()).keySet());
+    }
+
+    @org.testng.annotations.Test
+    public void aNewIusDoesNotMoveBamsToAnotherCohort() throws IOException {
+        File state = new File(Files.createTempDirectory("decider").toFile(), "cnvkit.state");
+        List<ReturnValue> provenance = new ArrayList<ReturnValue>(Arrays.asList(
+                bam("B", "P", 1420070400000L),
+                bam("C", "P", 1420070400000L),
+                bam("D", "P", 1420070400000L)));
+        List<String> cohorts = Arrays.asList("B,C", "D");
+        Assert.assertEquals(new TreeSet<String>(cohorts), run(state, provenance, cohorts, "2").keySet());
+
+        // A sorts first, packing everything again would make A,B and C,D
+        provenance.add(bam("A", "P", 1420070400000L + DAY));
+        Map<String, Map<String, String>> next = run(state, provenance, Arrays.asList("A"), "2");
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("A", "B,C", "D")), next.keySet());
+    }
+
+    @org.testng.annotations.Test
+    public void cohortsNeedAStateFile() {
+        cnvkitDecider decider = new cnvkitDecider();
+        decider.setParams(Arrays.asList("--template-type", "EX", "--cohort-size", "2"));
+        decider.parse_parameters();
+        Assert.assertEquals(ReturnValue.INVALIDARGUMENT, decider.init().getExitStatus());
+    }
+
+    @org.testng.annotations.Test
+    public void bamsWithoutAnMd5sumAreNotRead() throws IOException {
+        File dir = Files.createTempDirectory("decider").toFile();
+        ReturnValue rv = bam("T1", "P", 1420070400000L);
+        FileMetadata fm = rv.getFiles().get(0);
+        File file = new File(dir, "T1.bam");
+        Files.write(file.toPath(), "reads".getBytes(StandardCharsets.UTF_8));
+        fm.setFilePath(file.getPath());
+        fm.setMd5sum(null);
+
+        cnvkitDecider decider = new cnvkitDecider();
+        decider.setParams(Arrays.asList("--template-type", "EX", "--result-index", new File(dir, "results").getPath()));
+        decider.parse_parameters();
+        Assert.assertEquals(ReturnValue.SUCCESS, decider.init().getExitStatus());
+        decider.separateFiles(Arrays.asList(rv), Header.FILE_SWA.getTitle());
+        Map<String, String> ini = decider.modifyIniFile(file.getPath(), "1");
+        // scheduled without looking for a finished run
+        Assert.assertEquals(file.getPath(), ini.get("input_bam_file"));
+        Assert.assertNull(ini.get("result_fingerprint"));
+    }
+
+    private static Map<String, Map<String, String>> run(File state, List<ReturnValue> provenance, Collection<String> launch) {
+        return run(state, provenance, launch, "1");
+    }
+
+    /**
+     * Go through the returned groups the way BasicDecider does: check the
+     * files, then, for groups without a previous run, the final check and the
+     * ini file.
+     *
+     * @param launch the groups launched after the final check, null if all
+     * of them have a previous run
+     * @return the ini file of each returned group by its libraries, null if
+     * it was not launched
+     */
+    private static Map<String, Map<String, String>> run(File state, List<ReturnValue> provenance, Collection<String> launch,
+            String cohortSize) {
+        cnvkitDecider decider = new cnvkitDecider();
+        decider.setParams(Arrays.asList("--template-type", "EX", "--state-file", state.getPath(), "--cohort-size", cohortSize));
+        decider.parse_parameters();
+        Assert.assertEquals(ReturnValue.SUCCESS, decider.init().getExitStatus());
+        Map<String, Map<String, String>> inis = new HashMap<String, Map<String, String>>();
+        for (List<ReturnValue> group : decider.separateFiles(new ArrayList<ReturnValue>(provenance), Header.FILE_SWA.getTitle()).values()) {
+            List<String> names = new ArrayList<String>();
+            List<String> paths = new ArrayList<String>();
+            for (ReturnValue rv : group) {
+                FileMetadata fm = rv.getFiles().get(0);
+                Assert.assertTrue(decider.checkFileDetails(rv, fm));
+                names.add(rv.getAttribute(Header.SAMPLE_NAME.getTitle()));
+                paths.add(fm.getFilePath());
+            }
+            String name = StringUtils.join(names, ",");
+            String files = StringUtils.join(paths, ",");
+            inis.put(name, null);
+            if (launch != null) {
+                Assert.assertEquals(ReturnValue.SUCCESS, decider.doFinalCheck(files, "1").getExitStatus());
+                if (launch.contains(name)) {
+                    inis.put(name, decider.modifyIniFile(files, "1"));
+                }
+            }
+        }
+        decider.clean_up();
+        return inis;
+    }
+
+    private static String marker(Map<String, String> ini) {
+        return ini.get("result_marker_dir") + File.separator + ini.get("result_fingerprint");
+    }
+
+    /**
+     * Write the marker the way the workflow's last job does.
+     */
+    private static void finish(Map<String, String> ini) throws IOException {
+        File marker = new File(marker(ini));
+        marker.getParentFile().mkdirs();
+        Files.write(marker.toPath(), "workflow_run_accession\t4242\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ReturnValue bam(String library, String tissueType, long date) {
+        ReturnValue rv = new ReturnValue();
+        rv.setAttribute(Header.FILE_SWA.getTitle(), Integer.toString(Math.abs(library.hashCode())));
+        rv.setAttribute(Header.PROCESSING_DATE.getTitle(), new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S").format(new Date(date)));
+        rv.setAttribute(Header.WORKFLOW_NAME.getTitle(), "BamMergePreprocessing");
+        rv.setAttribute(Header.SAMPLE_NAME.getTitle(), library);
+        rv.setAttribute(Header.SEQUENCER_RUN_NAME.getTitle(), "RUN1");
+        rv.setAttribute(Header.LANE_NUM.getTitle(), "1");
+        rv.setAttribute(Header.IUS_TAG.getTitle(), "NoIndex");
+        rv.setAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + Lims.LIBRARY_TEMPLATE_TYPE.getAttributeTitle(), "EX");
+        rv.setAttribute(Header.SAMPLE_TAG_PREFIX.getTitle() + Lims.TISSUE_TYPE.getAttributeTitle(), tissueType);
+        FileMetadata fm = new FileMetadata();
+        fm.setMetaType("application/bam");
+        fm.setFilePath("/data/" + library + ".bam");
+        fm.setMd5sum(Integer.toHexString(library.hashCode()));
+        ArrayList<FileMetadata> files = new ArrayList<FileMetadata>();
+        files.add(fm);
+        rv.setFiles(files);
+        return rv;
+    }
+}
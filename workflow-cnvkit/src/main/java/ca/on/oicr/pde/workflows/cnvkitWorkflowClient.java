@@ -1,11 +1,29 @@
 package ca.on.oicr.pde.workflows;
 
 import ca.on.oicr.pde.utilities.workflows.OicrWorkflow;
+import ca.on.oicr.pde.workflows.tools.Checkpoint;
+import ca.on.oicr.pde.workflows.tools.CnsTool;
+import ca.on.oicr.pde.workflows.tools.CnvPlot;
+import ca.on.oicr.pde.workflows.tools.MetricsSummary;
+import ca.on.oicr.pde.workflows.tools.ReferenceCache;
+import ca.on.oicr.pde.workflows.tools.Segmetrics;
+import ca.on.oicr.pde.workflows.tools.TarGz;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
+import net.sourceforge.seqware.pipeline.workflowV2.model.AbstractJob;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Command;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
 import net.sourceforge.seqware.pipeline.workflowV2.model.SqwFile;
+import org.apache.commons.io.FilenameUtils;
 
 /**
  * <p>
@@ -25,20 +43,38 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     //dir
     private String dataDir, tmpDir;
     private String outDir;
+    private String scatterDir;
 
     // Input Data
     private String tumor;
     private String normal;
     private String sampleName;
 
+    //cohort: several tumour BAMs in one run, each with its own directory, .seg and archive
+    private List<String> tumors;
+    private List<String> sampleNames;
+    private boolean cohort;
+
+    //build a pooled-normal reference from the input BAMs and publish it here, instead of calling copy number
+    private String referenceOutput;
+    private String referenceFasta;
+
+    //the sample the jobs are being built for
+    private String sampleDir;
+    private String samplePrefix = "";
+    private String tumorFile;
+    private int sampleIndex;
+
     //cnvkit intermediate file names
     private String bamFile;
     private String scatterPngFile;
+    private String diagramPngFile;
     private String segmetricsCnsFile;
     private String segmetricsCallCnsFile;
     private String filePath;
 
     //Tools
+    private String java;
     private String python;
     private String rPath;
     private String pythonExports;
@@ -47,6 +83,58 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     //Memory allocation
     private Integer cnvkitMem;
 
+    //Per-step resources, memory in GB
+    private int batchMem, batchThreads;
+    private int coverageMem, coverageThreads;
+    private int splitMem, scatterMem, segmetricsMem, callMem, diagramMem, segMem, outputMem;
+    private int archiveThreads;
+
+    //Node-local reference cache
+    private boolean referenceCache;
+    private String referenceCacheDir;
+    private String referenceCacheMaxGb;
+
+    //Scatter/gather coverage
+    private int scatterWidth;
+    private String targetBed;
+    private String antitargetBed;
+
+    //count coverage with cnvkit.py or the coverage-cnvkit jar
+    private boolean javaCoverage;
+    private String coverageJar;
+
+    //call and export seg with cnvkit.py or the JVM CnsTool
+    private boolean javaSegBackend;
+    private boolean javaSegmetrics;
+    private int segmetricsThreads;
+    private boolean javaPlots;
+    private int plotThreads;
+
+    //run the post-batch steps as one job
+    private boolean fusePostProcessing;
+    private int postMem;
+
+    //completion markers, so a rerun skips the steps that already finished
+    private boolean checkpoint;
+    private String checkpointDir;
+
+    //wall time, CPU time, peak RSS and I/O of every job, measured with GNU time
+    private boolean jobMetrics;
+    private String timeBin;
+    private boolean indexedOutputs;
+    private boolean indexedBedGraph;
+    private String htslib;
+    private String scratchDir;
+    private int scratchMinGb;
+    // fingerprint of this run in the decider's result index and where finished runs leave a marker
+    private String resultFingerprint;
+    private String resultMarkerDir;
+    private String metricsDir;
+
+    //link inputs from a mounted filesystem instead of provisioning copies, with the BAM index next to each BAM
+    private boolean linkInputs;
+    private String inputDir;
+
     private boolean manualOutput;
     private static final Logger logger = Logger.getLogger(cnvkitWorkflowClient.class.getName());
     private String queue;
@@ -55,6 +143,9 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     // meta-types
     private final static String TXT_METATYPE = "text/plain";
     private final static String TAR_GZ_METATYPE = "application/tar-gzip";
+    private final static String CNN_METATYPE = "application/cnn";
+    private final static String BGZIP_METATYPE = "application/x-gzip";
+    private final static String TBI_METATYPE = "application/tbi";
     private static final String FASTQ_GZIP_MIMETYPE = "chemical/seq-na-fastq-gzip";
 
     private void init() {
@@ -68,7 +159,20 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
             normal = getProperty("input_files_normal");
             sampleName = getProperty("output_filename_prefix");
 
+            //cohort mode, comma-separated BAMs and one output prefix per BAM
+            tumors = splitList(tumor);
+            sampleNames = splitList(sampleName);
+            if (tumors.size() != sampleNames.size()) {
+                throw new IllegalArgumentException("input_bam_file has " + tumors.size() + " BAMs but output_filename_prefix has "
+                        + sampleNames.size() + " prefixes");
+            }
+            if (new HashSet<String>(sampleNames).size() != sampleNames.size()) {
+                throw new IllegalArgumentException("output_filename_prefix has duplicate prefixes: " + sampleName);
+            }
+            cohort = tumors.size() > 1;
+
             //tools
+            java = getProperty("java");
             python = getProperty("python");
             rPath = getProperty("rpath");
             StringBuilder pyB = new StringBuilder();
@@ -117,11 +221,141 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
             //sequenza
             cnvkitMem = Integer.parseInt(getProperty("cnvkit_mem"));
 
+            //per-step resources, batch keeps cnvkit_mem unless batch_mem is set
+            batchMem = Integer.parseInt(getOptionalProperty("batch_mem", Integer.toString(cnvkitMem)));
+            batchThreads = Integer.parseInt(getOptionalProperty("batch_threads", "1"));
+            coverageMem = Integer.parseInt(getOptionalProperty("coverage_mem", "8"));
+            coverageThreads = Integer.parseInt(getOptionalProperty("coverage_threads", "1"));
+            splitMem = Integer.parseInt(getOptionalProperty("split_mem", "2"));
+            scatterMem = Integer.parseInt(getOptionalProperty("scatter_mem", "8"));
+            segmetricsMem = Integer.parseInt(getOptionalProperty("segmetrics_mem", "8"));
+            callMem = Integer.parseInt(getOptionalProperty("call_mem", "4"));
+            diagramMem = Integer.parseInt(getOptionalProperty("diagram_mem", "8"));
+            segMem = Integer.parseInt(getOptionalProperty("seg_mem", "2"));
+            outputMem = Integer.parseInt(getOptionalProperty("output_mem", "2"));
+            archiveThreads = Integer.parseInt(getOptionalProperty("archive_threads", "1"));
+            if (Boolean.parseBoolean(getOptionalProperty("batch_auto_size", "false"))) {
+                sizeBatchFromInput();
+            }
+
+            //reference cache
+            referenceCache = Boolean.parseBoolean(getOptionalProperty("reference_cache", "false"));
+            referenceCacheDir = getOptionalProperty("reference_cache_dir", "/tmp/cnvkit-reference-cache");
+            referenceCacheMaxGb = getOptionalProperty("reference_cache_max_gb", "2");
+
+            //scatter/gather
+            scatterWidth = Integer.parseInt(getOptionalProperty("batch_scatter_width", "1"));
+            if (scatterWidth < 1 || scatterWidth > 1000) {
+                throw new IllegalArgumentException("batch_scatter_width must be between 1 and 1000, got " + scatterWidth);
+            }
+
+            //coverage backend
+            String coverageBackend = getOptionalProperty("coverage_backend", "cnvkit");
+            if (!coverageBackend.equals("cnvkit") && !coverageBackend.equals("java")) {
+                throw new IllegalArgumentException("coverage_backend must be cnvkit or java, got " + coverageBackend);
+            }
+            javaCoverage = coverageBackend.equals("java");
+            if (javaCoverage) {
+                coverageJar = getProperty("coverage_jar");
+            }
+
+            //segment post-processing
+            String segBackend = getOptionalProperty("seg_backend", "cnvkit");
+            if (!segBackend.equals("cnvkit") && !segBackend.equals("java")) {
+                throw new IllegalArgumentException("seg_backend must be cnvkit or java, got " + segBackend);
+            }
+            javaSegBackend = segBackend.equals("java");
+            String segmetricsBackend = getOptionalProperty("segmetrics_backend", "cnvkit");
+            if (!segmetricsBackend.equals("cnvkit") && !segmetricsBackend.equals("java")) {
+                throw new IllegalArgumentException("segmetrics_backend must be cnvkit or java, got " + segmetricsBackend);
+            }
+            javaSegmetrics = segmetricsBackend.equals("java");
+            segmetricsThreads = Integer.parseInt(getOptionalProperty("segmetrics_threads", "1"));
+            String plotBackend = getOptionalProperty("plot_backend", "cnvkit");
+            if (!plotBackend.equals("cnvkit") && !plotBackend.equals("java")) {
+                throw new IllegalArgumentException("plot_backend must be cnvkit or java, got " + plotBackend);
+            }
+            javaPlots = plotBackend.equals("java");
+            plotThreads = Integer.parseInt(getOptionalProperty("plot_threads", "1"));
+            fusePostProcessing = Boolean.parseBoolean(getOptionalProperty("fuse_post_processing", "false"));
+            int stepMem = Math.max(Math.max(scatterMem, segmetricsMem), Math.max(Math.max(callMem, diagramMem), segMem));
+            postMem = Integer.parseInt(getOptionalProperty("post_mem", Integer.toString(stepMem)));
+
+            //checkpoints
+            checkpoint = Boolean.parseBoolean(getOptionalProperty("checkpoint", "false"));
+
+            //input provisioning
+            String inputMode = getOptionalProperty("input_mode", "provision");
+            if (!inputMode.equals("provision") && !inputMode.equals("link")) {
+                throw new IllegalArgumentException("input_mode must be provision or link, got " + inputMode);
+            }
+            linkInputs = inputMode.equals("link");
+            if (linkInputs) {
+                for (String t : tumors) {
+                    // only checked where the submitting host sees the BAM, link_inputs checks again on the node
+                    if (new File(t).isFile() && bamIndex(t) == null) {
+                        throw new IllegalArgumentException("No index next to " + t + ", expected " + bamIndexCandidates(t));
+                    }
+                }
+            }
+
+            //job metrics
+            jobMetrics = Boolean.parseBoolean(getOptionalProperty("job_metrics", "false"));
+            timeBin = getOptionalProperty("time_bin", "/usr/bin/time");
+
+            //tabix-indexed outputs
+            indexedOutputs = Boolean.parseBoolean(getOptionalProperty("indexed_outputs", "false"));
+            indexedBedGraph = Boolean.parseBoolean(getOptionalProperty("indexed_bedgraph", "false"));
+            if (indexedOutputs) {
+                htslib = getProperty("htslib");
+            }
+
+            //node-local scratch
+            scratchDir = getOptionalProperty("scratch_dir", "").trim();
+            scratchMinGb = Integer.parseInt(getOptionalProperty("scratch_min_gb", "20"));
+
+            //result index of the decider
+            resultFingerprint = getOptionalProperty("result_fingerprint", "").trim();
+            resultMarkerDir = getOptionalProperty("result_marker_dir", "").trim();
+
+            //pooled-normal reference
+            referenceOutput = getOptionalProperty("reference_output", "").trim();
+            referenceFasta = getOptionalProperty("reference_fasta", "").trim();
+
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Scale the batch job's threads and memory with the size of the input BAM.
+     * Memory grows from batch_auto_base_mem by batch_auto_mem_per_gb and is
+     * capped at batch_mem; one thread is used per batch_auto_gb_per_thread, up
+     * to batch_auto_max_threads. In a cohort the largest BAM sizes the batch
+     * jobs of all samples.
+     */
+    private void sizeBatchFromInput() {
+        long bytes = 0;
+        for (String t : this.tumors) {
+            File bam = new File(t);
+            if (!bam.isFile()) {
+                logger.warning("Cannot read " + t + " to size the batch job, using batch_threads and batch_mem");
+                return;
+            }
+            bytes = Math.max(bytes, bam.length());
+        }
+        double gb = bytes / (1024.0 * 1024.0 * 1024.0);
+        double gbPerThread = Double.parseDouble(getOptionalProperty("batch_auto_gb_per_thread", "5"));
+        int maxThreads = Integer.parseInt(getOptionalProperty("batch_auto_max_threads", "8"));
+        int baseMem = Integer.parseInt(getOptionalProperty("batch_auto_base_mem", "8"));
+        double memPerGb = Double.parseDouble(getOptionalProperty("batch_auto_mem_per_gb", "1"));
+
+        batchThreads = Math.max(1, Math.min(maxThreads, (int) Math.ceil(gb / gbPerThread)));
+        batchMem = Math.min(batchMem, Math.max(baseMem, (int) Math.ceil(baseMem + memPerGb * gb)));
+        logger.info("Sized batch for a " + String.format("%.1f", gb) + " GB BAM: "
+                + batchThreads + " threads, " + batchMem + " GB");
+    }
+
     @Override
     public void setupDirectory() {
         init();
@@ -133,14 +367,41 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
         if (!tmpDir.endsWith("/")) {
             tmpDir += "/";
         }
+        if (cohort && scratchDir.isEmpty()) {
+            for (String name : sampleNames) {
+                this.addDirectory(tmpDir + name);
+            }
+        }
+        if (scatterWidth > 1 || javaCoverage || !referenceOutput.isEmpty()) {
+            scatterDir = "scatter/";
+            this.addDirectory(scatterDir);
+        }
+        if (checkpoint) {
+            checkpointDir = "checkpoints/";
+            this.addDirectory(checkpointDir);
+        }
+        if (linkInputs) {
+            inputDir = "inputs/";
+            this.addDirectory(inputDir);
+        }
+        if (jobMetrics) {
+            metricsDir = "metrics/";
+            this.addDirectory(metricsDir);
+        }
     }
 
     @Override
     public Map<String, SqwFile> setupFiles() {
-        SqwFile file0 = this.createFile("tumor");
-        file0.setSourcePath(tumor);
-        file0.setType("application/bam");
-        file0.setIsInput(true);
+        if (linkInputs) {
+            // linked by the link_inputs job
+            return this.getFiles();
+        }
+        for (int i = 0; i < tumors.size(); i++) {
+            SqwFile file0 = this.createFile(tumorFile(i));
+            file0.setSourcePath(tumors.get(i));
+            file0.setType("application/bam");
+            file0.setIsInput(true);
+        }
         SqwFile file1 = this.createFile("normal");
         file1.setSourcePath(normal);
         file1.setType("application/cnn");
@@ -150,66 +411,493 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
 
     @Override
     public void buildWorkflow() {
-        Job parentJob = null;
         /**
          * Steps for cnvkit:
          */
         // workflow : read inputs tumor bam and cnn file; run cnvkit; write the output to temp directory; 
         // run handle output script; provision files (2) -- model-fit.zip; text/plain; 
-      
-        this.filePath = this.tmpDir + this.sampleName;
+        // a cohort repeats this for each tumour, the samples' jobs run side by side
+
+        if (!this.referenceOutput.isEmpty()) {
+            buildReference();
+        } else {
+            // cnvkit.py batch counts coverage itself, the java backend needs the separate steps;
+            // the reference intervals are split once for all samples
+            Job split = null;
+            if (this.scatterWidth > 1 || this.javaCoverage) {
+                split = splitRegions();
+            }
+            for (int i = 0; i < this.tumors.size(); i++) {
+                selectSample(i);
+                buildSample(split);
+            }
+        }
+
+        if (this.linkInputs) {
+            buildInputLinks();
+        }
+        if (this.jobMetrics) {
+            collectMetrics();
+        }
+        if (!this.resultFingerprint.isEmpty() && !this.resultMarkerDir.isEmpty()) {
+            recordResult();
+        }
+    }
+
+    /**
+     * Once every other job has finished, leave a marker named after the
+     * fingerprint the decider gave this run, with the workflow run accession
+     * and the outputs, so that the decider does not schedule the same inputs
+     * and parameters again. The marker is written next to its final name and
+     * moved there.
+     */
+    private void recordResult() {
+        List<AbstractJob> jobs = new ArrayList<AbstractJob>(getWorkflow().getJobs());
+        Set<Job> parents = new HashSet<Job>();
+        for (AbstractJob job : jobs) {
+            if (job.getParents() != null) {
+                parents.addAll(job.getParents());
+            }
+        }
+        Job record = getWorkflow().createBashJob("record_result");
+        List<String> outputs = new ArrayList<String>();
+        for (AbstractJob job : jobs) {
+            if (!parents.contains(job)) {
+                record.addParent(job);
+            }
+            for (SqwFile file : job.getFiles()) {
+                if (!file.isInput()) {
+                    outputs.add(file.getSourcePath());
+                }
+            }
+        }
+        String accession = getWorkflow_run_accession() == null ? "" : getWorkflow_run_accession();
+        String marker = this.resultMarkerDir + "/" + this.resultFingerprint;
+        Command cmd = record.getCommand();
+        cmd.addArgument("mkdir -p " + this.resultMarkerDir + " &&");
+        cmd.addArgument("(printf 'workflow_run_accession\\t%s\\n' '" + accession + "';");
+        cmd.addArgument("printf 'output\\t%s\\n' " + join(outputs) + ") > " + marker + ".tmp &&");
+        cmd.addArgument("mv " + marker + ".tmp " + marker);
+        record.setMaxMemory(Integer.toString(outputMem * 1024));
+        record.setQueue(queue);
+    }
+
+    /**
+     * Link the BAMs and the reference into inputs/ in place of provisioning
+     * copies, and link the index of each BAM next to it so that coverage
+     * reads only the regions it needs. Fails before any other job starts if
+     * an input or index is missing. Every job without a parent waits for it.
+     */
+    private void buildInputLinks() {
+        List<AbstractJob> jobs = new ArrayList<AbstractJob>(getWorkflow().getJobs());
+        Job link = getWorkflow().createBashJob("link_inputs");
+        Command cmd = link.getCommand();
+        for (int i = 0; i < this.tumors.size(); i++) {
+            String bam = this.tumors.get(i);
+            String linked = linkedBam(i);
+            cmd.addArgument("[ -r " + bam + " ] || { echo \"Cannot read " + bam + "\" >&2; exit 1; };");
+            cmd.addArgument("mkdir -p " + new File(linked).getParent() + ";");
+            cmd.addArgument("ln -sfn " + bam + " " + linked + ";");
+            String test = "if";
+            for (String index : bamIndexCandidates(bam)) {
+                cmd.addArgument(test + " [ -r " + index + " ]; then ln -sfn " + index + " " + linked + ".bai;");
+                test = "elif";
+            }
+            cmd.addArgument("else echo \"No index for " + bam + "\" >&2; exit 1; fi;");
+        }
+        cmd.addArgument("[ -r " + this.normal.trim() + " ] || { echo \"Cannot read " + this.normal.trim() + "\" >&2; exit 1; };");
+        cmd.addArgument("ln -sfn " + this.normal.trim() + " " + normalCnn());
+        link.setMaxMemory(Integer.toString(splitMem * 1024));
+        link.setQueue(queue);
+        for (AbstractJob job : jobs) {
+            if (job.getParents() == null || job.getParents().isEmpty()) {
+                job.addParent(link);
+            }
+        }
+    }
+
+    /**
+     * BAM of the selected sample, as provisioned or linked.
+     */
+    private String tumorBam() {
+        if (this.linkInputs) {
+            return linkedBam(this.sampleIndex);
+        }
+        return getFiles().get(this.tumorFile).getProvisionedPath();
+    }
+
+    private String normalCnn() {
+        if (this.linkInputs) {
+            return this.inputDir + new File(this.normal.trim()).getName();
+        }
+        return getFiles().get("normal").getProvisionedPath();
+    }
+
+    /**
+     * Link of the i-th BAM, in a directory of its own so that a cohort may
+     * list BAMs with the same name.
+     */
+    private String linkedBam(int i) {
+        return this.inputDir + tumorFile(i) + "/" + new File(this.tumors.get(i)).getName();
+    }
+
+    /**
+     * Where samtools and picard put the index: sample.bam.bai or sample.bai.
+     */
+    private static List<String> bamIndexCandidates(String bam) {
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(bam + ".bai");
+        if (bam.endsWith(".bam")) {
+            candidates.add(bam.substring(0, bam.length() - ".bam".length()) + ".bai");
+        }
+        return candidates;
+    }
+
+    private static String bamIndex(String bam) {
+        for (String index : bamIndexCandidates(bam)) {
+            if (new File(index).isFile()) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run every job under GNU time, each appending a line per attempt to its
+     * own file in metrics/ so that jobs running side by side do not share a
+     * file, and merge the lines into one table once the last job is done. The table is
+     * provisioned next to the .seg; MetricsSummary aggregates them across runs.
+     */
+    private void collectMetrics() {
+        List<AbstractJob> jobs = new ArrayList<AbstractJob>(getWorkflow().getJobs());
+        Set<Job> parents = new HashSet<Job>();
+        for (AbstractJob job : jobs) {
+            if (job.getParents() != null) {
+                parents.addAll(job.getParents());
+            }
+        }
+        String table = this.dataDir + this.sampleNames.get(0) + MetricsSummary.SUFFIX;
+        Job collect = getWorkflow().createBashJob("collect_metrics");
+        for (int i = 0; i < jobs.size(); i++) {
+            AbstractJob job = jobs.get(i);
+            // the step name and requested resources, then what time measured
+            String format = job.getAlgo() + "\\t" + i + "\\t" + (job.getMaxMemory() == null ? "" : job.getMaxMemory())
+                    + "\\t" + job.getThreads() + "\\t%e\\t%U\\t%S\\t%M\\t%x";
+            String metrics = this.metricsDir + String.format("%03d", i);
+            List<String> args = job.getCommand().getArguments();
+            // once the command is done, the shell's own rchar and wchar include those of every child it reaped
+            String command = join(args) + "\nrc=$?; awk '$1 == \"rchar:\" { r = $2 } $1 == \"wchar:\" { w = $2 } END { print r \"\\t\" w }'"
+                    + " /proc/$$/io 2>/dev/null > " + metrics + ".io; exit $rc";
+            args.clear();
+            // time notes a failed attempt on a line of its own, each attempt is one row
+            args.add("rm -f " + metrics + ".io; rc=0; " + this.timeBin + " -f '" + format + "' -o " + metrics + ".time"
+                    + " bash -c '" + command.replace("'", "'\\''") + "' || rc=$?;"
+                    + " printf '%s\\t%s\\n' \"$(grep -v '^Command ' " + metrics + ".time)\""
+                    + " \"$(cat " + metrics + ".io 2>/dev/null || printf '\\t')\" >> " + metrics + ".tsv; (exit $rc)");
+            if (!parents.contains(job)) {
+                collect.addParent(job);
+            }
+        }
+        Command cmd = collect.getCommand();
+        cmd.addArgument("(printf '" + MetricsSummary.HEADER.replace("\t", "\\t") + "\\n';");
+        cmd.addArgument("cat " + this.metricsDir + "*.tsv) > " + table);
+        collect.setMaxMemory(Integer.toString(outputMem * 1024));
+        collect.setQueue(queue);
+
+        SqwFile metricsFile = createOutputFile(table, TXT_METATYPE, this.manualOutput);
+        metricsFile.getAnnotations().put("job metrics ", "CNVkit");
+        collect.addFile(metricsFile);
+    }
+
+    /**
+     * Build a pooled-normal reference from the input BAMs instead of calling
+     * copy number. Coverage of every normal is counted over the target and
+     * antitarget intervals of input_files_normal, as for a tumour, and
+     * cnvkit.py reference pools them. The .cnn is provisioned and published to
+     * reference_output, where the decider picks it up for the tumour runs.
+     */
+    private void buildReference() {
+        Job split = splitRegions();
+        Job reference = getWorkflow().createBashJob("build_reference");
+        Command cmd = reference.getCommand();
+        cmd.addArgument(this.pythonExports);
+        cmd.addArgument(this.rExports);
+        List<String> inputs = new ArrayList<String>();
+        List<String> coverage = new ArrayList<String>();
+        for (int i = 0; i < this.tumors.size(); i++) {
+            selectSample(i);
+            for (int chunk = 0; chunk < this.scatterWidth; chunk++) {
+                Job c = runCoverage(chunk);
+                c.addParent(split);
+                reference.addParent(c);
+            }
+            // same gathering as for a tumour, without the fix and segment steps
+            for (String type : new String[]{"target", "antitarget"}) {
+                cmd.addArgument("(head -n 1 " + this.scatterDir + this.samplePrefix + type + ".000.cnn;");
+                cmd.addArgument("tail -q -n +2 " + this.scatterDir + this.samplePrefix + type + ".*.cnn)");
+                cmd.addArgument("> " + this.filePath + "." + type + "coverage.cnn;");
+                coverage.add(this.filePath + "." + type + "coverage.cnn");
+            }
+            inputs.add(this.scatterDir + this.samplePrefix + "*.cnn");
+        }
+        String cnn = this.tmpDir + "reference.cnn";
+        cmd.addArgument("cnvkit.py reference " + join(coverage));
+        if (!this.referenceFasta.isEmpty()) {
+            cmd.addArgument("-f " + this.referenceFasta);
+        }
+        cmd.addArgument("-o " + cnn + ";");
+        // renamed into place, so a tumour run never reads a partly copied reference
+        cmd.addArgument("mkdir -p " + new File(this.referenceOutput).getParent() + ";");
+        cmd.addArgument("cp " + cnn + " " + this.referenceOutput + ".tmp$$;");
+        cmd.addArgument("mv " + this.referenceOutput + ".tmp$$ " + this.referenceOutput);
+        this.samplePrefix = "";
+        checkpoint(reference, inputs, Arrays.asList(cnn, this.referenceOutput));
+        reference.setMaxMemory(Integer.toString(batchMem * 1024));
+        reference.setQueue(queue);
+
+        SqwFile referenceFile = createOutputFile(cnn, CNN_METATYPE, this.manualOutput);
+        referenceFile.getAnnotations().put("pooled normal reference ", "CNVkit");
+        reference.addFile(referenceFile);
+    }
+
+    /**
+     * Point the job builders at one tumour: its provisioned BAM, working
+     * directory and file names. Outside cohort mode the working directory is
+     * tmp_dir itself, in a cohort each sample gets a directory in it. With
+     * scratch_dir every sample gets one, which run_sample links to scratch.
+     */
+    private void selectSample(int i) {
+        this.sampleIndex = i;
+        this.sampleName = this.sampleNames.get(i);
+        this.tumorFile = tumorFile(i);
+        this.sampleDir = this.cohort || !this.scratchDir.isEmpty() ? this.tmpDir + this.sampleName + "/" : this.tmpDir;
+        // keeps the samples' checkpoint markers and coverage chunks apart
+        this.samplePrefix = this.cohort ? this.sampleName + "." : "";
+        this.filePath = this.sampleDir + this.sampleName;
         this.scatterPngFile = this.filePath + ".scatter.png";
+        this.diagramPngFile = this.filePath + ".diagram.png";
         this.segmetricsCnsFile = this.filePath + ".segmetrics.cns";
         this.segmetricsCallCnsFile = this.filePath + ".segmetrics.call.cns";
+    }
+
+    private void buildSample(Job split) {
+        List<AbstractJob> before = new ArrayList<AbstractJob>(getWorkflow().getJobs());
+        Job batch;
+        if (split != null) {
+            batch = runScatterGatherPipeline(split);
+        } else {
+            batch = runPipeline();
+        }
 
-        Job batch = runPipeline();
-        parentJob = batch;
+        // the archive takes everything left in the sample's directory
+        Job zipOutput = iterOutputDir();
+        checkpoint(zipOutput, Arrays.asList(this.sampleDir), Arrays.asList(archiveFile()));
+        if (this.fusePostProcessing) {
+            Job post = runPostProcessing();
+            List<String> outputs = new ArrayList<String>(Arrays.asList(this.scatterPngFile, this.segmetricsCnsFile, this.segmetricsCallCnsFile));
+            if (this.javaPlots) {
+                outputs.add(this.diagramPngFile);
+            }
+            outputs.add(this.filePath + ".seg");
+            checkpoint(post, Arrays.asList(this.filePath + ".cnr", this.filePath + ".cns"), outputs);
+            post.addParent(batch);
+            zipOutput.addParent(post);
+        } else {
+            // each step depends only on the jobs writing the files it reads:
+            // scatter and segmetrics read the .cnr/.cns from batch, call and
+            // export seg read the segmetrics .cns, diagram reads the call .cns
+            List<String> batchOutputs = Arrays.asList(this.filePath + ".cnr", this.filePath + ".cns");
+            Job scatter = runScatterPlot();
+            checkpoint(scatter, batchOutputs, Arrays.asList(this.scatterPngFile));
+            scatter.addParent(batch);
 
-        Job scatter = runScatterPlot();
-        scatter.addParent(parentJob);
-        parentJob = scatter;
+            Job segmetrics = runCalculateSegmetrics();
+            checkpoint(segmetrics, batchOutputs, Arrays.asList(this.segmetricsCnsFile));
+            segmetrics.addParent(batch);
 
-        Job segmetrics = runCalculateSegmetrics();
-        segmetrics.addParent(parentJob);
-        parentJob = segmetrics;
+            Job filter = runFilter();
+            checkpoint(filter, Arrays.asList(this.segmetricsCnsFile), Arrays.asList(this.segmetricsCallCnsFile));
+            filter.addParent(segmetrics);
 
-        Job filter = runFilter();
-        filter.addParent(parentJob);
-        parentJob = filter;
+            // cnvkit's diagram writes over the call .cns it reads
+            Job diagram = runCleanupDiagram();
+            checkpoint(diagram, Arrays.asList(this.segmetricsCallCnsFile), Arrays.asList(diagramFile()));
+            diagram.addParent(filter);
 
-        Job diagram = runCleanupDiagram();
-        diagram.addParent(parentJob);
-        parentJob = diagram;
-        
-        Job makeSegFile = createSegFile();
-        makeSegFile.addParent(parentJob);
-        parentJob = makeSegFile;
+            Job makeSegFile = createSegFile();
+            checkpoint(makeSegFile, Arrays.asList(this.segmetricsCnsFile), Arrays.asList(this.filePath + ".seg"));
+            makeSegFile.addParent(segmetrics);
 
-        Job zipOutput = iterOutputDir();
-        zipOutput.addParent(parentJob);
+            zipOutput.addParent(scatter);
+            zipOutput.addParent(diagram);
+            zipOutput.addParent(makeSegFile);
+        }
+
+        if (this.indexedOutputs) {
+            Job index = runIndexOutputs();
+            index.addParent(batch);
+        }
 
         // Provision .seg, model-fit.tar.gz files
         String segFile = this.sampleName + ".seg";
-        SqwFile cnSegFile = createOutputFile(this.tmpDir + segFile, TXT_METATYPE, this.manualOutput);
+        String segPath = this.sampleDir + segFile;
+        if (!this.scratchDir.isEmpty()) {
+            // the coverage chunks of a scatter/gather run stay on the shared filesystem
+            List<AbstractJob> jobs = new ArrayList<AbstractJob>(getWorkflow().getJobs());
+            jobs.removeAll(before);
+            jobs.removeAll(batch.getParents());
+            segPath = this.dataDir + segFile;
+            zipOutput = stageInScratch(jobs);
+            zipOutput.getCommand().addArgument("cp " + this.sampleDir + segFile + " " + segPath);
+        }
+        SqwFile cnSegFile = createOutputFile(segPath, TXT_METATYPE, this.manualOutput);
         cnSegFile.getAnnotations().put("segment data from the tool ", "CNVkit");
         zipOutput.addFile(cnSegFile);
 
-        SqwFile zipFile = createOutputFile(this.dataDir + "model-fit.tar.gz", TAR_GZ_METATYPE, this.manualOutput);
+        SqwFile zipFile = createOutputFile(archiveFile(), TAR_GZ_METATYPE, this.manualOutput);
         zipFile.getAnnotations().put("Other files ", "cnvkit");
         zipOutput.addFile(zipFile);
     }
 
+    /**
+     * Block-compress the .cnr and .cns from batch with bgzip and index them
+     * with tabix, so that they can be queried by region without unpacking
+     * the archive. Optionally also the log2 ratios of the bins as a
+     * bedGraph. They go to the data directory, next to the archive, and
+     * are provisioned on their own.
+     */
+    private Job runIndexOutputs() {
+        Job index = getWorkflow().createBashJob("index_outputs");
+        Command cmd = index.getCommand();
+        String bgzip = this.htslib + "/bin/bgzip";
+        String tabix = this.htslib + "/bin/tabix";
+        List<String> inputs = Arrays.asList(this.filePath + ".cnr", this.filePath + ".cns");
+        List<String> outputs = new ArrayList<String>();
+        List<String> steps = new ArrayList<String>();
+        for (String input : inputs) {
+            String gz = this.dataDir + this.sampleName + input.substring(input.lastIndexOf('.')) + ".gz";
+            // cnvkit's coordinates are 0-based like BED, the first line is the header
+            steps.add(bgzip + " -c " + input + " > " + gz + " && " + tabix + " -f -0 -s 1 -b 2 -e 3 -S 1 " + gz);
+            outputs.add(gz);
+        }
+        if (this.indexedBedGraph) {
+            String gz = this.dataDir + this.sampleName + ".log2.bedgraph.gz";
+            steps.add("awk -v OFS='\\t' 'NR == 1 {for (i = 1; i <= NF; i++) if ($i == \"log2\") c = i; next} {print $1, $2, $3, $c}' "
+                    + this.filePath + ".cnr | " + bgzip + " -c > " + gz + " && " + tabix + " -f -p bed " + gz);
+            outputs.add(gz);
+        }
+        cmd.addArgument(join(steps, " && "));
+        List<String> files = new ArrayList<String>();
+        for (String gz : outputs) {
+            files.add(gz);
+            files.add(gz + ".tbi");
+            SqwFile data = createOutputFile(gz, BGZIP_METATYPE, this.manualOutput);
+            data.getAnnotations().put("tabix-indexed copy number from the tool ", "CNVkit");
+            index.addFile(data);
+            index.addFile(createOutputFile(gz + ".tbi", TBI_METATYPE, this.manualOutput));
+        }
+        checkpoint(index, inputs, files);
+        index.setMaxMemory(Integer.toString(outputMem * 1024));
+        index.setQueue(queue);
+        return index;
+    }
+
+    /**
+     * Replace the jobs of a sample by one run_sample job running their
+     * commands one after another on one node, with the sample's directory a
+     * link to a new directory in scratch_dir. Only the archive and what the
+     * caller copies out are written to the shared filesystem. The scratch
+     * directory is removed when the job exits, whether it failed or not, and
+     * the job fails early if scratch_dir has less than scratch_min_gb free.
+     */
+    private Job stageInScratch(List<AbstractJob> jobs) {
+        Job run = getWorkflow().createBashJob("run_sample");
+        Command cmd = run.getCommand();
+        String link = this.sampleDir.substring(0, this.sampleDir.length() - 1);
+        cmd.addArgument("SCRATCH=$(mktemp -d " + this.scratchDir + "/cnvkit.XXXXXXXX) || exit 1;");
+        cmd.addArgument("trap 'rm -rf \"$SCRATCH\"; rm -f " + link + "' EXIT;");
+        cmd.addArgument("FREE_KB=$(df -Pk \"$SCRATCH\" | awk 'NR == 2 {print $4}');");
+        cmd.addArgument("if [ \"$FREE_KB\" -lt " + (long) this.scratchMinGb * 1024 * 1024 + " ]; then");
+        cmd.addArgument("echo \"$FREE_KB KB free in " + this.scratchDir + ", need " + this.scratchMinGb + " GB\" >&2; exit 1; fi;");
+        // a directory left by a run without scratch_dir is only replaced if empty
+        cmd.addArgument("if [ -d " + link + " ] && [ ! -L " + link + " ]; then rmdir " + link + " || exit 1; fi;");
+        cmd.addArgument("ln -sfn \"$SCRATCH\" " + link + " || exit 1;");
+
+        // parents before children, otherwise in the order they were built
+        List<AbstractJob> pending = new ArrayList<AbstractJob>(jobs);
+        Set<Job> done = new HashSet<Job>();
+        int mem = 0;
+        int threads = 1;
+        while (!pending.isEmpty()) {
+            AbstractJob next = null;
+            for (AbstractJob job : pending) {
+                if (done.containsAll(parentsWithin(job, jobs))) {
+                    next = job;
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new IllegalStateException("Cycle between the jobs of " + this.sampleName);
+            }
+            pending.remove(next);
+            done.add((Job) next);
+            cmd.addArgument("( " + join(next.getCommand().getArguments()) + " ) || exit 1;");
+            for (Job parent : next.getParents()) {
+                if (!jobs.contains(parent) && !run.getParents().contains(parent)) {
+                    run.addParent(parent);
+                }
+            }
+            for (SqwFile file : next.getFiles()) {
+                run.addFile(file);
+            }
+            if (next.getMaxMemory() != null) {
+                mem = Math.max(mem, Integer.parseInt(next.getMaxMemory()));
+            }
+            threads = Math.max(threads, next.getThreads());
+        }
+        getWorkflow().getJobs().removeAll(jobs);
+        run.setMaxMemory(Integer.toString(mem));
+        run.setThreads(threads);
+        run.setQueue(queue);
+        return run;
+    }
+
+    private static List<Job> parentsWithin(AbstractJob job, List<AbstractJob> jobs) {
+        List<Job> parents = new ArrayList<Job>();
+        for (Job parent : job.getParents()) {
+            if (jobs.contains(parent)) {
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * model-fit.tar.gz, prefixed with the sample name in a cohort.
+     */
+    private String archiveFile() {
+        return this.dataDir + (this.cohort ? this.sampleName + "." : "") + "model-fit.tar.gz";
+    }
+
     private Job iterOutputDir() {
-        //compress all files (except .seg) in the tmpDir/working dir to "model-fit.tar.gz"
+        //compress all files (except .seg) in the sample's working dir to "model-fit.tar.gz"
         Job iterOutput = getWorkflow().createBashJob("handle_output");
         Command cmd = iterOutput.getCommand();
-        cmd.addArgument("tar -zcvf");
-        cmd.addArgument(dataDir + "model-fit.tar.gz");
-        cmd.addArgument("--transform \"s/" + tmpDir.replace("/", "") + "/model-fit/\"");
+        if (this.archiveThreads > 1) {
+            // same archive as tar -zcvf, compressed on several cores
+            cmd.addArgument(javaTool(TarGz.class, 1) + " -v");
+            cmd.addArgument("--threads " + this.archiveThreads);
+            cmd.addArgument("-f " + archiveFile());
+        } else {
+            cmd.addArgument("tar -zcvf");
+            cmd.addArgument(archiveFile());
+        }
+        cmd.addArgument("--transform \"s," + sampleDir.substring(0, sampleDir.length() - 1) + ",model-fit,\"");
         cmd.addArgument("--exclude " + sampleName + ".seg");
-        cmd.addArgument(tmpDir + "*");
-        iterOutput.setMaxMemory(Integer.toString(cnvkitMem * 1024));
-        iterOutput.setQueue(getOptionalProperty("queue", ""));
+        cmd.addArgument(sampleDir + "*");
+        iterOutput.setMaxMemory(Integer.toString(outputMem * 1024));
+        iterOutput.setThreads(archiveThreads);
+        iterOutput.setQueue(queue);
         return iterOutput;
     }
 
@@ -218,34 +906,282 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
         Command cmd = batch.getCommand();
         cmd.addArgument(this.pythonExports);
         cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py batch " + getFiles().get("tumor").getProvisionedPath());
-        cmd.addArgument("--reference " + getFiles().get("normal").getProvisionedPath());
-        cmd.addArgument("--scatter");
-        cmd.addArgument("--diagram");
+        if (this.referenceCache) {
+            cmd.addArgument(stageReference());
+        }
+        cmd.addArgument("cnvkit.py batch " + tumorBam());
+        cmd.addArgument("--reference " + referenceCnn());
+        if (!this.javaPlots) {
+            // the scatter and diagram jobs draw the java plots
+            cmd.addArgument("--scatter");
+            cmd.addArgument("--diagram");
+        }
         cmd.addArgument("--rlibpath " + this.rPath);
-        cmd.addArgument("--output-dir " + this.tmpDir);
+        cmd.addArgument("-p " + this.batchThreads);
+        cmd.addArgument("--output-dir " + this.sampleDir);
         cmd.addArgument(";");
+        List<String> inputs = Arrays.asList(tumorBam(), normalCnn());
+        if (this.checkpoint) {
+            // batch gets its own marker, so a failed rename does not rerun it
+            List<String> outputs = new ArrayList<String>(Arrays.asList(
+                    this.sampleDir + "*.targetcoverage.cnn", this.sampleDir + "*.antitargetcoverage.cnn"));
+            if (!this.javaPlots) {
+                outputs.addAll(Arrays.asList(this.sampleDir + "*-scatter.pdf", this.sampleDir + "*-diagram.pdf"));
+            }
+            outputs.addAll(Arrays.asList(this.sampleDir + "*.cns", this.sampleDir + "*.cnr"));
+            String run = checkpointed(this.samplePrefix + "batch_cnvkit", join(cmd.getArguments()), inputs, outputs);
+            cmd.getArguments().clear();
+            cmd.addArgument(run + ";");
+        }
         // cnvkit changes output file names, change them back
-        cmd.addArgument("mv " + this.tmpDir + "/*.targetcoverage.cnn " + this.filePath + ".targetcoverage.cnn;");
-        cmd.addArgument("mv " + this.tmpDir + "/*.antitargetcoverage.cnn " + this.filePath + ".antitargetcoverage.cnn;");
-        cmd.addArgument("mv " + this.tmpDir + "/*-scatter.pdf " + this.filePath + "-scatter.pdf;");
-        cmd.addArgument("mv " + this.tmpDir + "/*-diagram.pdf " + this.filePath + "-diagram.pdf;");
-        cmd.addArgument("mv " + this.tmpDir + "/*.cns " + this.filePath + ".cns;");
-        cmd.addArgument("mv " + this.tmpDir + "/*.cnr " + this.filePath + ".cnr;");
-        batch.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        cmd.addArgument("mv " + this.sampleDir + "*.targetcoverage.cnn " + this.filePath + ".targetcoverage.cnn;");
+        cmd.addArgument("mv " + this.sampleDir + "*.antitargetcoverage.cnn " + this.filePath + ".antitargetcoverage.cnn;");
+        if (!this.javaPlots) {
+            cmd.addArgument("mv " + this.sampleDir + "*-scatter.pdf " + this.filePath + "-scatter.pdf;");
+            cmd.addArgument("mv " + this.sampleDir + "*-diagram.pdf " + this.filePath + "-diagram.pdf;");
+        }
+        cmd.addArgument("mv " + this.sampleDir + "*.cns " + this.filePath + ".cns;");
+        cmd.addArgument("mv " + this.sampleDir + "*.cnr " + this.filePath + ".cnr;");
+        checkpoint(batch, inputs, batchOutputs());
+        batch.setMaxMemory(Integer.toString(batchMem * 1024));
+        batch.setThreads(batchThreads);
         batch.setQueue(queue);
         return batch;
     }
 
+    /**
+     * Scatter/gather replacement for {@link #runPipeline()}: the target and
+     * antitarget intervals of the reference are split into batch_scatter_width
+     * contiguous chunks, coverage for each chunk is computed in its own job and
+     * the chunks are concatenated back in reference order, so the merged .cnn
+     * files are the same as the ones written by cnvkit.py batch.
+     *
+     * @param split the job splitting the intervals, shared by all samples
+     * @return the gather job producing the .cnr/.cns and batch plots
+     */
+    private Job runScatterGatherPipeline(Job split) {
+        Job gather = gatherCoverage();
+        for (int i = 0; i < this.scatterWidth; i++) {
+            Job coverage = runCoverage(i);
+            coverage.addParent(split);
+            gather.addParent(coverage);
+        }
+        return gather;
+    }
+
+    private Job splitRegions() {
+        // same names cnvkit.py batch gives the intervals it extracts from the reference
+        String refBase = FilenameUtils.getBaseName(this.normal.trim());
+        this.targetBed = this.tmpDir + refBase + ".target-tmp.bed";
+        this.antitargetBed = this.tmpDir + refBase + ".antitarget-tmp.bed";
+
+        Job split = getWorkflow().createBashJob("split_regions");
+        Command cmd = split.getCommand();
+        if (this.referenceCache) {
+            cmd.addArgument(stageReference());
+            cmd.addArgument("cp $REF_DIR/" + ReferenceCache.TARGETS + " " + this.targetBed + ";");
+            cmd.addArgument("cp $REF_DIR/" + ReferenceCache.ANTITARGETS + " " + this.antitargetBed + ";");
+        } else {
+            cmd.addArgument(": > " + this.targetBed + ";");
+            cmd.addArgument(": > " + this.antitargetBed + ";");
+            // reference rows are target bins unless the gene is "Antitarget", or "Background" in older references
+            cmd.addArgument("awk -F'\\t'");
+            cmd.addArgument("-v tgt=" + this.targetBed);
+            cmd.addArgument("-v anti=" + this.antitargetBed);
+            cmd.addArgument("'NR > 1 { print $1 \"\\t\" $2 \"\\t\" $3 \"\\t\" $4 > ($4 == \"Antitarget\" || $4 == \"Background\" ? anti : tgt) }'");
+            cmd.addArgument(normalCnn());
+            cmd.addArgument(";");
+        }
+        cmd.addArgument("split -n l/" + this.scatterWidth + " -d -a 3 " + this.targetBed + " " + this.scatterDir + "target.bed.;");
+        cmd.addArgument("split -n l/" + this.scatterWidth + " -d -a 3 " + this.antitargetBed + " " + this.scatterDir + "antitarget.bed.");
+        checkpoint(split, Arrays.asList(normalCnn()),
+                Arrays.asList(this.targetBed, this.antitargetBed, this.scatterDir + "*.bed.*"));
+        split.setMaxMemory(Integer.toString(splitMem * 1024));
+        split.setQueue(queue);
+        return split;
+    }
+
+    private Job runCoverage(int chunk) {
+        String suffix = String.format("%03d", chunk);
+        Job coverage = getWorkflow().createBashJob("coverage_" + suffix);
+        Command cmd = coverage.getCommand();
+        if (!this.javaCoverage) {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+        }
+        for (String type : new String[]{"target", "antitarget"}) {
+            String bed = this.scatterDir + type + ".bed." + suffix;
+            String cnn = this.scatterDir + this.samplePrefix + type + "." + suffix + ".cnn";
+            // split can leave a chunk empty, cnvkit needs at least one interval
+            cmd.addArgument("if [ -s " + bed + " ]; then");
+            if (this.javaCoverage) {
+                cmd.addArgument(this.java + " -Xmx" + Math.max(1, coverageMem - 1) + "g -jar " + this.coverageJar);
+            } else {
+                cmd.addArgument("cnvkit.py coverage");
+            }
+            cmd.addArgument(tumorBam() + " " + bed);
+            cmd.addArgument("-p " + this.coverageThreads);
+            cmd.addArgument("-o " + cnn + ";");
+            cmd.addArgument("else printf 'chromosome\\tstart\\tend\\tgene\\tdepth\\tlog2\\n' > " + cnn + ";");
+            cmd.addArgument("fi;");
+        }
+        checkpoint(coverage, Arrays.asList(tumorBam(),
+                this.scatterDir + "target.bed." + suffix, this.scatterDir + "antitarget.bed." + suffix),
+                Arrays.asList(this.scatterDir + this.samplePrefix + "target." + suffix + ".cnn",
+                        this.scatterDir + this.samplePrefix + "antitarget." + suffix + ".cnn"));
+        coverage.setMaxMemory(Integer.toString(coverageMem * 1024));
+        coverage.setThreads(coverageThreads);
+        coverage.setQueue(queue);
+        return coverage;
+    }
+
+    private Job gatherCoverage() {
+        Job gather = getWorkflow().createBashJob("gather");
+        Command cmd = gather.getCommand();
+        cmd.addArgument(this.pythonExports);
+        cmd.addArgument(this.rExports);
+        // chunk suffixes sort in reference order, keep the first header only
+        for (String type : new String[]{"target", "antitarget"}) {
+            cmd.addArgument("(head -n 1 " + this.scatterDir + this.samplePrefix + type + ".000.cnn;");
+            cmd.addArgument("tail -q -n +2 " + this.scatterDir + this.samplePrefix + type + ".*.cnn)");
+            cmd.addArgument("> " + this.filePath + "." + type + "coverage.cnn;");
+        }
+        if (this.referenceCache) {
+            cmd.addArgument(stageReference());
+        }
+        cmd.addArgument("cnvkit.py fix " + this.filePath + ".targetcoverage.cnn");
+        cmd.addArgument(this.filePath + ".antitargetcoverage.cnn");
+        cmd.addArgument(referenceCnn());
+        cmd.addArgument("-o " + this.filePath + ".cnr;");
+        cmd.addArgument("cnvkit.py segment " + this.filePath + ".cnr");
+        cmd.addArgument("--rlibpath " + this.rPath);
+        cmd.addArgument("-p " + this.batchThreads);
+        cmd.addArgument("-o " + this.filePath + ".cns;");
+        if (!this.javaPlots) {
+            // plots cnvkit.py batch draws with --scatter --diagram
+            cmd.addArgument("cnvkit.py scatter " + this.filePath + ".cnr");
+            cmd.addArgument("-s " + this.filePath + ".cns");
+            cmd.addArgument("-o " + this.filePath + "-scatter.pdf;");
+            cmd.addArgument("cnvkit.py diagram " + this.filePath + ".cnr");
+            cmd.addArgument("-s " + this.filePath + ".cns");
+            cmd.addArgument("-o " + this.filePath + "-diagram.pdf");
+        }
+        checkpoint(gather, Arrays.asList(this.scatterDir + this.samplePrefix + "*.cnn", normalCnn()),
+                batchOutputs());
+        gather.setMaxMemory(Integer.toString(batchMem * 1024));
+        gather.setThreads(batchThreads);
+        gather.setQueue(queue);
+        return gather;
+    }
+
+    /**
+     * Stage the reference in the node-local cache and point REF_DIR at the
+     * cache entry. Has to run in the same job as the step reading it: the
+     * entry is held for the job's shell and is not evicted until the job ends.
+     */
+    private String stageReference() {
+        return "REF_DIR=$(" + javaTool(ReferenceCache.class, 1) + " " + this.referenceCacheDir
+                + " " + this.referenceCacheMaxGb + " " + this.normal.trim() + " $$) || exit 1;";
+    }
+
+    private String referenceCnn() {
+        if (this.referenceCache) {
+            return "$REF_DIR/" + ReferenceCache.REFERENCE;
+        }
+        return normalCnn();
+    }
+
+    /**
+     * Files batch leaves in the sample's directory, under the names the later steps use.
+     */
+    private List<String> batchOutputs() {
+        if (this.javaPlots) {
+            return Arrays.asList(this.filePath + ".targetcoverage.cnn", this.filePath + ".antitargetcoverage.cnn",
+                    this.filePath + ".cns", this.filePath + ".cnr");
+        }
+        return Arrays.asList(this.filePath + ".targetcoverage.cnn", this.filePath + ".antitargetcoverage.cnn",
+                this.filePath + "-scatter.pdf", this.filePath + "-diagram.pdf", this.filePath + ".cns", this.filePath + ".cnr");
+    }
+
+    /**
+     * Skip the job's command on a rerun if its last run succeeded and its
+     * inputs and outputs have not changed since. File names may be globs.
+     */
+    private void checkpoint(Job job, List<String> inputs, List<String> outputs) {
+        if (!this.checkpoint) {
+            return;
+        }
+        List<String> args = job.getCommand().getArguments();
+        String run = checkpointed(this.samplePrefix + job.getAlgo(), join(args), inputs, outputs);
+        args.clear();
+        args.add(run);
+    }
+
+    private String checkpointed(String step, String command, List<String> inputs, List<String> outputs) {
+        String marker = this.checkpointDir + step + " " + sha256(command);
+        String files = " --in " + join(inputs) + " --out " + join(outputs);
+        String tool = javaTool(Checkpoint.class, 1);
+        return "if " + tool + " verify " + marker + files + "; then echo \"skipping " + step + "\";"
+                + " else ( " + command + " ) && " + tool + " record " + marker + files + "; fi";
+    }
+
+    private String tumorFile(int i) {
+        return this.cohort ? "tumor_" + i : "tumor";
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> values = new ArrayList<String>();
+        for (String v : value.split(",")) {
+            if (!v.trim().isEmpty()) {
+                values.add(v.trim());
+            }
+        }
+        return values;
+    }
+
+    private static String join(List<String> args) {
+        return join(args, " ");
+    }
+
+    private static String join(List<String> args, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(arg);
+        }
+        return sb.toString();
+    }
+
+    private static String sha256(String text) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String javaTool(Class<?> tool, int heapGb) {
+        return this.java + " -Xmx" + heapGb + "g -cp " + getWorkflowBaseDir() + "/classes " + tool.getName();
+    }
+
     private Job runScatterPlot() {
         Job scatter = getWorkflow().createBashJob("scatter");
         Command cmd = scatter.getCommand();
-        cmd.addArgument(this.pythonExports);
-        cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py scatter");
-        cmd.addArgument("-s " + this.filePath + ".cn{s,r}");
-        cmd.addArgument("-o " + this.scatterPngFile);
-        scatter.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        if (this.javaPlots) {
+            cmd.addArgument(javaPlot(scatterMem) + " " + scatterArgs() + " --threads " + plotThreads);
+            scatter.setThreads(plotThreads);
+        } else {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+            cmd.addArgument("cnvkit.py " + scatterArgs());
+        }
+        scatter.setMaxMemory(Integer.toString(scatterMem * 1024));
         scatter.setQueue(queue);
         return scatter;
     }
@@ -253,14 +1189,15 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     private Job runCalculateSegmetrics() {
         Job segmetrics = getWorkflow().createBashJob("segmetrics");
         Command cmd = segmetrics.getCommand();
-        cmd.addArgument(this.pythonExports);
-        cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py segmetrics");
-        cmd.addArgument("-s " + this.filePath + ".cn{s,r}");
-        cmd.addArgument("--ci");
-        cmd.addArgument("--pi");
-        cmd.addArgument("-o " + this.filePath + ".segmetrics.cns");
-        segmetrics.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        if (this.javaSegmetrics) {
+            cmd.addArgument(javaSegmetrics());
+            segmetrics.setThreads(segmetricsThreads);
+        } else {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+            cmd.addArgument("cnvkit.py segmetrics " + segmetricsArgs());
+        }
+        segmetrics.setMaxMemory(Integer.toString(segmetricsMem * 1024));
         segmetrics.setQueue(queue);
         return segmetrics;
     }
@@ -268,14 +1205,14 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     private Job runFilter() {
         Job filter = getWorkflow().createBashJob("filter");
         Command cmd = filter.getCommand();
-        cmd.addArgument(this.pythonExports);
-        cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py call");
-        cmd.addArgument("--filter cn");
-        cmd.addArgument("--filter ci");
-        cmd.addArgument(this.segmetricsCnsFile);
-        cmd.addArgument("-o " + this.filePath + ".segmetrics.call.cns");
-        filter.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        if (this.javaSegBackend) {
+            cmd.addArgument(javaTool(CnsTool.class, Math.max(1, callMem - 1)) + " " + callArgs());
+        } else {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+            cmd.addArgument("cnvkit.py " + callArgs());
+        }
+        filter.setMaxMemory(Integer.toString(callMem * 1024));
         filter.setQueue(queue);
         return filter;
     }
@@ -283,12 +1220,15 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     private Job runCleanupDiagram() {
         Job diagram = getWorkflow().createBashJob("diagram");
         Command cmd = diagram.getCommand();
-        cmd.addArgument(this.pythonExports);
-        cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py diagram");
-        cmd.addArgument("-s " + this.segmetricsCallCnsFile);
-        cmd.addArgument("-o " + this.segmetricsCallCnsFile);
-        diagram.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        if (this.javaPlots) {
+            cmd.addArgument(javaDiagram());
+            diagram.setThreads(plotThreads);
+        } else {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+            cmd.addArgument("cnvkit.py " + diagramArgs());
+        }
+        diagram.setMaxMemory(Integer.toString(diagramMem * 1024));
         diagram.setQueue(queue);
         return diagram;
     }
@@ -296,14 +1236,107 @@ public class cnvkitWorkflowClient extends OicrWorkflow {
     private Job createSegFile() {
         Job makeSegFile = getWorkflow().createBashJob("makeSegFile");
         Command cmd = makeSegFile.getCommand();
-        cmd.addArgument(this.pythonExports);
-        cmd.addArgument(this.rExports);
-        cmd.addArgument("cnvkit.py export seg " + this.segmetricsCnsFile );
-        cmd.addArgument("--enumerate-chroms");
-        cmd.addArgument("-o " + this.filePath + ".seg");
-        makeSegFile.setMaxMemory(Integer.toString(cnvkitMem * 1024));
+        if (this.javaSegBackend) {
+            cmd.addArgument(javaTool(CnsTool.class, Math.max(1, segMem - 1)) + " export-seg " + exportSegArgs());
+        } else {
+            cmd.addArgument(this.pythonExports);
+            cmd.addArgument(this.rExports);
+            cmd.addArgument("cnvkit.py export seg " + exportSegArgs());
+        }
+        makeSegFile.setMaxMemory(Integer.toString(segMem * 1024));
         makeSegFile.setQueue(queue);
         return makeSegFile;
     }
+
+    /**
+     * Run scatter, segmetrics, call, diagram and export seg in one job. The
+     * cnvkit steps share one interpreter (bin/cnvkit_fused.py), which parses
+     * each .cnr/.cns once and hands the tables to the later steps in memory.
+     * Steps with a java backend run outside it: java segmetrics first, java
+     * call and export seg after the interpreter, followed by the diagram, and
+     * the java plots last.
+     */
+    private Job runPostProcessing() {
+        Job post = getWorkflow().createBashJob("post_process");
+        Command cmd = post.getCommand();
+        cmd.addArgument(this.pythonExports);
+        cmd.addArgument(this.rExports);
+        List<String> steps = new ArrayList<String>();
+        List<String> fused = new ArrayList<String>();
+        if (!this.javaPlots) {
+            fused.add(scatterArgs());
+        }
+        if (this.javaSegmetrics) {
+            steps.add(javaSegmetrics());
+        } else {
+            fused.add("segmetrics " + segmetricsArgs());
+        }
+        if (!this.javaSegBackend) {
+            fused.add(callArgs());
+            if (!this.javaPlots) {
+                fused.add(diagramArgs());
+            }
+            fused.add("export seg " + exportSegArgs());
+        }
+        if (!fused.isEmpty()) {
+            steps.add("python3 " + getWorkflowBaseDir() + "/bin/cnvkit_fused.py " + join(fused, " ::: "));
+        }
+        if (this.javaSegBackend) {
+            steps.add(javaTool(CnsTool.class, Math.max(1, callMem - 1)) + " " + callArgs());
+            steps.add(javaTool(CnsTool.class, Math.max(1, segMem - 1)) + " export-seg " + exportSegArgs());
+            if (!this.javaPlots) {
+                steps.add("cnvkit.py " + diagramArgs());
+            }
+        }
+        if (this.javaPlots) {
+            steps.add(javaPlot(Math.max(scatterMem, diagramMem)) + " " + scatterArgs() + " --threads " + plotThreads);
+            steps.add(javaDiagram());
+        }
+        cmd.addArgument(join(steps, " && "));
+        post.setThreads(Math.max(this.javaSegmetrics ? segmetricsThreads : 1, this.javaPlots ? plotThreads : 1));
+        post.setMaxMemory(Integer.toString(postMem * 1024));
+        post.setQueue(queue);
+        return post;
+    }
+
+    private String scatterArgs() {
+        return "scatter -s " + this.filePath + ".cn{s,r} -o " + this.scatterPngFile;
+    }
+
+    private String javaPlot(int mem) {
+        return javaTool(CnvPlot.class, Math.max(1, mem - 1));
+    }
+
+    private String javaDiagram() {
+        return javaPlot(diagramMem) + " diagram -s " + this.segmetricsCallCnsFile + " -o " + this.diagramPngFile + " --threads " + plotThreads;
+    }
+
+    /**
+     * What the diagram step writes: cnvkit's diagram writes its PDF over the
+     * call .cns, the java one a PNG of its own.
+     */
+    private String diagramFile() {
+        return this.javaPlots ? this.diagramPngFile : this.segmetricsCallCnsFile;
+    }
+
+    private String javaSegmetrics() {
+        return javaTool(Segmetrics.class, Math.max(1, segmetricsMem - 1)) + " " + segmetricsArgs() + " --threads " + segmetricsThreads;
+    }
+
+    private String segmetricsArgs() {
+        return "-s " + this.filePath + ".cn{s,r} --ci --pi -o " + this.segmetricsCnsFile;
+    }
+
+    private String callArgs() {
+        return "call --filter cn --filter ci " + this.segmetricsCnsFile + " -o " + this.segmetricsCallCnsFile;
+    }
+
+    private String diagramArgs() {
+        return "diagram -s " + this.segmetricsCallCnsFile + " -o " + this.segmetricsCallCnsFile;
+    }
+
+    private String exportSegArgs() {
+        return this.segmetricsCnsFile + " --enumerate-chroms -o " + this.filePath + ".seg";
+    }
 }
 
@@ -0,0 +1,309 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Completion markers for workflow steps, so a rerun in the same working
+ * directory skips the steps that already finished with the same inputs.
+ *
+ * <pre>
+ * Checkpoint verify &lt;marker&gt; &lt;key&gt; --in files... --out files...
+ * Checkpoint record &lt;marker&gt; &lt;key&gt; --in files... --out files...
+ * </pre>
+ *
+ * verify exits with 0 if the marker exists for the same key (a hash of the
+ * step's command) and every input and output still has the recorded SHA-256.
+ * Files whose size and modification time are unchanged are trusted without
+ * hashing them again. Otherwise it exits with 1 and saves the state of the
+ * inputs to {@code <marker>.pending}, so a step that rewrites its own input
+ * is recorded against what it read. record writes the marker once the step
+ * has succeeded, and fails if an output is missing. Directories are expanded
+ * to the files under them. Hashes are cached in {@code hashes/} next to the
+ * markers, keyed by path, size and modification time.
+ *
+ * Files larger than {@link #STAT_ONLY_SIZE} (the BAM and other provisioned
+ * inputs) are never read: they are recorded by path, size and modification
+ * time only, with "-" for the hash, and any change to those makes the step run
+ * again. Otherwise every coverage chunk of a scattered run would hash the
+ * whole BAM at once before doing any work.
+ */
+public class Checkpoint {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String PENDING = ".pending";
+    private static final String HASHES = "hashes";
+    private static final String NOT_HASHED = "-";
+    static final long STAT_ONLY_SIZE = 64L << 20;
+
+    private final File hashes;
+    private final long statOnlySize;
+
+    public Checkpoint(File markerDir) {
+        this(markerDir, STAT_ONLY_SIZE);
+    }
+
+    Checkpoint(File markerDir, long statOnlySize) {
+        this.hashes = new File(markerDir, HASHES);
+        this.statOnlySize = statOnlySize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[0].equals("verify") || args[0].equals("record"))) {
+            System.err.println("Usage: Checkpoint verify|record <marker> <key> --in files... --out files...");
+            System.exit(2);
+        }
+        File marker = new File(args[1]);
+        String key = args[2];
+        List<String> inputs = new ArrayList<String>();
+        List<String> outputs = new ArrayList<String>();
+        List<String> current = null;
+        for (String arg : Arrays.asList(args).subList(3, args.length)) {
+            if (arg.equals("--in")) {
+                current = inputs;
+            } else if (arg.equals("--out")) {
+                current = outputs;
+            } else if (current != null) {
+                current.add(arg);
+            } else {
+                throw new IllegalArgumentException("Expected --in or --out before " + arg);
+            }
+        }
+        Checkpoint checkpoint = new Checkpoint(marker.getAbsoluteFile().getParentFile());
+        if (args[0].equals("verify")) {
+            boolean upToDate = checkpoint.verify(marker, key, inputs, outputs);
+            System.err.println(marker.getName() + (upToDate ? " is up to date" : " has to run"));
+            System.exit(upToDate ? 0 : 1);
+        }
+        checkpoint.record(marker, key, inputs, outputs);
+    }
+
+    /**
+     * Check a step's marker against the current files, saving the input state
+     * for {@link #record} if the step has to run.
+     *
+     * @return true if the step can be skipped
+     */
+    public boolean verify(File marker, String key, List<String> inputs, List<String> outputs) throws IOException {
+        List<Entry> in = expand(inputs);
+        List<Entry> out = expand(outputs);
+        if (marker.isFile() && matches(read(marker), key, in, out)) {
+            return true;
+        }
+        marker.delete();
+        File pending = new File(marker.getPath() + PENDING);
+        boolean complete = true;
+        for (Entry e : in) {
+            complete &= e.file.isFile();
+        }
+        if (complete) {
+            List<String> lines = new ArrayList<String>();
+            lines.add("key\t" + key);
+            for (Entry e : in) {
+                lines.add(state("in", e));
+            }
+            write(pending, lines);
+        } else {
+            pending.delete();
+        }
+        return false;
+    }
+
+    /**
+     * Write the marker for a step that has just succeeded.
+     */
+    public void record(File marker, String key, List<String> inputs, List<String> outputs) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add("key\t" + key);
+        File pending = new File(marker.getPath() + PENDING);
+        List<String> saved = pending.isFile() ? read(pending) : null;
+        if (saved != null && saved.get(0).equals("key\t" + key)) {
+            lines.addAll(saved.subList(1, saved.size()));
+        } else {
+            for (Entry e : expand(inputs)) {
+                lines.add(state("in", e));
+            }
+        }
+        for (Entry e : expand(outputs)) {
+            if (!e.file.isFile()) {
+                throw new IOException("Output " + e.path + " was not written");
+            }
+            lines.add(state("out", e));
+        }
+        write(marker, lines);
+        pending.delete();
+    }
+
+    private boolean matches(List<String> recorded, String key, List<Entry> in, List<Entry> out) throws IOException {
+        if (recorded.size() != 1 + in.size() + out.size() || !recorded.get(0).equals("key\t" + key)) {
+            return false;
+        }
+        int i = 1;
+        for (List<Entry> entries : Arrays.asList(in, out)) {
+            String kind = entries == in ? "in" : "out";
+            for (Entry e : entries) {
+                String[] f = recorded.get(i++).split("\t", -1);
+                if (f.length != 5 || !f[0].equals(kind) || !f[1].equals(e.path) || !e.file.isFile()) {
+                    return false;
+                }
+                long size = Long.parseLong(f[2]);
+                long mtime = Long.parseLong(f[3]);
+                if (e.file.length() != size) {
+                    return false;
+                }
+                // same size and timestamp is taken as unchanged; anything else is hashed,
+                // unless the file was too large to hash in the first place
+                if (e.file.lastModified() != mtime
+                        && (f[4].equals(NOT_HASHED) || !f[4].equals(hash(e.file)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<Entry> expand(List<String> paths) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (String p : paths) {
+            expand(p, new File(p), entries);
+        }
+        return entries;
+    }
+
+    private static void expand(String path, File f, List<Entry> entries) {
+        if (!f.isDirectory()) {
+            entries.add(new Entry(path, f));
+            return;
+        }
+        String[] names = f.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            expand(path + (path.endsWith("/") ? "" : "/") + name, new File(f, name), entries);
+        }
+    }
+
+    private static class Entry {
+
+        private final String path;
+        private final File file;
+
+        Entry(String path, File file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
+    private String state(String kind, Entry e) throws IOException {
+        if (!e.file.isFile()) {
+            throw new IOException("Missing " + e.path);
+        }
+        return kind + "\t" + e.path + "\t" + e.file.length() + "\t" + e.file.lastModified() + "\t" + hash(e.file);
+    }
+
+    private String hash(File f) throws IOException {
+        if (f.length() > statOnlySize) {
+            return NOT_HASHED;
+        }
+        String stat = f.getCanonicalPath() + "\t" + f.length() + "\t" + f.lastModified();
+        File cached = new File(hashes, sha256(stat.getBytes(StandardCharsets.UTF_8)));
+        if (cached.isFile()) {
+            List<String> lines = read(cached);
+            if (lines.get(0).length() == 64) {
+                return lines.get(0);
+            }
+        }
+        String hash = sha256(f);
+        write(cached, Arrays.asList(hash));
+        return hash;
+    }
+
+    static String sha256(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static List<String> read(File f) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        if (lines.isEmpty()) {
+            lines.add("");
+        }
+        return lines;
+    }
+
+    private static void write(File f, List<String> lines) throws IOException {
+        File parent = f.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File tmp = new File(parent, f.getName() + "." + UUID.randomUUID());
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+        try {
+            for (String line : lines) {
+                out.write(line + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + f);
+        }
+    }
+}
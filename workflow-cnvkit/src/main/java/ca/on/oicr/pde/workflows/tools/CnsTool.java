@@ -0,0 +1,358 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JVM replacement for the two cnvkit commands the workflow runs on segment
+ * tables, so they no longer need a Python and R environment:
+ *
+ * <pre>
+ * CnsTool export-seg [--enumerate-chroms] segments.cns -o out.seg
+ * CnsTool call [--filter cn|ci]... segments.cns -o out.call.cns
+ * </pre>
+ *
+ * Both follow cnvkit 0.9.3: export seg is {@code cnvkit.py export seg}, and
+ * call is {@code cnvkit.py call} with the default threshold method, ploidy 2, a
+ * female reference and the default thresholds.
+ */
+public class CnsTool {
+
+    private static final double[] THRESHOLDS = {-1.1, -0.25, 0.2, 0.7};
+    private static final int PLOIDY = 2;
+    private static final List<String> REQUIRED_COLUMNS = Arrays.asList("chromosome", "start", "end", "gene", "log2");
+
+    public static void main(String[] args) throws IOException {
+        String command = args.length > 0 ? args[0] : "";
+        boolean enumerateChroms = false;
+        List<String> filters = new ArrayList<String>();
+        String input = null;
+        String output = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--enumerate-chroms")) {
+                enumerateChroms = true;
+            } else if (args[i].equals("--filter") && i + 1 < args.length) {
+                filters.add(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                input = args[i];
+            }
+        }
+        if (input == null || output == null || !(command.equals("export-seg") || command.equals("call"))) {
+            System.err.println("Usage: CnsTool export-seg [--enumerate-chroms] segments.cns -o out.seg");
+            System.err.println("       CnsTool call [--filter cn|ci]... segments.cns -o out.call.cns");
+            System.exit(1);
+        }
+        CnvTable segments = CnvTable.read(new File(input));
+        if (command.equals("export-seg")) {
+            exportSeg(segments, enumerateChroms).write(new File(output));
+        } else {
+            call(segments, filters).write(new File(output));
+        }
+    }
+
+    /**
+     * Convert segments to the SEG format, numbering chromosomes in the order
+     * they appear when enumerateChroms is set.
+     */
+    public static CnvTable exportSeg(CnvTable segments, boolean enumerateChroms) {
+        int chrom = segments.column("chromosome");
+        int start = segments.column("start");
+        int end = segments.column("end");
+        int log2 = segments.column("log2");
+        int probes = segments.has("probes") ? segments.column("probes") : -1;
+
+        Map<String, String> chromIds = new LinkedHashMap<String, String>();
+        if (enumerateChroms) {
+            Set<String> seen = new LinkedHashSet<String>();
+            for (String[] row : segments.getRows()) {
+                seen.add(row[chrom]);
+            }
+            int i = 1;
+            for (String c : seen) {
+                chromIds.put(c, Integer.toString(i++));
+            }
+        }
+
+        List<String> columns = new ArrayList<String>(Arrays.asList("ID", "chrom", "loc.start", "loc.end"));
+        if (probes >= 0) {
+            columns.add("num.mark");
+        }
+        columns.add("seg.mean");
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String[] row : segments.getRows()) {
+            List<String> out = new ArrayList<String>(columns.size());
+            out.add(segments.getSampleId());
+            out.add(chromIds.containsKey(row[chrom]) ? chromIds.get(row[chrom]) : row[chrom]);
+            out.add(row[start]);
+            out.add(row[end]);
+            if (probes >= 0) {
+                out.add(row[probes]);
+            }
+            out.add(CnvTable.format(CnvTable.parseDouble(row[log2])));
+            rows.add(out.toArray(new String[out.size()]));
+        }
+        return new CnvTable(segments.getSampleId(), columns, rows);
+    }
+
+    /**
+     * Call integer copy number by threshold, applying the ci filter before
+     * and the cn filter after calling, as cnvkit does.
+     */
+    public static CnvTable call(CnvTable segments, List<String> filters) {
+        List<String> remaining = new ArrayList<String>(filters);
+        for (String f : remaining) {
+            if (!f.equals("cn") && !f.equals("ci")) {
+                throw new IllegalArgumentException("Unsupported filter " + f);
+            }
+        }
+        CnvTable out = segments;
+        if (remaining.remove("ci")) {
+            out = filter(out, "ci");
+        }
+        out = callThreshold(out);
+        for (String f : remaining) {
+            out = filter(out, f);
+        }
+        return sortColumns(out);
+    }
+
+    private static CnvTable filter(CnvTable table, String filter) {
+        if (filter.equals("cn")) {
+            return squash(table, table.doubles("cn"));
+        }
+        // segments with the whole confidence interval above or below 0 are gains or losses
+        double[] ciLo = table.doubles("ci_lo");
+        double[] ciHi = table.doubles("ci_hi");
+        double[] levels = new double[ciLo.length];
+        for (int i = 0; i < levels.length; i++) {
+            if (ciLo[i] > 0) {
+                levels[i] = 1;
+            }
+            if (ciHi[i] < 0) {
+                levels[i] = -1;
+            }
+        }
+        return squash(table, levels);
+    }
+
+    private static CnvTable callThreshold(CnvTable table) {
+        int chrom = table.column("chromosome");
+        double[] log2 = table.doubles("log2");
+        List<String> columns = new ArrayList<String>(table.getColumns());
+        boolean replace = columns.contains("cn");
+        int cn = replace ? columns.indexOf("cn") : columns.size();
+        if (!replace) {
+            columns.add("cn");
+        }
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int i = 0; i < log2.length; i++) {
+            String[] row = table.getRows().get(i);
+            String[] out = Arrays.copyOf(row, columns.size());
+            out[cn] = Integer.toString(absoluteThreshold(row[chrom], log2[i]));
+            rows.add(out);
+        }
+        return new CnvTable(table.getSampleId(), columns, rows);
+    }
+
+    static int absoluteThreshold(String chromosome, double log2) {
+        String chrom = chromosome.toLowerCase();
+        int refCopies = chrom.equals("chry") || chrom.equals("y") ? PLOIDY / 2 : PLOIDY;
+        if (Double.isNaN(log2)) {
+            return refCopies;
+        }
+        for (int cnum = 0; cnum < THRESHOLDS.length; cnum++) {
+            if (log2 <= THRESHOLDS[cnum]) {
+                return refCopies != PLOIDY ? cnum * refCopies / PLOIDY : cnum;
+            }
+        }
+        return (int) Math.ceil(refCopies * Math.pow(2, log2));
+    }
+
+    /**
+     * Merge each run of equal levels within a chromosome into one segment
+     * (cnvkit's squash_by_groups and squash_region).
+     */
+    static CnvTable squash(CnvTable table, double[] levels) {
+        int chrom = table.column("chromosome");
+        int start = table.column("start");
+        int end = table.column("end");
+        int gene = table.column("gene");
+        double[] log2 = table.doubles("log2");
+        double[] weight = table.doubles("weight");
+        double[] probes = table.has("probes") ? table.doubles("probes") : null;
+        double[] depth = table.has("depth") ? table.doubles("depth") : null;
+        double[] cn = table.has("cn") ? table.doubles("cn") : null;
+
+        List<String> columns = new ArrayList<String>(Arrays.asList("chromosome", "start", "end", "log2", "gene", "probes", "weight"));
+        if (depth != null) {
+            columns.add("depth");
+        }
+        if (cn != null) {
+            columns.add("cn");
+        }
+        List<String[]> rows = new ArrayList<String[]>();
+        List<String[]> in = table.getRows();
+        int from = 0;
+        for (int i = 1; i <= in.size(); i++) {
+            if (i < in.size() && in.get(i)[chrom].equals(in.get(from)[chrom]) && !changed(levels[i - 1], levels[i])) {
+                continue;
+            }
+            List<String> row = new ArrayList<String>(columns.size());
+            row.add(in.get(from)[chrom]);
+            row.add(in.get(from)[start]);
+            row.add(in.get(i - 1)[end]);
+            double regionWeight = CnvTable.sum(weight, from, i);
+            row.add(CnvTable.format(average(log2, weight, from, i, regionWeight)));
+            Set<String> genes = new LinkedHashSet<String>();
+            for (int j = from; j < i; j++) {
+                genes.add(in.get(j)[gene]);
+            }
+            row.add(join(genes));
+            row.add(probes != null ? Long.toString(Math.round(CnvTable.sum(probes, from, i))) : Integer.toString(i - from));
+            row.add(CnvTable.format(regionWeight));
+            if (depth != null) {
+                row.add(CnvTable.format(average(depth, weight, from, i, regionWeight)));
+            }
+            if (cn != null) {
+                double median = regionWeight > 0
+                        ? weightedMedian(Arrays.copyOfRange(cn, from, i), Arrays.copyOfRange(weight, from, i))
+                        : median(Arrays.copyOfRange(cn, from, i));
+                row.add(CnvTable.format(median));
+            }
+            rows.add(row.toArray(new String[row.size()]));
+            from = i;
+        }
+        return new CnvTable(table.getSampleId(), columns, rows);
+    }
+
+    /**
+     * A level change as pandas' diff().fillna(0) sees it.
+     */
+    private static boolean changed(double previous, double current) {
+        double diff = current - previous;
+        return !Double.isNaN(diff) && diff != 0;
+    }
+
+    private static double average(double[] values, double[] weights, int from, int to, double weightSum) {
+        if (weightSum > 0) {
+            double[] products = new double[to - from];
+            for (int i = from; i < to; i++) {
+                products[i - from] = values[i] * weights[i];
+            }
+            return CnvTable.sum(products, 0, products.length) / weightSum;
+        }
+        return CnvTable.sum(values, from, to) / (to - from);
+    }
+
+    /**
+     * cnvkit's descriptives.weighted_median, including its preference for the
+     * mean of the two values around the midpoint.
+     */
+    static double weightedMedian(double[] a, double[] w) {
+        List<double[]> pairs = new ArrayList<double[]>();
+        for (int i = 0; i < a.length; i++) {
+            if (!Double.isNaN(a[i])) {
+                pairs.add(new double[]{a[i], w[i]});
+            }
+        }
+        if (pairs.isEmpty()) {
+            return Double.NaN;
+        }
+        if (pairs.size() == 1) {
+            return pairs.get(0)[0];
+        }
+        Collections.sort(pairs, new java.util.Comparator<double[]>() {
+            @Override
+            public int compare(double[] x, double[] y) {
+                return Double.compare(x[0], y[0]);
+            }
+        });
+        double[] weights = new double[pairs.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = pairs.get(i)[1];
+        }
+        double midpoint = 0.5 * CnvTable.sum(weights, 0, weights.length);
+        int heaviest = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (weights[i] > weights[heaviest]) {
+                heaviest = i;
+            }
+        }
+        if (weights[heaviest] > midpoint) {
+            return pairs.get(heaviest)[0];
+        }
+        double cumulative = 0;
+        int midpointIdx = weights.length;
+        for (int i = 0; i < weights.length; i++) {
+            cumulative += weights[i];
+            if (cumulative >= midpoint) {
+                midpointIdx = i;
+                break;
+            }
+        }
+        if (midpointIdx > 0) {
+            // the cumulative weight before the midpoint is always below it
+            return (0 + pairs.get(midpointIdx - 1)[0] + pairs.get(midpointIdx)[0]) / 2;
+        }
+        return pairs.get(midpointIdx)[0];
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        if (n == 0 || Double.isNaN(sorted[n - 1])) {
+            return Double.NaN;
+        }
+        return n % 2 == 1 ? sorted[n / 2] : (0 + sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+
+    /**
+     * Required columns first, then the rest in alphabetical order.
+     */
+    private static CnvTable sortColumns(CnvTable table) {
+        List<String> extra = new ArrayList<String>();
+        for (String c : table.getColumns()) {
+            if (!REQUIRED_COLUMNS.contains(c)) {
+                extra.add(c);
+            }
+        }
+        Collections.sort(extra);
+        List<String> columns = new ArrayList<String>(REQUIRED_COLUMNS);
+        columns.addAll(extra);
+        int[] index = new int[columns.size()];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = table.column(columns.get(i));
+        }
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String[] row : table.getRows()) {
+            String[] out = new String[index.length];
+            for (int i = 0; i < index.length; i++) {
+                out[i] = row[index[i]];
+            }
+            rows.add(out);
+        }
+        return new CnvTable(table.getSampleId(), columns, rows);
+    }
+
+    private static String join(Set<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String v : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+}
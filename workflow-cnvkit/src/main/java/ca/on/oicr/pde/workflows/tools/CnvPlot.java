@@ -0,0 +1,484 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Draws the plots of cnvkit's scatter and diagram commands as PNG without
+ * python or matplotlib:
+ *
+ * <pre>
+ * CnvPlot scatter -s segments.cns bins.cnr -o scatter.png [--width 1600] [--height 600] [--threads N]
+ * CnvPlot diagram -s segments.cns [bins.cnr] -o diagram.png [--width 1600] [--height 600] [--threads N]
+ * </pre>
+ *
+ * The scatter is the genome-wide log2 ratio of every bin with the segments
+ * over it, the diagram has one bar per chromosome with gains in red and
+ * losses in blue. Bins are streamed from the file twice, once for the extent
+ * of each chromosome and the log2 range and once to count the bins falling
+ * on each pixel, so memory depends on the size of the plot and not on the
+ * number of bins. The chromosome panels are rendered on a thread pool and
+ * put together at the end.
+ */
+public class CnvPlot {
+
+    private static final int LEFT = 60;
+    private static final int RIGHT = 10;
+    private static final int TOP = 10;
+    private static final int BOTTOM = 40;
+    // log2 ratio limits of the scatter, cnvkit clips its y axis at the same values
+    private static final double LOG2_LIMIT = 5;
+    // segments closer to neutral than this are left out of the diagram
+    private static final double DIAGRAM_THRESHOLD = 0.2;
+    private static final Color POINT = new Color(0x60, 0x60, 0x60);
+    private static final Color SEGMENT = new Color(0xff, 0x8c, 0x00);
+    private static final Color GRID = new Color(0xd0, 0xd0, 0xd0);
+    private static final Color BAR = new Color(0xe8, 0xe8, 0xe8);
+
+    private final int width;
+    private final int height;
+    private final int threads;
+
+    public CnvPlot(int width, int height, int threads) {
+        if (width <= LEFT + RIGHT || height <= TOP + BOTTOM) {
+            throw new IllegalArgumentException("Plot of " + width + "x" + height + " pixels is too small");
+        }
+        this.width = width;
+        this.height = height;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        String command = args.length > 0 ? args[0] : "";
+        int width = 1600;
+        int height = 600;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File segments = null;
+        File bins = null;
+        File output = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-s") && i + 1 < args.length) {
+                segments = new File(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if (args[i].equals("--width") && i + 1 < args.length) {
+                width = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--height") && i + 1 < args.length) {
+                height = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                bins = new File(args[i]);
+            }
+        }
+        CnvPlot plot = new CnvPlot(width, height, threads);
+        BufferedImage image;
+        if (command.equals("scatter") && bins != null && output != null) {
+            image = plot.scatter(bins, segments);
+        } else if (command.equals("diagram") && segments != null && output != null) {
+            image = plot.diagram(segments, bins);
+        } else {
+            System.err.println("Usage: CnvPlot scatter -s segments.cns bins.cnr -o scatter.png [--width 1600] [--height 600] [--threads N]");
+            System.err.println("       CnvPlot diagram -s segments.cns [bins.cnr] -o diagram.png [--width 1600] [--height 600] [--threads N]");
+            System.exit(1);
+            return;
+        }
+        if (!ImageIO.write(image, "png", output)) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
+    /**
+     * Genome-wide scatter of the bins' log2 ratios, with the segments drawn
+     * over them if a segment file is given.
+     */
+    public BufferedImage scatter(File bins, File segments) throws IOException {
+        final Map<String, Chromosome> chromosomes = chromosomes();
+        final double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        stream(bins, new Rows() {
+            @Override
+            public void row(String chromosome, long start, long end, double log2) {
+                get(chromosomes, chromosome).extend(end);
+                if (!Double.isNaN(log2) && !Double.isInfinite(log2)) {
+                    range[0] = Math.min(range[0], log2);
+                    range[1] = Math.max(range[1], log2);
+                }
+            }
+        });
+        if (segments != null) {
+            readSegments(segments, chromosomes);
+        }
+        final int plotHeight = height - TOP - BOTTOM;
+        // whole numbers with some room, so the extremes stay off the frame
+        final double yMin = Math.max(-LOG2_LIMIT, Math.min(-1, Math.floor(range[0] - 0.1)));
+        final double yMax = Math.min(LOG2_LIMIT, Math.max(1, Math.ceil(range[1] + 0.1)));
+        layOut(chromosomes, width - LEFT - RIGHT);
+        for (Chromosome c : chromosomes.values()) {
+            c.counts = new int[c.width * plotHeight];
+        }
+        stream(bins, new Rows() {
+            @Override
+            public void row(String chromosome, long start, long end, double log2) {
+                if (!Double.isNaN(log2)) {
+                    Chromosome c = chromosomes.get(chromosome);
+                    c.counts[y(log2, yMin, yMax, plotHeight) * c.width + c.x(start + (end - start) / 2)]++;
+                }
+            }
+        });
+
+        List<BufferedImage> panels = render(chromosomes, new Panel() {
+            @Override
+            public BufferedImage draw(Chromosome c) {
+                BufferedImage image = new BufferedImage(c.width, plotHeight, BufferedImage.TYPE_INT_ARGB);
+                for (int y = 0; y < plotHeight; y++) {
+                    for (int x = 0; x < c.width; x++) {
+                        int n = c.counts[y * c.width + x];
+                        if (n > 0) {
+                            // darker where more bins fall on the same pixel
+                            int alpha = Math.min(255, 64 + 32 * n);
+                            image.setRGB(x, y, (alpha << 24) | (POINT.getRGB() & 0xffffff));
+                        }
+                    }
+                }
+                Graphics2D g = image.createGraphics();
+                g.setColor(SEGMENT);
+                g.setStroke(new BasicStroke(2));
+                for (double[] s : c.segments) {
+                    int y = y(s[2], yMin, yMax, plotHeight);
+                    g.drawLine(c.x((long) s[0]), y, c.x((long) s[1] - 1), y);
+                }
+                g.dispose();
+                return image;
+            }
+        });
+
+        BufferedImage image = canvas();
+        Graphics2D g = image.createGraphics();
+        g.setColor(GRID);
+        int zero = TOP + y(0, yMin, yMax, plotHeight);
+        g.drawLine(LEFT, zero, width - RIGHT, zero);
+        int i = 0;
+        for (Chromosome c : chromosomes.values()) {
+            g.setColor(GRID);
+            g.drawLine(LEFT + c.left, TOP, LEFT + c.left, TOP + plotHeight);
+            g.drawImage(panels.get(i++), LEFT + c.left, TOP, null);
+            label(g, c.label(), LEFT + c.left + c.width / 2, TOP + plotHeight + 15);
+        }
+        g.setColor(Color.BLACK);
+        g.drawRect(LEFT, TOP, width - LEFT - RIGHT, plotHeight);
+        FontMetrics metrics = g.getFontMetrics();
+        for (int tick = (int) yMin; tick <= yMax; tick++) {
+            int y = TOP + y(tick, yMin, yMax, plotHeight);
+            g.drawLine(LEFT - 4, y, LEFT, y);
+            String text = Integer.toString(tick);
+            g.drawString(text, LEFT - 6 - metrics.stringWidth(text), y + metrics.getAscent() / 2);
+        }
+        g.rotate(-Math.PI / 2);
+        label(g, "Copy ratio (log2)", -(TOP + plotHeight / 2), 15);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * One bar per chromosome, scaled to the longest, with the segments
+     * colored by their log2 ratio. The bins only add to the chromosome
+     * lengths, which are otherwise taken from the segments.
+     */
+    public BufferedImage diagram(File segments, File bins) throws IOException {
+        final Map<String, Chromosome> chromosomes = chromosomes();
+        if (bins != null) {
+            stream(bins, new Rows() {
+                @Override
+                public void row(String chromosome, long start, long end, double log2) {
+                    get(chromosomes, chromosome).extend(end);
+                }
+            });
+        }
+        readSegments(segments, chromosomes);
+        final int plotHeight = height - TOP - BOTTOM;
+        final int column = Math.max(1, (width - LEFT - RIGHT) / Math.max(1, chromosomes.size()));
+        long longest = 1;
+        for (Chromosome c : chromosomes.values()) {
+            longest = Math.max(longest, c.length);
+        }
+        final long scale = longest;
+
+        List<BufferedImage> panels = render(chromosomes, new Panel() {
+            @Override
+            public BufferedImage draw(Chromosome c) {
+                BufferedImage image = new BufferedImage(column, plotHeight, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = image.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                int barWidth = Math.max(2, column / 2);
+                int barX = (column - barWidth) / 2;
+                int barHeight = Math.max(1, (int) ((double) c.length / scale * plotHeight));
+                Shape bar = new RoundRectangle2D.Double(barX, 0, barWidth, barHeight, barWidth, barWidth);
+                g.setColor(BAR);
+                g.fill(bar);
+                g.setClip(bar);
+                for (double[] s : c.segments) {
+                    double log2 = s[2];
+                    if (Double.isNaN(log2) || Math.abs(log2) < DIAGRAM_THRESHOLD) {
+                        continue;
+                    }
+                    int y0 = (int) Math.floor(s[0] / scale * plotHeight);
+                    int y1 = Math.max(y0 + 1, (int) Math.ceil(s[1] / scale * plotHeight));
+                    int strength = (int) (255 * Math.min(1, Math.abs(log2)));
+                    g.setColor(log2 > 0 ? new Color(255, 255 - strength, 255 - strength) : new Color(255 - strength, 255 - strength, 255));
+                    g.fillRect(barX, y0, barWidth, y1 - y0);
+                }
+                g.setClip(null);
+                g.setColor(Color.GRAY);
+                g.draw(bar);
+                g.dispose();
+                return image;
+            }
+        });
+
+        BufferedImage image = canvas();
+        Graphics2D g = image.createGraphics();
+        int i = 0;
+        for (Chromosome c : chromosomes.values()) {
+            int x = LEFT + i * column;
+            g.drawImage(panels.get(i++), x, TOP, null);
+            label(g, c.label(), x + column / 2, TOP + plotHeight + 15);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private BufferedImage canvas() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    private static void label(Graphics2D g, String text, int x, int y) {
+        g.setColor(Color.BLACK);
+        g.setFont(g.getFont().deriveFont(Font.PLAIN, 11f));
+        g.drawString(text, x - g.getFontMetrics().stringWidth(text) / 2, y);
+    }
+
+    /**
+     * Pixel row of a log2 ratio, values out of range are put on the edge.
+     */
+    static int y(double log2, double yMin, double yMax, int plotHeight) {
+        int y = (int) Math.round((yMax - log2) / (yMax - yMin) * (plotHeight - 1));
+        return Math.max(0, Math.min(plotHeight - 1, y));
+    }
+
+    /**
+     * Give each chromosome a share of the plot width proportional to its
+     * length, at least one pixel.
+     */
+    static void layOut(Map<String, Chromosome> chromosomes, int plotWidth) {
+        long total = 0;
+        for (Chromosome c : chromosomes.values()) {
+            total += c.length;
+        }
+        long before = 0;
+        for (Chromosome c : chromosomes.values()) {
+            c.left = (int) (before * plotWidth / Math.max(1, total));
+            before += c.length;
+            int right = (int) (before * plotWidth / Math.max(1, total));
+            c.width = Math.max(1, right - c.left);
+        }
+    }
+
+    private List<BufferedImage> render(Map<String, Chromosome> chromosomes, final Panel panel) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+            for (final Chromosome c : chromosomes.values()) {
+                futures.add(pool.submit(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() {
+                        return panel.draw(c);
+                    }
+                }));
+            }
+            List<BufferedImage> panels = new ArrayList<BufferedImage>();
+            for (Future<BufferedImage> f : futures) {
+                panels.add(f.get());
+            }
+            return panels;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while drawing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to draw a chromosome", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void readSegments(File segments, final Map<String, Chromosome> chromosomes) throws IOException {
+        stream(segments, new Rows() {
+            @Override
+            public void row(String chromosome, long start, long end, double log2) {
+                Chromosome c = get(chromosomes, chromosome);
+                c.extend(end);
+                c.segments.add(new double[]{start, end, log2});
+            }
+        });
+    }
+
+    /**
+     * Chromosomes in cnvkit's order.
+     */
+    private static Map<String, Chromosome> chromosomes() {
+        return new TreeMap<String, Chromosome>(new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return CnvTable.compareChromosomes(a, b);
+            }
+        });
+    }
+
+    private static Chromosome get(Map<String, Chromosome> chromosomes, String name) {
+        Chromosome c = chromosomes.get(name);
+        if (c == null) {
+            c = new Chromosome(name);
+            chromosomes.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * Read the chromosome, start, end and log2 columns of a table one line at
+     * a time, without keeping the lines.
+     */
+    static void stream(File file, Rows rows) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Empty table " + file);
+            }
+            List<String> columns = Arrays.asList(header.split("\t", -1));
+            int[] wanted = {columns.indexOf("chromosome"), columns.indexOf("start"), columns.indexOf("end"), columns.indexOf("log2")};
+            for (int w : wanted) {
+                if (w < 0) {
+                    throw new IOException("Expected chromosome, start, end and log2 columns in " + file);
+                }
+            }
+            String[] fields = new String[4];
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int from = 0;
+                int column = 0;
+                int found = 0;
+                while (found < 4 && from <= line.length()) {
+                    int tab = line.indexOf('\t', from);
+                    int to = tab < 0 ? line.length() : tab;
+                    for (int i = 0; i < 4; i++) {
+                        if (wanted[i] == column) {
+                            fields[i] = line.substring(from, to);
+                            found++;
+                        }
+                    }
+                    from = to + 1;
+                    column++;
+                }
+                if (found < 4) {
+                    throw new IOException("Expected " + columns.size() + " fields in " + file + ": " + line);
+                }
+                try {
+                    rows.row(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), CnvTable.parseDouble(fields[3]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed number in " + file + ": " + line, e);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    interface Rows {
+
+        void row(String chromosome, long start, long end, double log2);
+    }
+
+    private interface Panel {
+
+        BufferedImage draw(Chromosome c);
+    }
+
+    /**
+     * What is drawn of one chromosome: its extent, segments and, for the
+     * scatter, the number of bins on each pixel of its panel.
+     */
+    static final class Chromosome {
+
+        private final String name;
+        private final List<double[]> segments = new ArrayList<double[]>();
+        private long length;
+        private int left;
+        private int width;
+        private int[] counts;
+
+        Chromosome(String name) {
+            this.name = name;
+        }
+
+        void extend(long end) {
+            length = Math.max(length, end);
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        int getLeft() {
+            return left;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        /**
+         * Pixel column of a position within the chromosome's panel.
+         */
+        int x(long position) {
+            int x = (int) (Math.max(0, position) * width / Math.max(1, length));
+            return Math.min(width - 1, x);
+        }
+
+        String label() {
+            return name.toLowerCase().startsWith("chr") ? name.substring(3) : name;
+        }
+    }
+}
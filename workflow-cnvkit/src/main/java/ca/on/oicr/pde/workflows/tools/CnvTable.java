@@ -0,0 +1,295 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cnvkit tabular file (.cnn, .cnr or .cns) read line by line into raw string
+ * rows, plus the conventions cnvkit uses when reading and writing them: rows
+ * are ordered by chromosome, start and end, floats are written with "%.6g"
+ * and missing values as empty fields.
+ */
+public class CnvTable {
+
+    private final String sampleId;
+    private final List<String> columns;
+    private final List<String[]> rows;
+
+    public CnvTable(String sampleId, List<String> columns, List<String[]> rows) {
+        this.sampleId = sampleId;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Read a table the way cnvkit's read_cna does, sorting the rows by
+     * chromosome, start and end if they are not in that order already.
+     */
+    public static CnvTable read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Empty table " + file);
+            }
+            List<String> columns = Arrays.asList(header.split("\t", -1));
+            List<String[]> rows = new ArrayList<String[]>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] row = line.split("\t", -1);
+                if (row.length != columns.size()) {
+                    throw new IOException("Expected " + columns.size() + " fields in " + file + ": " + line);
+                }
+                rows.add(row);
+            }
+            CnvTable table = new CnvTable(sampleId(file.getName()), columns, rows);
+            table.sort();
+            return table;
+        } finally {
+            in.close();
+        }
+    }
+
+    public String getSampleId() {
+        return sampleId;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public List<String[]> getRows() {
+        return rows;
+    }
+
+    public boolean has(String column) {
+        return columns.contains(column);
+    }
+
+    public int column(String column) {
+        int i = columns.indexOf(column);
+        if (i < 0) {
+            throw new IllegalArgumentException("Missing column " + column);
+        }
+        return i;
+    }
+
+    public double[] doubles(String column) {
+        int c = column(column);
+        double[] values = new double[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parseDouble(rows.get(i)[c]);
+        }
+        return values;
+    }
+
+    private void sort() {
+        final int chrom = column("chromosome");
+        final int start = column("start");
+        final int end = column("end");
+        Comparator<String[]> order = new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                int c = compareChromosomes(a[chrom], b[chrom]);
+                if (c == 0) {
+                    c = Long.compare(Long.parseLong(a[start]), Long.parseLong(b[start]));
+                }
+                if (c == 0) {
+                    c = Long.compare(Long.parseLong(a[end]), Long.parseLong(b[end]));
+                }
+                return c;
+            }
+        };
+        for (int i = 1; i < rows.size(); i++) {
+            if (order.compare(rows.get(i - 1), rows.get(i)) > 0) {
+                // stable, like the mergesort cnvkit asks pandas for
+                Collections.sort(rows, order);
+                return;
+            }
+        }
+    }
+
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(Writer out) throws IOException {
+        out.write(join(columns.toArray(new String[columns.size()])));
+        out.write('\n');
+        for (String[] row : rows) {
+            out.write(join(row));
+            out.write('\n');
+        }
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            sb.append(fields[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Order chromosomes the way cnvkit's sorter_chrom does: numbered
+     * chromosomes first, then X and Y, then other single-letter names, then
+     * everything else, ignoring a "chr" prefix.
+     */
+    public static int compareChromosomes(String a, String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        Object[] ka = chromosomeKey(a);
+        Object[] kb = chromosomeKey(b);
+        int c = Integer.compare((Integer) ka[0], (Integer) kb[0]);
+        return c != 0 ? c : ((String) ka[1]).compareTo((String) kb[1]);
+    }
+
+    private static Object[] chromosomeKey(String label) {
+        String chrom = label.toLowerCase().startsWith("chr") ? label.substring(3) : label;
+        if (chrom.equals("X") || chrom.equals("Y")) {
+            return new Object[]{1000, chrom};
+        }
+        int digits = 0;
+        while (digits < chrom.length() && Character.isDigit(chrom.charAt(digits))) {
+            digits++;
+        }
+        int nums = digits > 0 ? Integer.parseInt(chrom.substring(0, digits)) : 0;
+        String chars = chrom.substring(digits);
+        if (chars.isEmpty()) {
+            return new Object[]{nums, ""};
+        } else if (chars.length() == 1) {
+            return new Object[]{2000 + nums, chars};
+        }
+        return new Object[]{3000 + nums, chars};
+    }
+
+    /**
+     * Sample ID cnvkit derives from a file name (core.fbase).
+     */
+    public static String sampleId(String fileName) {
+        String base = new File(fileName).getName();
+        if (base.endsWith(".gz")) {
+            base = base.substring(0, base.length() - 3);
+        }
+        for (String ext : new String[]{".antitargetcoverage.cnn", ".targetcoverage.cnn",
+            ".antitargetcoverage.csv", ".targetcoverage.csv", ".recal.bam", ".deduplicated.realign.bam"}) {
+            if (base.endsWith(ext)) {
+                return base.substring(0, base.length() - ext.length());
+            }
+        }
+        int dot = base.lastIndexOf('.');
+        return dot < 0 ? base : base.substring(0, dot);
+    }
+
+    public static double parseDouble(String value) {
+        if (value.isEmpty() || value.equalsIgnoreCase("nan")) {
+            return Double.NaN;
+        }
+        if (value.equalsIgnoreCase("inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (value.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Format a float the way pandas writes cnvkit tables: Python's "%.6g",
+     * with NaN as an empty field.
+     */
+    public static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (value == 0) {
+            return 1 / value < 0 ? "-0" : "0";
+        }
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(6, RoundingMode.HALF_EVEN));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= 6) {
+            String digits = rounded.unscaledValue().abs().toString().replaceFirst("0+$", "");
+            StringBuilder sb = new StringBuilder();
+            if (rounded.signum() < 0) {
+                sb.append('-');
+            }
+            sb.append(digits.charAt(0));
+            if (digits.length() > 1) {
+                sb.append('.').append(digits, 1, digits.length());
+            }
+            sb.append(exponent < 0 ? "e-" : "e+");
+            sb.append(String.format("%02d", Math.abs(exponent)));
+            return sb.toString();
+        }
+        return rounded.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Sum in the order numpy's add.reduce uses (starting from the identity,
+     * pairwise in unrolled blocks of eight), so averages round the same way
+     * they do in cnvkit.
+     */
+    public static double sum(double[] values, int from, int to) {
+        return 0 + pairwiseSum(values, from, Math.max(0, to - from));
+    }
+
+    private static double pairwiseSum(double[] a, int offset, int n) {
+        if (n < 8) {
+            double res = 0;
+            for (int i = 0; i < n; i++) {
+                res += a[offset + i];
+            }
+            return res;
+        } else if (n <= 128) {
+            double[] r = new double[8];
+            for (int j = 0; j < 8; j++) {
+                r[j] = a[offset + j];
+            }
+            int i;
+            for (i = 8; i < n - (n % 8); i += 8) {
+                for (int j = 0; j < 8; j++) {
+                    r[j] += a[offset + i + j];
+                }
+            }
+            double res = ((r[0] + r[1]) + (r[2] + r[3])) + ((r[4] + r[5]) + (r[6] + r[7]));
+            for (; i < n; i++) {
+                res += a[offset + i];
+            }
+            return res;
+        }
+        int n2 = n / 2;
+        n2 -= n2 % 8;
+        return pairwiseSum(a, offset, n2) + pairwiseSum(a, offset + n2, n - n2);
+    }
+}
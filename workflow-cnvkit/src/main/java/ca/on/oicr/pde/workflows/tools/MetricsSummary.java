@@ -0,0 +1,233 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summarizes the job metrics tables provisioned by workflow runs, one line per
+ * step, to size the resources of each step and to spot steps that got slower.
+ *
+ * <pre>
+ * MetricsSummary [--baseline path]... path...
+ * </pre>
+ *
+ * A path is a metrics table or a directory searched for files ending in
+ * {@code .job_metrics.tsv}. Each row of a table is one job as measured by GNU
+ * time and /proc (see {@link #HEADER}). Wall and CPU time, peak RSS and bytes
+ * read and written are reported as percentiles over all runs of a step, failed jobs
+ * included. With --baseline, the median wall time of each step is compared to
+ * the one in the baseline tables, e.g. last quarter's runs.
+ */
+public class MetricsSummary {
+
+    /**
+     * Columns of a metrics table. rchar and wchar are the bytes the job passed
+     * through read and write calls, from /proc/&lt;pid&gt;/io, whether they
+     * came from the page cache, a local disk or NFS; they are empty where
+     * /proc could not be read.
+     */
+    public static final String HEADER = "step\tjob\trequested_mem_mb\tthreads\twall_s\tuser_s\tsys_s\tmax_rss_kb\texit\trchar_bytes\twchar_bytes";
+    public static final String SUFFIX = ".job_metrics.tsv";
+    private static final int COLUMNS = HEADER.split("\t").length;
+    private static final double MB = 1024 * 1024;
+
+    private final Map<String, Step> steps = new TreeMap<String, Step>();
+
+    public static void main(String[] args) throws IOException {
+        MetricsSummary current = new MetricsSummary();
+        MetricsSummary baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--baseline") && i + 1 < args.length) {
+                if (baseline == null) {
+                    baseline = new MetricsSummary();
+                }
+                baseline.add(new File(args[++i]));
+            } else {
+                current.add(new File(args[i]));
+            }
+        }
+        if (current.steps.isEmpty()) {
+            System.err.println("Usage: MetricsSummary [--baseline path]... path...");
+            System.exit(2);
+        }
+        current.write(System.out, baseline);
+    }
+
+    /**
+     * Read a metrics table, or every table under a directory.
+     */
+    public void add(File path) throws IOException {
+        if (path.isDirectory()) {
+            File[] children = path.listFiles();
+            if (children == null) {
+                throw new IOException("Cannot list " + path);
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isDirectory() || child.getName().endsWith(SUFFIX)) {
+                    add(child);
+                }
+            }
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("step\t")) {
+                    add(line, path);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(String line, File path) throws IOException {
+        String[] f = line.split("\t", -1);
+        if (f.length != COLUMNS) {
+            throw new IOException("Expected " + COLUMNS + " columns in " + path + ": " + line);
+        }
+        Step step = steps.get(f[0]);
+        if (step == null) {
+            step = new Step();
+            steps.put(f[0], step);
+        }
+        try {
+            step.requestedMb = Math.max(step.requestedMb, f[2].isEmpty() ? 0 : Long.parseLong(f[2]));
+            step.threads = Math.max(step.threads, Integer.parseInt(f[3]));
+            step.wall.add(Double.parseDouble(f[4]));
+            step.cpu.add(Double.parseDouble(f[5]) + Double.parseDouble(f[6]));
+            step.rssMb.add(Long.parseLong(f[7]) / 1024.0);
+            if (!f[8].equals("0")) {
+                step.failed++;
+            }
+            if (!f[9].isEmpty()) {
+                step.rcharMb.add(Long.parseLong(f[9]) / MB);
+            }
+            if (!f[10].isEmpty()) {
+                step.wcharMb.add(Long.parseLong(f[10]) / MB);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number in " + path + ": " + line, e);
+        }
+    }
+
+    public Map<String, Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Write one tab-separated line per step.
+     *
+     * @param baseline earlier runs to compare the median wall time with, or null
+     */
+    public void write(PrintStream out, MetricsSummary baseline) {
+        out.print("step\truns\tfailed\twall_p50_s\twall_p95_s\twall_max_s\tcpu_p50_s\tcpu_per_wall\t"
+                + "threads\trss_p95_mb\trss_max_mb\trequested_mb\trchar_p50_mb\twchar_p50_mb");
+        out.println(baseline == null ? "" : "\tbaseline_wall_p50_s\twall_p50_change");
+        for (Map.Entry<String, Step> e : steps.entrySet()) {
+            Step s = e.getValue();
+            StringBuilder sb = new StringBuilder(e.getKey());
+            sb.append('\t').append(s.wall.size()).append('\t').append(s.failed);
+            sb.append('\t').append(format(s.percentile(s.wall, 50))).append('\t').append(format(s.percentile(s.wall, 95)));
+            sb.append('\t').append(format(s.percentile(s.wall, 100))).append('\t').append(format(s.percentile(s.cpu, 50)));
+            sb.append('\t').append(format(s.cpuPerWall())).append('\t').append(s.threads);
+            sb.append('\t').append(format(s.percentile(s.rssMb, 95))).append('\t').append(format(s.percentile(s.rssMb, 100)));
+            sb.append('\t').append(s.requestedMb);
+            sb.append('\t').append(format(s.percentile(s.rcharMb, 50))).append('\t').append(format(s.percentile(s.wcharMb, 50)));
+            if (baseline != null) {
+                Step b = baseline.steps.get(e.getKey());
+                if (b == null) {
+                    sb.append("\tNA\tNA");
+                } else {
+                    double before = b.percentile(b.wall, 50);
+                    sb.append('\t').append(format(before));
+                    sb.append('\t').append(before > 0 ? String.format("%+.1f%%", 100 * (s.percentile(s.wall, 50) / before - 1)) : "NA");
+                }
+            }
+            out.println(sb);
+        }
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    /**
+     * Measurements of all runs of one step.
+     */
+    public static class Step {
+
+        private final List<Double> wall = new ArrayList<Double>();
+        private final List<Double> cpu = new ArrayList<Double>();
+        private final List<Double> rssMb = new ArrayList<Double>();
+        private final List<Double> rcharMb = new ArrayList<Double>();
+        private final List<Double> wcharMb = new ArrayList<Double>();
+        private long requestedMb;
+        private int threads;
+        private int failed;
+
+        public int getRuns() {
+            return wall.size();
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public double getWallMedian() {
+            return percentile(wall, 50);
+        }
+
+        public double getRssMaxMb() {
+            return percentile(rssMb, 100);
+        }
+
+        public double getRcharMedianMb() {
+            return percentile(rcharMb, 50);
+        }
+
+        public double getWcharMedianMb() {
+            return percentile(wcharMb, 50);
+        }
+
+        /**
+         * Average number of busy cores, well below the threads
+         * means the step is over-provisioned.
+         */
+        public double cpuPerWall() {
+            double w = 0;
+            double c = 0;
+            for (int i = 0; i < wall.size(); i++) {
+                w += wall.get(i);
+                c += cpu.get(i);
+            }
+            return w > 0 ? c / w : 0;
+        }
+
+        /**
+         * Nearest-rank percentile.
+         */
+        private double percentile(List<Double> values, int p) {
+            if (values.isEmpty()) {
+                return 0;
+            }
+            List<Double> sorted = new ArrayList<Double>(values);
+            Collections.sort(sorted);
+            int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+            return sorted.get(Math.max(0, rank - 1));
+        }
+    }
+}
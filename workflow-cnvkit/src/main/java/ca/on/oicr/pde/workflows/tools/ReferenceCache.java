@@ -0,0 +1,370 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Node-local cache of the reference artifacts used by cnvkit: the reference
+ * .cnn and the target/antitarget BEDs derived from it.
+ *
+ * Entries live in {@code <cache-dir>/<sha256 of the reference>/} and hold
+ * {@code reference.cnn}, {@code target.bed} and {@code antitarget.bed}. A
+ * second index, {@code <cache-dir>/keys/}, maps the source path, size and
+ * modification time to the content hash, so a warm lookup only needs a stat of
+ * the shared file. Entries are touched on every use and the least recently
+ * used ones are evicted once the cache grows past its size cap. All updates
+ * are done under an exclusive lock on {@code <cache-dir>/.lock}, so concurrent
+ * jobs on the same node can share the cache.
+ *
+ * The lock is only held while staging, the job then reads the entry on its
+ * own. To keep the entry from being evicted meanwhile, the job passes the pid
+ * of its shell, which is recorded in {@code <cache-dir>/in-use/}; entries held
+ * by a process that is still running, as seen in /proc, are not evicted, and
+ * markers of processes that are gone are dropped.
+ *
+ * Usage: {@code ReferenceCache <cache-dir> <max-gb> <reference.cnn> [holder-pid]};
+ * the entry directory is printed on stdout.
+ */
+public class ReferenceCache {
+
+    public static final String REFERENCE = "reference.cnn";
+    public static final String TARGETS = "target.bed";
+    public static final String ANTITARGETS = "antitarget.bed";
+
+    private static final String KEYS = "keys";
+    private static final String IN_USE = "in-use";
+    /**
+     * Gene names of antitarget bins; references built before cnvkit 0.8 call
+     * them "Background".
+     */
+    private static final List<String> ANTITARGET_NAMES = Arrays.asList("Antitarget", "Background");
+    private static final String LOCK = ".lock";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File cacheDir;
+    private final long maxBytes;
+
+    public ReferenceCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].matches("[0-9]+"))) {
+            System.err.println("Usage: ReferenceCache <cache-dir> <max-gb> <reference.cnn> [holder-pid]");
+            System.exit(1);
+        }
+        long maxBytes = (long) (Double.parseDouble(args[1]) * 1024 * 1024 * 1024);
+        ReferenceCache cache = new ReferenceCache(new File(args[0]), maxBytes);
+        System.out.println(cache.stage(new File(args[2]), args.length == 4 ? args[3] : null).getAbsolutePath());
+    }
+
+    public File stage(File reference) throws IOException {
+        return stage(reference, null);
+    }
+
+    /**
+     * Return the cache entry for the given reference, copying it and deriving
+     * the interval files on a miss.
+     *
+     * @param reference the reference .cnn on shared storage
+     * @param holder the pid of the process reading the entry, which keeps it
+     * from being evicted until that process exits, or null
+     * @return the entry directory
+     * @throws IOException if the reference cannot be read or the cache cannot be written
+     */
+    public File stage(File reference, String holder) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + cacheDir);
+        }
+        for (String dir : Arrays.asList(KEYS, IN_USE)) {
+            File f = new File(cacheDir, dir);
+            if (!f.isDirectory() && !f.mkdirs()) {
+                throw new IOException("Cannot create cache directory " + f);
+            }
+        }
+
+        RandomAccessFile lockFile = new RandomAccessFile(new File(cacheDir, LOCK), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                File entry = lookup(reference);
+                if (entry == null) {
+                    System.err.println("Reference cache miss for " + reference);
+                    entry = add(reference);
+                } else {
+                    System.err.println("Reference cache hit for " + reference + ": " + entry);
+                }
+                entry.setLastModified(System.currentTimeMillis());
+                if (holder != null) {
+                    writeLine(new File(new File(cacheDir, IN_USE), entry.getName() + "." + holder), holder);
+                }
+                evict(entry);
+                return entry;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    private File lookup(File reference) throws IOException {
+        File key = new File(new File(cacheDir, KEYS), statKey(reference));
+        if (!key.isFile()) {
+            return null;
+        }
+        String hash = readFirstLine(key);
+        if (hash == null || !new File(new File(cacheDir, hash), REFERENCE).isFile()) {
+            // entry was evicted, drop the stale key
+            key.delete();
+            return null;
+        }
+        return new File(cacheDir, hash);
+    }
+
+    private File add(File reference) throws IOException {
+        File staging = new File(cacheDir, "staging-" + UUID.randomUUID());
+        if (!staging.mkdir()) {
+            throw new IOException("Cannot create " + staging);
+        }
+        try {
+            String hash = copyAndHash(reference, new File(staging, REFERENCE));
+            File entry = new File(cacheDir, hash);
+            if (new File(entry, REFERENCE).isFile()) {
+                // same content under another path or timestamp
+                deleteRecursively(staging);
+            } else {
+                deleteRecursively(entry);
+                splitRegions(new File(staging, REFERENCE), new File(staging, TARGETS), new File(staging, ANTITARGETS));
+                if (!staging.renameTo(entry)) {
+                    throw new IOException("Cannot move " + staging + " to " + entry);
+                }
+            }
+            writeLine(new File(new File(cacheDir, KEYS), statKey(reference)), hash);
+            return entry;
+        } finally {
+            if (staging.exists()) {
+                deleteRecursively(staging);
+            }
+        }
+    }
+
+    /**
+     * Delete least recently used entries until the cache fits its cap. The
+     * entry being staged and the entries held by running jobs are never
+     * evicted, even if they alone are over the cap.
+     */
+    private void evict(File keep) throws IOException {
+        File[] entries = cacheDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        Set<String> held = held();
+        List<File> candidates = new ArrayList<File>();
+        long total = 0;
+        for (File f : entries) {
+            if (f.isDirectory() && f.getName().matches("[0-9a-f]{64}")) {
+                total += sizeOf(f);
+                if (!f.equals(keep) && !held.contains(f.getName())) {
+                    candidates.add(f);
+                }
+            }
+        }
+        File[] sorted = candidates.toArray(new File[candidates.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : sorted) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long size = sizeOf(f);
+            System.err.println("Evicting " + f + " from the reference cache");
+            deleteRecursively(f);
+            total -= size;
+        }
+    }
+
+    /**
+     * Hashes of the entries held by a running process, dropping the markers
+     * of processes that exited.
+     */
+    private Set<String> held() throws IOException {
+        Set<String> held = new HashSet<String>();
+        File[] markers = new File(cacheDir, IN_USE).listFiles();
+        if (markers == null) {
+            return held;
+        }
+        for (File marker : markers) {
+            String[] f = marker.getName().split("\\.");
+            if (f.length == 2 && new File("/proc", f[1]).isDirectory()) {
+                held.add(f[0]);
+            } else if (!marker.delete() && marker.exists()) {
+                throw new IOException("Cannot delete " + marker);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Write the target and antitarget intervals of a reference the same way
+     * cnvkit.py batch extracts them: every bin is a target unless its gene is
+     * "Antitarget" or "Background".
+     */
+    static void splitRegions(File reference, File targets, File antitargets) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(reference), StandardCharsets.UTF_8));
+        try {
+            Writer tgt = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(targets), StandardCharsets.UTF_8));
+            Writer anti = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(antitargets), StandardCharsets.UTF_8));
+            try {
+                String header = in.readLine();
+                if (header == null) {
+                    throw new IOException("Empty reference " + reference);
+                }
+                List<String> columns = Arrays.asList(header.split("\t"));
+                int chrom = columns.indexOf("chromosome");
+                int start = columns.indexOf("start");
+                int end = columns.indexOf("end");
+                int gene = columns.indexOf("gene");
+                if (chrom < 0 || start < 0 || end < 0 || gene < 0) {
+                    throw new IOException("Missing chromosome/start/end/gene columns in " + reference);
+                }
+                int width = Math.max(Math.max(chrom, start), Math.max(end, gene)) + 1;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length < width) {
+                        throw new IOException("Malformed line in " + reference + ": " + line);
+                    }
+                    Writer out = ANTITARGET_NAMES.contains(f[gene]) ? anti : tgt;
+                    out.write(f[chrom] + "\t" + f[start] + "\t" + f[end] + "\t" + f[gene] + "\n");
+                }
+            } finally {
+                tgt.close();
+                anti.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String statKey(File f) throws IOException {
+        if (!f.isFile()) {
+            throw new IOException("Reference " + f + " does not exist");
+        }
+        String stat = f.getCanonicalPath() + "\t" + f.length() + "\t" + f.lastModified();
+        return hex(digest().digest(stat.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String copyAndHash(File from, File to) throws IOException {
+        MessageDigest md = digest();
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static String readFirstLine(File f) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+        try {
+            String line = in.readLine();
+            return line == null ? null : line.trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeLine(File f, String line) throws IOException {
+        File tmp = new File(f.getParentFile(), f.getName() + "." + UUID.randomUUID());
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+        try {
+            out.write(line + "\n");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + f);
+        }
+    }
+
+    private static long sizeOf(File f) {
+        if (f.isFile()) {
+            return f.length();
+        }
+        long size = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                size += sizeOf(c);
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        if (f.exists() && !f.delete()) {
+            throw new IOException("Cannot delete " + f);
+        }
+    }
+}
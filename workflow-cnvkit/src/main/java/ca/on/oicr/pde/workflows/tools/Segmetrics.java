@@ -0,0 +1,410 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * JVM replacement for the segmetrics step of the workflow:
+ *
+ * <pre>
+ * Segmetrics [--ci] [--pi] [--alpha 0.05] [--bootstrap 100] [--threads N] -s segments.cns bins.cnr -o out.cns
+ * </pre>
+ *
+ * Follows {@code cnvkit.py segmetrics --ci --pi} of cnvkit 0.9.3. The bins
+ * of each segment are the bins of its chromosome overlapping it. The
+ * confidence interval of the weighted mean log2 is estimated by bootstrap,
+ * resampling the bins with numpy's legacy RandomState reseeded with 0xA5EED
+ * for every segment, as cnvkit does, so the intervals are the same digit for
+ * digit. The prediction interval is the percentiles of the bin log2 values.
+ * Percentiles use numpy's default linear interpolation.
+ *
+ * Segments are independent, so they are spread over a fork/join pool. Bins
+ * are held in primitive arrays per chromosome.
+ */
+public class Segmetrics {
+
+    static final int SEED = 0xA5EED;
+    private static final int SEGMENTS_PER_TASK = 64;
+
+    private final double alpha;
+    private final int bootstraps;
+    private final int threads;
+
+    /**
+     * @param alpha significance level of the intervals
+     * @param bootstraps bootstrap samples per segment, raised to 2 / alpha
+     * if it is not more than that, as cnvkit does
+     * @param threads size of the fork/join pool
+     */
+    public Segmetrics(double alpha, int bootstraps, int threads) {
+        if (!(alpha > 0 && alpha < 1)) {
+            throw new IllegalArgumentException("alpha must be between 0 and 1; got " + alpha);
+        }
+        if (bootstraps < 1 || threads < 1) {
+            throw new IllegalArgumentException("Need at least one bootstrap and one thread");
+        }
+        this.alpha = alpha;
+        this.bootstraps = bootstraps <= 2 / alpha ? (int) Math.ceil(2 / alpha) : bootstraps;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean ci = false;
+        boolean pi = false;
+        double alpha = 0.05;
+        int bootstraps = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String segments = null;
+        String bins = null;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--ci")) {
+                ci = true;
+            } else if (args[i].equals("--pi")) {
+                pi = true;
+            } else if (args[i].equals("--alpha") && i + 1 < args.length) {
+                alpha = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--bootstrap") && i + 1 < args.length) {
+                bootstraps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                segments = args[++i];
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                bins = args[i];
+            }
+        }
+        if (segments == null || bins == null || output == null || !(ci || pi)) {
+            System.err.println("Usage: Segmetrics [--ci] [--pi] [--alpha 0.05] [--bootstrap 100] [--threads N] -s segments.cns bins.cnr -o out.cns");
+            System.exit(1);
+        }
+        new Segmetrics(alpha, bootstraps, threads).run(CnvTable.read(new File(segments)), CnvTable.read(new File(bins)), ci, pi)
+                .write(new File(output));
+    }
+
+    /**
+     * The segments with ci_lo and ci_hi and/or pi_lo and pi_hi added, or
+     * replaced if they are there already. Segments without bins get empty
+     * intervals.
+     */
+    public CnvTable run(CnvTable segments, CnvTable bins, boolean ci, boolean pi) {
+        List<String[]> rows = segments.getRows();
+        double[][] intervals = new double[rows.size()][];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new SegmentTask(new Job(segments, Bins.split(bins), intervals, ci, pi), 0, rows.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        List<String> columns = new ArrayList<String>(segments.getColumns());
+        List<String> added = new ArrayList<String>();
+        if (ci) {
+            added.addAll(Arrays.asList("ci_lo", "ci_hi"));
+        }
+        if (pi) {
+            added.addAll(Arrays.asList("pi_lo", "pi_hi"));
+        }
+        int[] targets = new int[added.size()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = columns.indexOf(added.get(i));
+            if (targets[i] < 0) {
+                targets[i] = columns.size();
+                columns.add(added.get(i));
+            }
+        }
+        List<String[]> out = new ArrayList<String[]>(rows.size());
+        for (int r = 0; r < rows.size(); r++) {
+            String[] row = Arrays.copyOf(rows.get(r), columns.size());
+            for (int i = 0; i < targets.length; i++) {
+                row[targets[i]] = CnvTable.format(intervals[r][i]);
+            }
+            out.add(row);
+        }
+        return new CnvTable(segments.getSampleId(), columns, out);
+    }
+
+    /**
+     * What the segment tasks share: the input and the array they fill in.
+     */
+    private final class Job {
+
+        private final List<String[]> rows;
+        private final int chrom;
+        private final int start;
+        private final int end;
+        private final Map<String, Bins> byChromosome;
+        private final double[][] intervals;
+        private final boolean ci;
+        private final boolean pi;
+
+        private Job(CnvTable segments, Map<String, Bins> byChromosome, double[][] intervals, boolean ci, boolean pi) {
+            this.rows = segments.getRows();
+            this.chrom = segments.column("chromosome");
+            this.start = segments.column("start");
+            this.end = segments.column("end");
+            this.byChromosome = byChromosome;
+            this.intervals = intervals;
+            this.ci = ci;
+            this.pi = pi;
+        }
+
+        private void compute(int from, int to) {
+            RandomState random = new RandomState();
+            for (int i = from; i < to; i++) {
+                String[] row = rows.get(i);
+                Bins b = byChromosome.get(row[chrom]);
+                int lo = 0;
+                int hi = 0;
+                if (b != null) {
+                    // cnvkit's "outer" ranges: bins ending after the start and starting before the end
+                    lo = upperBound(b.ends, Long.parseLong(row[start]));
+                    hi = Math.max(lo, lowerBound(b.starts, Long.parseLong(row[end])));
+                }
+                intervals[i] = intervals(b, lo, hi, ci, pi, random);
+            }
+        }
+    }
+
+    /**
+     * Splits the segments in halves down to {@link #SEGMENTS_PER_TASK}.
+     */
+    private static final class SegmentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Job job;
+        private final int from;
+        private final int to;
+
+        private SegmentTask(Job job, int from, int to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEGMENTS_PER_TASK) {
+                job.compute(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SegmentTask(job, from, middle), new SegmentTask(job, middle, to));
+        }
+    }
+
+    private double[] intervals(Bins b, int lo, int hi, boolean ci, boolean pi, RandomState random) {
+        double[] result = new double[(ci ? 2 : 0) + (pi ? 2 : 0)];
+        int i = 0;
+        if (ci) {
+            double[] c = hi > lo ? confidenceInterval(b.log2, b.weight, lo, hi, random) : new double[]{Double.NaN, Double.NaN};
+            result[i++] = c[0];
+            result[i++] = c[1];
+        }
+        if (pi) {
+            if (hi > lo) {
+                double[] sorted = Arrays.copyOfRange(b.log2, lo, hi);
+                Arrays.sort(sorted);
+                result[i++] = percentile(sorted, 100 * alpha / 2);
+                result[i++] = percentile(sorted, 100 * (1 - alpha / 2));
+            } else {
+                result[i++] = Double.NaN;
+                result[i++] = Double.NaN;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Percentiles of the weighted means of bootstrap samples of the bins
+     * from..to, cnvkit's confidence_interval_bootstrap.
+     */
+    double[] confidenceInterval(double[] values, double[] weights, int from, int to, RandomState random) {
+        int k = to - from;
+        if (k < 2) {
+            return new double[]{values[from], values[from]};
+        }
+        random.seed(SEED);
+        double[] weighted = new double[k];
+        double[] sampleWeights = new double[k];
+        double[] means = new double[bootstraps];
+        for (int b = 0; b < bootstraps; b++) {
+            for (int j = 0; j < k; j++) {
+                int pick = from + random.nextInt(k);
+                weighted[j] = values[pick] * weights[pick];
+                sampleWeights[j] = weights[pick];
+            }
+            double scale = CnvTable.sum(sampleWeights, 0, k);
+            if (scale == 0) {
+                throw new ArithmeticException("Weights sum to zero, can't be normalized");
+            }
+            means[b] = CnvTable.sum(weighted, 0, k) / scale;
+        }
+        Arrays.sort(means);
+        return new double[]{percentile(means, 100 * (alpha / 2)), percentile(means, 100 * (1 - alpha / 2))};
+    }
+
+    /**
+     * numpy.percentile of sorted values with linear interpolation, computed
+     * the way numpy 1.x does it. NaN if any value is NaN.
+     */
+    static double percentile(double[] sorted, double percent) {
+        int n = sorted.length;
+        if (Double.isNaN(sorted[n - 1])) {
+            return Double.NaN;
+        }
+        double index = percent / 100.0 * (n - 1);
+        int below = (int) Math.floor(index);
+        int above = Math.min(below + 1, n - 1);
+        double weightAbove = index - below;
+        double weightBelow = 1.0 - weightAbove;
+        return sorted[below] * weightBelow + sorted[above] * weightAbove;
+    }
+
+    /**
+     * Index of the first value greater than the key (searchsorted 'right').
+     */
+    private static int upperBound(long[] values, long key) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Index of the first value not less than the key (searchsorted 'left').
+     */
+    private static int lowerBound(long[] values, long key) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The bins of one chromosome, in table order.
+     */
+    private static final class Bins {
+
+        private final long[] starts;
+        private final long[] ends;
+        private final double[] log2;
+        private final double[] weight;
+
+        private Bins(int n) {
+            starts = new long[n];
+            ends = new long[n];
+            log2 = new double[n];
+            weight = new double[n];
+        }
+
+        static Map<String, Bins> split(CnvTable bins) {
+            int chrom = bins.column("chromosome");
+            int start = bins.column("start");
+            int end = bins.column("end");
+            int log2 = bins.column("log2");
+            int weight = bins.column("weight");
+            List<String[]> rows = bins.getRows();
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (String[] row : rows) {
+                Integer n = counts.get(row[chrom]);
+                counts.put(row[chrom], n == null ? 1 : n + 1);
+            }
+            Map<String, Bins> byChromosome = new HashMap<String, Bins>();
+            Map<String, Integer> filled = new HashMap<String, Integer>();
+            for (String[] row : rows) {
+                Bins b = byChromosome.get(row[chrom]);
+                if (b == null) {
+                    b = new Bins(counts.get(row[chrom]));
+                    byChromosome.put(row[chrom], b);
+                    filled.put(row[chrom], 0);
+                }
+                int i = filled.put(row[chrom], filled.get(row[chrom]) + 1);
+                b.starts[i] = Long.parseLong(row[start]);
+                b.ends[i] = Long.parseLong(row[end]);
+                b.log2[i] = CnvTable.parseDouble(row[log2]);
+                b.weight[i] = CnvTable.parseDouble(row[weight]);
+            }
+            return byChromosome;
+        }
+    }
+
+    /**
+     * numpy's legacy RandomState: MT19937 seeded with init_genrand, and
+     * randint drawing 32-bit words masked to the next power of two and
+     * rejecting those out of range.
+     */
+    static final class RandomState {
+
+        private static final int N = 624;
+        private static final int M = 397;
+
+        private final int[] mt = new int[N];
+        private int index;
+
+        void seed(int seed) {
+            mt[0] = seed;
+            for (int i = 1; i < N; i++) {
+                mt[i] = 1812433253 * (mt[i - 1] ^ (mt[i - 1] >>> 30)) + i;
+            }
+            index = N;
+        }
+
+        int nextInt32() {
+            if (index >= N) {
+                for (int i = 0; i < N; i++) {
+                    int y = (mt[i] & 0x80000000) | (mt[(i + 1) % N] & 0x7fffffff);
+                    mt[i] = mt[(i + M) % N] ^ (y >>> 1) ^ ((y & 1) != 0 ? 0x9908b0df : 0);
+                }
+                index = 0;
+            }
+            int y = mt[index++];
+            y ^= y >>> 11;
+            y ^= (y << 7) & 0x9d2c5680;
+            y ^= (y << 15) & 0xefc60000;
+            y ^= y >>> 18;
+            return y;
+        }
+
+        /**
+         * numpy.random.randint(0, bound) for a bound of at least 2.
+         */
+        int nextInt(int bound) {
+            long max = bound - 1;
+            long mask = max;
+            mask |= mask >>> 1;
+            mask |= mask >>> 2;
+            mask |= mask >>> 4;
+            mask |= mask >>> 8;
+            mask |= mask >>> 16;
+            long value;
+            do {
+                value = (nextInt32() & 0xffffffffL) & mask;
+            } while (value > max);
+            return (int) value;
+        }
+    }
+}
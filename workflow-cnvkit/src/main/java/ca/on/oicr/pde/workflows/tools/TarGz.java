@@ -0,0 +1,435 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-threaded replacement for {@code tar -zcvf}.
+ *
+ * Files are streamed straight from disk into a GNU tar stream. The stream is
+ * cut into fixed-size blocks that are deflated on a thread pool, and every
+ * block is written as its own gzip member. A gzip file made of concatenated
+ * members is standard, so the archive can be read by plain gzip, tar -z and
+ * java.util.zip.GZIPInputStream. Members are written in order, and at most two
+ * blocks per thread are held in memory.
+ *
+ * Usage:
+ * {@code TarGz [-v] [--threads N] [--transform s/regex/replacement/[g]] [--exclude glob]... -f archive.tar.gz path...}
+ *
+ * --transform and --exclude behave like the GNU tar options: the substitution
+ * is applied to every member name, and an exclude glob is matched against each
+ * file name and its path.
+ */
+public class TarGz {
+
+    private static final int RECORD_SIZE = 512;
+    // GNU tar writes in 20-record blocks
+    private static final int BLOCKING_SIZE = 20 * RECORD_SIZE;
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    private static final String LONG_LINK = "././@LongLink";
+
+    private final int threads;
+    private final int blockSize;
+    private final Pattern transform;
+    private final String replacement;
+    private final boolean replaceAll;
+    private final List<Pattern> excludes = new ArrayList<Pattern>();
+    private PrintStream verbose;
+
+    /**
+     * @param threads number of compression threads
+     * @param blockSize uncompressed size of each gzip member
+     * @param transform sed-style substitution for member names, or null
+     * @param excludes glob patterns of files to leave out
+     */
+    public TarGz(int threads, int blockSize, String transform, List<String> excludes) {
+        if (threads < 1 || blockSize < RECORD_SIZE) {
+            throw new IllegalArgumentException("Need at least one thread and a block of at least " + RECORD_SIZE + " bytes");
+        }
+        this.threads = threads;
+        this.blockSize = blockSize;
+        if (transform == null) {
+            this.transform = null;
+            this.replacement = null;
+            this.replaceAll = false;
+        } else {
+            String[] parts = parseSubstitution(transform);
+            this.transform = Pattern.compile(parts[0]);
+            this.replacement = Matcher.quoteReplacement(parts[1]);
+            this.replaceAll = parts[2].contains("g");
+        }
+        for (String e : excludes) {
+            this.excludes.add(globToPattern(e));
+        }
+    }
+
+    public void setVerbose(PrintStream verbose) {
+        this.verbose = verbose;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        String transform = null;
+        String archive = null;
+        boolean verbose = false;
+        List<String> excludes = new ArrayList<String>();
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-v")) {
+                verbose = true;
+            } else if (a.equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (a.equals("--block-size") && i + 1 < args.length) {
+                blockSize = Integer.parseInt(args[++i]);
+            } else if (a.equals("--transform") && i + 1 < args.length) {
+                transform = args[++i];
+            } else if (a.equals("--exclude") && i + 1 < args.length) {
+                excludes.add(args[++i]);
+            } else if (a.equals("-f") && i + 1 < args.length) {
+                archive = args[++i];
+            } else {
+                inputs.add(new File(a));
+            }
+        }
+        if (archive == null || inputs.isEmpty()) {
+            System.err.println("Usage: TarGz [-v] [--threads N] [--block-size BYTES] [--transform s/regex/replacement/[g]] "
+                    + "[--exclude glob]... -f archive.tar.gz path...");
+            System.exit(1);
+        }
+        TarGz tar = new TarGz(threads, blockSize, transform, excludes);
+        if (verbose) {
+            tar.setVerbose(System.out);
+        }
+        OutputStream out = new FileOutputStream(archive);
+        try {
+            tar.write(inputs, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the given files and directories (recursively) as a tar.gz stream.
+     */
+    public void write(List<File> inputs, OutputStream out) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ParallelGzipStream gz = new ParallelGzipStream(new BufferedOutputStream(out, 1 << 16), pool);
+            for (File f : inputs) {
+                add(f, f.getPath(), gz);
+            }
+            // end of archive: two zero records, padded to the blocking size
+            long end = gz.count + 2 * RECORD_SIZE;
+            long padded = (end + BLOCKING_SIZE - 1) / BLOCKING_SIZE * BLOCKING_SIZE;
+            gz.write(new byte[(int) (padded - gz.count)]);
+            gz.finish();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void add(File file, String path, ParallelGzipStream out) throws IOException {
+        if (isExcluded(path)) {
+            return;
+        }
+        if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+            throw new IOException("Cannot stat " + path + ": No such file or directory");
+        }
+        if (verbose != null) {
+            verbose.println(path);
+        }
+        String name = transform(path);
+        if (Files.isSymbolicLink(file.toPath())) {
+            String target = Files.readSymbolicLink(file.toPath()).toString();
+            writeHeader(out, name, '2', 0, 0777, file.lastModified() / 1000, target);
+        } else if (file.isDirectory()) {
+            writeHeader(out, name.endsWith("/") ? name : name + "/", '5', 0, 0755, file.lastModified() / 1000, "");
+            String[] children = file.list();
+            if (children == null) {
+                throw new IOException("Cannot read directory " + path);
+            }
+            Arrays.sort(children);
+            for (String child : children) {
+                add(new File(file, child), (path.endsWith("/") ? path : path + "/") + child, out);
+            }
+        } else {
+            long size = file.length();
+            int mode = file.canExecute() ? 0755 : 0644;
+            writeHeader(out, name, '0', size, mode, file.lastModified() / 1000, "");
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[1 << 16];
+                long copied = 0;
+                int n;
+                while (copied < size && (n = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied))) > 0) {
+                    out.write(buffer, 0, n);
+                    copied += n;
+                }
+                if (copied != size) {
+                    throw new IOException(path + " changed size while being archived");
+                }
+            } finally {
+                in.close();
+            }
+            int tail = (int) (size % RECORD_SIZE);
+            if (tail > 0) {
+                out.write(new byte[RECORD_SIZE - tail]);
+            }
+        }
+    }
+
+    boolean isExcluded(String path) {
+        String base = new File(path).getName();
+        for (Pattern p : excludes) {
+            if (p.matcher(base).matches() || p.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String transform(String path) {
+        String name = path.startsWith("/") ? path.replaceFirst("^/+", "") : path;
+        if (transform == null) {
+            return name;
+        }
+        Matcher m = transform.matcher(name);
+        return replaceAll ? m.replaceAll(replacement) : m.replaceFirst(replacement);
+    }
+
+    private static void writeHeader(OutputStream out, String name, char type, long size, int mode, long mtime,
+            String linkName) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] linkBytes = linkName.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            writeLongLink(out, 'L', nameBytes);
+        }
+        if (linkBytes.length > 100) {
+            writeLongLink(out, 'K', linkBytes);
+        }
+        out.write(header(nameBytes, type, size, mode, mtime, linkBytes));
+    }
+
+    /**
+     * GNU extension for names longer than the 100 bytes of the header field.
+     */
+    private static void writeLongLink(OutputStream out, char type, byte[] value) throws IOException {
+        byte[] data = Arrays.copyOf(value, value.length + 1);
+        out.write(header(LONG_LINK.getBytes(StandardCharsets.UTF_8), type, data.length, 0644, 0, new byte[0]));
+        out.write(data);
+        int tail = data.length % RECORD_SIZE;
+        if (tail > 0) {
+            out.write(new byte[RECORD_SIZE - tail]);
+        }
+    }
+
+    private static byte[] header(byte[] name, char type, long size, int mode, long mtime, byte[] linkName) {
+        byte[] h = new byte[RECORD_SIZE];
+        System.arraycopy(name, 0, h, 0, Math.min(100, name.length));
+        octal(h, 100, 8, mode);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        if (size < 077777777777L) {
+            octal(h, 124, 12, size);
+        } else {
+            // GNU base-256 encoding for files of 8 GiB and more
+            h[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                h[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(h, 136, 12, mtime);
+        h[156] = (byte) type;
+        System.arraycopy(linkName, 0, h, 157, Math.min(100, linkName.length));
+        // GNU magic and version: "ustar  \0"
+        byte[] magic = "ustar  ".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, h, 257, magic.length);
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : h) {
+            sum += b & 0xff;
+        }
+        byte[] chksum = String.format("%06o", sum).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(chksum, 0, h, 148, 6);
+        h[154] = 0;
+        h[155] = ' ';
+        return h;
+    }
+
+    private static void octal(byte[] h, int offset, int length, long value) {
+        byte[] digits = String.format("%0" + (length - 1) + "o", value).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(digits, 0, h, offset, length - 1);
+        h[offset + length - 1] = 0;
+    }
+
+    /**
+     * Split a sed substitution such as {@code s/tmp/model-fit/} into pattern,
+     * replacement and flags.
+     */
+    static String[] parseSubstitution(String expression) {
+        if (expression.length() < 4 || expression.charAt(0) != 's') {
+            throw new IllegalArgumentException("Not a substitution: " + expression);
+        }
+        char delimiter = expression.charAt(1);
+        String[] parts = expression.substring(2).split(Pattern.quote(String.valueOf(delimiter)), -1);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Not a substitution: " + expression);
+        }
+        return parts;
+    }
+
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Output stream compressing fixed-size blocks in parallel, each block
+     * becoming one gzip member.
+     */
+    private class ParallelGzipStream extends OutputStream {
+
+        private final OutputStream out;
+        private final ExecutorService pool;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        private byte[] block;
+        private int fill;
+        long count;
+
+        ParallelGzipStream(OutputStream out, ExecutorService pool) {
+            this.out = out;
+            this.pool = pool;
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, block.length - fill);
+                System.arraycopy(b, off, block, fill, n);
+                fill += n;
+                off += n;
+                len -= n;
+                count += n;
+                if (fill == block.length) {
+                    submit();
+                }
+            }
+        }
+
+        private void submit() throws IOException {
+            final byte[] data = block;
+            final int length = fill;
+            pending.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return gzipMember(data, length);
+                }
+            }));
+            block = new byte[blockSize];
+            fill = 0;
+            while (pending.size() >= 2 * threads) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            try {
+                out.write(pending.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        void finish() throws IOException {
+            if (fill > 0 || count == 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                drain();
+            }
+            out.flush();
+        }
+    }
+
+    static byte[] gzipMember(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[length + length / 1000 + 64];
+            byte[] member = new byte[10 + buffer.length + 8];
+            // header: magic, deflate, no flags, no mtime, no extra flags, OS unix
+            member[0] = 0x1f;
+            member[1] = (byte) 0x8b;
+            member[2] = 8;
+            member[9] = 3;
+            int size = 10;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                if (size + n + 8 > member.length) {
+                    member = Arrays.copyOf(member, Math.max(member.length * 2, size + n + 8));
+                }
+                System.arraycopy(buffer, 0, member, size, n);
+                size += n;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeIntLE(member, size, crc.getValue());
+            writeIntLE(member, size + 4, length);
+            return Arrays.copyOf(member, size + 8);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
@@ -4,8 +4,18 @@ import ca.on.oicr.pde.testing.workflow.DryRun;
 import ca.on.oicr.pde.testing.workflow.TestDefinition;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import net.sourceforge.seqware.pipeline.workflowV2.AbstractWorkflowDataModel;
 import net.sourceforge.seqware.pipeline.workflowV2.model.AbstractJob;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
+import net.sourceforge.seqware.pipeline.workflowV2.model.SqwFile;
 import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 
@@ -15,6 +25,10 @@ import org.junit.Assert;
  */
 public class cnvkitWorkflowClientTest {
 
+    // scatter, segmetrics, filter, diagram, makeSegFile and handle_output used to run one after another
+    private static final int LINEAR_POST_BATCH_STEPS = 6;
+    private static final List<String> POST_BATCH_STEPS = Arrays.asList("scatter", "segmetrics", "filter", "diagram", "makeSegFile");
+
     public cnvkitWorkflowClientTest() {
     }
 
@@ -32,4 +46,311 @@ public class cnvkitWorkflowClientTest {
         }
     }
 
+    @org.testng.annotations.Test
+    public void validateCriticalPath() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            AbstractWorkflowDataModel wf = buildWorkflow(t.getParameters());
+
+            Map<Job, Integer> depths = new HashMap<Job, Integer>();
+            int criticalPath = 0;
+            Job batch = null;
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                criticalPath = Math.max(criticalPath, depth(j, depths));
+                if (j.getAlgo().equals("batch") || j.getAlgo().equals("gather")) {
+                    batch = j;
+                }
+            }
+            Assert.assertNotNull(batch);
+            Assert.assertTrue("post-batch critical path should be shorter than the linear chain",
+                    criticalPath - depth(batch, depths) < LINEAR_POST_BATCH_STEPS);
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validatePostProcessingLayout() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            AbstractWorkflowDataModel wf = buildWorkflow(t.getParameters());
+            boolean fused = "true".equals(t.getParameters().get("fuse_post_processing"));
+
+            Set<String> names = new HashSet<String>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                names.add(j.getAlgo());
+            }
+            Assert.assertEquals(fused, names.contains("post_process"));
+            for (String step : POST_BATCH_STEPS) {
+                Assert.assertEquals(!fused, names.contains(step));
+            }
+            Assert.assertTrue(names.contains("handle_output"));
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateCohortLayout() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            AbstractWorkflowDataModel wf = buildWorkflow(t.getParameters());
+            int samples = t.getParameters().get("input_bam_file").split(",").length;
+
+            // every sample provisions its own .seg and model-fit.tar.gz
+            int outputs = 0;
+            Set<String> archives = new HashSet<String>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                if (j.getAlgo().equals("handle_output")) {
+                    outputs++;
+                    Assert.assertEquals(2, j.getFiles().size());
+                    for (SqwFile f : j.getFiles()) {
+                        archives.add(f.getSourcePath());
+                    }
+                }
+            }
+            Assert.assertEquals(samples, outputs);
+            Assert.assertEquals(2 * samples, archives.size());
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateReferenceLayout() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            // the same inputs as normals of a pooled reference
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("reference_output", "/tmp/cnvkit-references/kit/fingerprint/reference.cnn");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            AbstractJob reference = null;
+            Set<String> names = new HashSet<String>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                names.add(j.getAlgo());
+                if (j.getAlgo().equals("build_reference")) {
+                    reference = j;
+                }
+            }
+            Assert.assertNotNull(reference);
+            Assert.assertEquals(1, reference.getFiles().size());
+            Assert.assertFalse(names.contains("batch") || names.contains("gather") || names.contains("handle_output"));
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateReferenceCache() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("reference_cache", "true");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // batch exits if a reference is given along with intervals to build one
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                String command = j.getCommand().getArguments().toString();
+                if (command.contains("cnvkit.py batch ") && command.contains("--reference ")) {
+                    Assert.assertTrue(command.contains("--reference $REF_DIR/reference.cnn"));
+                    Assert.assertFalse(command.contains("--targets ") || command.contains("--antitargets "));
+                }
+            }
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateJobMetrics() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("job_metrics", "true");
+            parameters.put("time_bin", "/usr/bin/time");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // every job is timed into its own file, collect_metrics runs last and provisions the table
+            AbstractJob collect = null;
+            Set<String> metricsFiles = new HashSet<String>();
+            Set<Job> parents = new HashSet<Job>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                if (j.getParents() != null) {
+                    parents.addAll(j.getParents());
+                }
+                if (j.getAlgo().equals("collect_metrics")) {
+                    collect = j;
+                    continue;
+                }
+                List<String> args = j.getCommand().getArguments();
+                Assert.assertEquals(1, args.size());
+                Assert.assertTrue(args.get(0).contains("/usr/bin/time -f '" + j.getAlgo() + "\\t"));
+                Assert.assertTrue(args.get(0).contains(" /proc/$$/io "));
+                metricsFiles.add(args.get(0).replaceAll("(?s).* >> (\\S+)\\.tsv; \\(exit \\$rc\\)$", "$1"));
+            }
+            Assert.assertNotNull(collect);
+            Assert.assertFalse(parents.contains(collect));
+            Assert.assertEquals(wf.getWorkflow().getJobs().size() - 1, metricsFiles.size());
+            Assert.assertEquals(1, collect.getFiles().size());
+            Assert.assertEquals("text/plain", collect.getFiles().iterator().next().getType());
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateLinkedInputs() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("input_mode", "link");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // nothing is provisioned in, every other job waits for the links
+            for (SqwFile f : wf.getFiles().values()) {
+                Assert.assertFalse(f.isInput());
+            }
+            int samples = t.getParameters().get("input_bam_file").split(",").length;
+            int roots = 0;
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                if (j.getParents() == null || j.getParents().isEmpty()) {
+                    roots++;
+                    Assert.assertEquals("link_inputs", j.getAlgo());
+                    String command = j.getCommand().getArguments().toString();
+                    Assert.assertEquals(samples, command.split("No index for ", -1).length - 1);
+                }
+            }
+            Assert.assertEquals(1, roots);
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateJavaPlots() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("plot_backend", "java");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // each sample is drawn once, by CnvPlot, and batch draws nothing
+            int samples = t.getParameters().get("input_bam_file").split(",").length;
+            int plots = 0;
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                String command = j.getCommand().getArguments().toString();
+                Assert.assertFalse(command.contains("--scatter") || command.contains("--diagram"));
+                Assert.assertFalse(command.contains("cnvkit.py scatter") || command.contains("cnvkit.py diagram"));
+                Assert.assertFalse(command.contains("scatter.pdf") || command.contains("diagram.pdf"));
+                plots += command.split("CnvPlot ", -1).length - 1;
+            }
+            Assert.assertEquals(2 * samples, plots);
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateIndexedOutputs() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("indexed_outputs", "true");
+            parameters.put("indexed_bedgraph", "true");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // .cnr, .cns and bedGraph of every sample, each with its index, right after batch
+            int samples = t.getParameters().get("input_bam_file").split(",").length;
+            int jobs = 0;
+            Set<String> files = new HashSet<String>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                if (j.getAlgo().equals("index_outputs")) {
+                    jobs++;
+                    Assert.assertEquals(1, j.getParents().size());
+                    String parent = j.getParents().iterator().next().getAlgo();
+                    Assert.assertTrue(parent.equals("batch") || parent.equals("gather"));
+                    Assert.assertEquals(6, j.getFiles().size());
+                    for (SqwFile f : j.getFiles()) {
+                        files.add(f.getSourcePath());
+                        Assert.assertEquals(f.getSourcePath().endsWith(".tbi") ? "application/tbi" : "application/x-gzip", f.getType());
+                    }
+                }
+            }
+            Assert.assertEquals(samples, jobs);
+            Assert.assertEquals(6 * samples, files.size());
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateScratchStaging() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("scratch_dir", "/dev/shm");
+            parameters.put("indexed_outputs", "false");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // one job per sample runs in scratch and writes its .seg and archive straight to data/
+            int samples = t.getParameters().get("input_bam_file").split(",").length;
+            int staged = 0;
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                String algo = j.getAlgo();
+                Assert.assertFalse(algo.equals("batch") || algo.equals("gather") || algo.equals("handle_output"));
+                if (algo.equals("run_sample")) {
+                    staged++;
+                    String command = j.getCommand().getArguments().toString();
+                    Assert.assertTrue(command.contains("mktemp -d /dev/shm/cnvkit."));
+                    Assert.assertTrue(command.contains("trap "));
+                    Assert.assertEquals(2, j.getFiles().size());
+                    for (SqwFile f : j.getFiles()) {
+                        Assert.assertTrue(f.getSourcePath().startsWith("data/"));
+                    }
+                }
+            }
+            Assert.assertEquals(samples, staged);
+        }
+    }
+
+    @org.testng.annotations.Test
+    public void validateResultMarker() throws Exception {
+        for (TestDefinition.Test t : tests()) {
+            Map<String, String> parameters = new HashMap<String, String>(t.getParameters());
+            parameters.put("result_fingerprint", "0123abcd");
+            parameters.put("result_marker_dir", "/tmp/cnvkit-results/done");
+            AbstractWorkflowDataModel wf = buildWorkflow(parameters);
+
+            // the marker is written last and lists every output
+            AbstractJob record = null;
+            Set<Job> parents = new HashSet<Job>();
+            List<String> outputs = new ArrayList<String>();
+            for (AbstractJob j : wf.getWorkflow().getJobs()) {
+                if (j.getParents() != null) {
+                    parents.addAll(j.getParents());
+                }
+                if (j.getAlgo().equals("record_result")) {
+                    record = j;
+                }
+                for (SqwFile f : j.getFiles()) {
+                    outputs.add(f.getSourcePath());
+                }
+            }
+            Assert.assertNotNull(record);
+            Assert.assertFalse(parents.contains(record));
+            String command = record.getCommand().getArguments().toString();
+            Assert.assertTrue(command.contains("mv /tmp/cnvkit-results/done/0123abcd.tmp /tmp/cnvkit-results/done/0123abcd"));
+            Assert.assertFalse(outputs.isEmpty());
+            for (String output : outputs) {
+                Assert.assertTrue(command.contains(" " + output + " ") || command.contains(" " + output + ")"));
+            }
+        }
+    }
+
+    private static List<TestDefinition.Test> tests() throws IOException {
+        return TestDefinition.buildFromJson(FileUtils.readFileToString(new File("src/test/resources/tests.json"))).getTests();
+    }
+
+    /**
+     * Build the workflow for the given ini parameters and validate it.
+     */
+    private static AbstractWorkflowDataModel buildWorkflow(Map<String, String> parameters) throws Exception {
+        DryRun d = new DryRun(System.getProperty("bundleDirectory"), parameters, cnvkitWorkflowClient.class);
+        AbstractWorkflowDataModel wf = d.buildWorkflowModel();
+        d.validateWorkflow();
+        return wf;
+    }
+
+    /**
+     * Number of jobs on the longest dependency chain ending at the given job.
+     */
+    private static int depth(Job job, Map<Job, Integer> depths) {
+        Integer known = depths.get(job);
+        if (known != null) {
+            return known;
+        }
+        int depth = 1;
+        Collection<Job> parents = job.getParents();
+        if (parents != null) {
+            for (Job parent : parents) {
+                depth = Math.max(depth, depth(parent, depths) + 1);
+            }
+        }
+        depths.put(job, depth);
+        return depth;
+    }
+
 }
@@ -0,0 +1,87 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+
+public class CheckpointTest {
+
+    @org.testng.annotations.Test
+    public void skipsOnlyUnchangedSteps() throws IOException {
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        File in = new File(dir, "S.cns");
+        File out = new File(dir, "S.seg");
+        write(in, "segments");
+        File marker = new File(dir, "checkpoints/makeSegFile");
+        Checkpoint checkpoint = new Checkpoint(marker.getParentFile());
+        List<String> inputs = Arrays.asList(in.getPath());
+        List<String> outputs = Arrays.asList(out.getPath());
+
+        Assert.assertFalse(checkpoint.verify(marker, "k", inputs, outputs));
+        write(out, "seg");
+        checkpoint.record(marker, "k", inputs, outputs);
+        Assert.assertTrue(checkpoint.verify(marker, "k", inputs, outputs));
+
+        // a different command, or changed input content, has to run again
+        Assert.assertFalse(checkpoint.verify(marker, "other", inputs, outputs));
+        checkpoint.record(marker, "k", inputs, outputs);
+        write(in, "segmentz");
+        in.setLastModified(in.lastModified() + 5000);
+        Assert.assertFalse(checkpoint.verify(marker, "k", inputs, outputs));
+    }
+
+    @org.testng.annotations.Test
+    public void recordsInputsAsTheyWereRead() throws IOException {
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        File cns = new File(dir, "S.call.cns");
+        write(cns, "calls");
+        File marker = new File(dir, "checkpoints/diagram");
+        Checkpoint checkpoint = new Checkpoint(marker.getParentFile());
+        List<String> files = Arrays.asList(cns.getPath());
+
+        Assert.assertFalse(checkpoint.verify(marker, "k", files, files));
+        write(cns, "pdf");
+        checkpoint.record(marker, "k", files, files);
+        // the input no longer holds what the step read
+        Assert.assertFalse(checkpoint.verify(marker, "k", files, files));
+    }
+
+    @org.testng.annotations.Test
+    public void largeInputsAreNotHashed() throws IOException {
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        File bam = new File(dir, "S.bam");
+        File out = new File(dir, "S.targetcoverage.cnn");
+        write(bam, "reads");
+        write(out, "coverage");
+        File marker = new File(dir, "checkpoints/coverage");
+        Checkpoint checkpoint = new Checkpoint(marker.getParentFile(), 4);
+        List<String> inputs = Arrays.asList(bam.getPath());
+        List<String> outputs = Arrays.asList(out.getPath());
+
+        Assert.assertFalse(checkpoint.verify(marker, "k", inputs, outputs));
+        checkpoint.record(marker, "k", inputs, outputs);
+        Assert.assertTrue(Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8).get(1).endsWith("\t-"));
+        Assert.assertFalse(new File(marker.getParentFile(), "hashes").exists());
+        Assert.assertTrue(checkpoint.verify(marker, "k", inputs, outputs));
+
+        // same content with a new timestamp cannot be told apart without reading it
+        Assert.assertTrue(bam.setLastModified(bam.lastModified() + 5000));
+        Assert.assertFalse(checkpoint.verify(marker, "k", inputs, outputs));
+    }
+
+    @org.testng.annotations.Test(expectedExceptions = IOException.class)
+    public void missingOutputIsNotRecorded() throws IOException {
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        File marker = new File(dir, "checkpoints/scatter");
+        new Checkpoint(marker.getParentFile()).record(marker, "k", Arrays.<String>asList(),
+                Arrays.asList(new File(dir, "S.scatter.png").getPath()));
+    }
+
+    private static void write(File f, String text) throws IOException {
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+
+public class CnsToolTest {
+
+    private static final String CNS = "chromosome\tstart\tend\tgene\tlog2\tdepth\tprobes\tweight\tci_lo\tci_hi\n"
+            + "chr2\t100\t200\tB\t-1.5\t10\t5\t2\t-1.8\t-1.2\n"
+            + "chr1\t100\t200\tA\t0.1\t30\t10\t4\t-0.2\t0.3\n"
+            + "chr1\t200\t300\tA,C\t0.05\t20\t6\t2\t-0.1\t0.2\n"
+            + "chr1\t300\t400\tD\t0.9\t50\t3\t1\t0.6\t1.2\n"
+            + "chr2\t200\t300\tE\t-1.2\t8\t4\t3\t-1.5\t-0.9\n"
+            + "chrY\t100\t200\tF\t0.8\t5\t2\t1\t0.4\t1.1\n";
+
+    @org.testng.annotations.Test
+    public void formatsLikePercentG() {
+        Assert.assertEquals("0.123457", CnvTable.format(0.1234567));
+        Assert.assertEquals("1.5e-05", CnvTable.format(0.000015));
+        Assert.assertEquals("1.23457e+06", CnvTable.format(1234567));
+        Assert.assertEquals("-3", CnvTable.format(-3.0));
+        Assert.assertEquals("", CnvTable.format(Double.NaN));
+    }
+
+    @org.testng.annotations.Test
+    public void exportSegEnumeratesChromosomes() throws IOException {
+        CnvTable seg = CnsTool.exportSeg(read(), true);
+        Assert.assertEquals(Arrays.asList("ID", "chrom", "loc.start", "loc.end", "num.mark", "seg.mean"), seg.getColumns());
+        Assert.assertEquals("S.segmetrics\t1\t100\t200\t10\t0.1", join(seg.getRows().get(0)));
+        Assert.assertEquals("S.segmetrics\t2\t100\t200\t5\t-1.5", join(seg.getRows().get(3)));
+        Assert.assertEquals("S.segmetrics\t3\t100\t200\t2\t0.8", join(seg.getRows().get(5)));
+    }
+
+    @org.testng.annotations.Test
+    public void callSquashesNeutralSegments() throws IOException {
+        CnvTable call = CnsTool.call(read(), Arrays.asList("cn", "ci"));
+        StringWriter out = new StringWriter();
+        call.write(out);
+        Assert.assertEquals("chromosome\tstart\tend\tgene\tlog2\tcn\tdepth\tprobes\tweight\n"
+                + "chr1\t100\t300\tA,A,C\t0.0833333\t2\t26.6667\t16\t6\n"
+                + "chr1\t300\t400\tD\t0.9\t4\t50\t3\t1\n"
+                + "chr2\t100\t300\tB,E\t-1.32\t0\t8.8\t9\t5\n"
+                + "chrY\t100\t200\tF\t0.8\t2\t5\t2\t1\n", out.toString());
+    }
+
+    @org.testng.annotations.Test
+    public void callsCopyNumberByThreshold() {
+        Assert.assertEquals(0, CnsTool.absoluteThreshold("chr1", -1.5));
+        Assert.assertEquals(2, CnsTool.absoluteThreshold("chr1", 0.0));
+        Assert.assertEquals(3, CnsTool.absoluteThreshold("chr1", 0.5));
+        Assert.assertEquals(4, CnsTool.absoluteThreshold("chr1", 1.0));
+        Assert.assertEquals(1, CnsTool.absoluteThreshold("chrY", 0.0));
+        Assert.assertEquals(2, CnsTool.absoluteThreshold("chr1", Double.NaN));
+    }
+
+    @org.testng.annotations.Test
+    public void weightedMedianAveragesAroundMidpoint() {
+        // cnvkit averages the value reaching the midpoint with the one before it
+        Assert.assertEquals(1.5, CnsTool.weightedMedian(new double[]{3, 2, 1, 4}, new double[]{1, 1, 1, 1}), 0);
+        Assert.assertEquals(4, CnsTool.weightedMedian(new double[]{3, 2, 1, 4}, new double[]{1, 1, 1, 5}), 0);
+        Assert.assertEquals(7, CnsTool.weightedMedian(new double[]{7}, new double[]{0}), 0);
+        Assert.assertEquals(0, CnsTool.call(new CnvTable("S", Arrays.asList("chromosome", "start", "end", "gene", "log2", "weight"),
+                Collections.<String[]>emptyList()), Collections.<String>emptyList()).getRows().size());
+    }
+
+    private static CnvTable read() throws IOException {
+        File f = new File(Files.createTempDirectory("cnstool").toFile(), "S.segmetrics.cns");
+        Files.write(f.toPath(), CNS.getBytes(StandardCharsets.UTF_8));
+        return CnvTable.read(f);
+    }
+
+    private static String join(String[] row) {
+        StringBuilder sb = new StringBuilder();
+        for (String v : row) {
+            sb.append(sb.length() > 0 ? "\t" : "").append(v);
+        }
+        return sb.toString();
+    }
+}
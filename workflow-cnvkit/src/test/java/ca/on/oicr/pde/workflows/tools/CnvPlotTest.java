@@ -0,0 +1,113 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+
+public class CnvPlotTest {
+
+    @org.testng.annotations.Test
+    public void streamsTheNeededColumns() throws IOException {
+        File cnr = write("bins", ".cnr", "chromosome\tstart\tend\tgene\tdepth\tlog2\tweight",
+                "chr1\t0\t100\tA\t1\t-0.5\t1",
+                "",
+                "chr2\t100\t300\tB\t1\t\t1");
+        final List<String> rows = new ArrayList<String>();
+        CnvPlot.stream(cnr, new CnvPlot.Rows() {
+            @Override
+            public void row(String chromosome, long start, long end, double log2) {
+                rows.add(chromosome + ":" + start + "-" + end + "=" + log2);
+            }
+        });
+        Assert.assertEquals("[chr1:0-100=-0.5, chr2:100-300=NaN]", rows.toString());
+    }
+
+    @org.testng.annotations.Test(expectedExceptions = IOException.class)
+    public void missingColumnIsRejected() throws IOException {
+        CnvPlot.stream(write("bins", ".cnr", "chromosome\tstart\tend", "chr1\t0\t100"), new CnvPlot.Rows() {
+            @Override
+            public void row(String chromosome, long start, long end, double log2) {
+            }
+        });
+    }
+
+    @org.testng.annotations.Test
+    public void chromosomesShareTheWidthByLength() {
+        Map<String, CnvPlot.Chromosome> chromosomes = new LinkedHashMap<String, CnvPlot.Chromosome>();
+        long[] lengths = {3000, 1000, 1};
+        for (int i = 0; i < lengths.length; i++) {
+            CnvPlot.Chromosome c = new CnvPlot.Chromosome("chr" + (i + 1));
+            c.extend(lengths[i]);
+            chromosomes.put("chr" + (i + 1), c);
+        }
+        CnvPlot.layOut(chromosomes, 400);
+        CnvPlot.Chromosome first = chromosomes.get("chr1");
+        CnvPlot.Chromosome second = chromosomes.get("chr2");
+        Assert.assertEquals(0, first.getLeft());
+        Assert.assertEquals(299, first.getWidth());
+        Assert.assertEquals(299, second.getLeft());
+        Assert.assertEquals(100, second.getWidth());
+        Assert.assertEquals(1, chromosomes.get("chr3").getWidth());
+        Assert.assertEquals(0, first.x(0));
+        Assert.assertEquals(298, first.x(3000));
+
+        Assert.assertEquals(0, CnvPlot.y(2, -2, 2, 101));
+        Assert.assertEquals(50, CnvPlot.y(0, -2, 2, 101));
+        Assert.assertEquals(100, CnvPlot.y(-7, -2, 2, 101));
+    }
+
+    @org.testng.annotations.Test
+    public void drawsScatterAndDiagram() throws IOException {
+        List<String> bins = new ArrayList<String>();
+        bins.add("chromosome\tstart\tend\tgene\tlog2");
+        for (int i = 0; i < 1000; i++) {
+            bins.add("chr1\t" + i * 100 + "\t" + (i * 100 + 100) + "\t-\t" + (i < 500 ? "1" : "0"));
+            bins.add("chr2\t" + i * 100 + "\t" + (i * 100 + 100) + "\t-\t-1");
+        }
+        File cnr = write("bins", ".cnr", bins.toArray(new String[0]));
+        File cns = write("segments", ".cns", "chromosome\tstart\tend\tgene\tlog2",
+                "chr1\t0\t50000\t-\t1",
+                "chr1\t50000\t100000\t-\t0",
+                "chr2\t0\t100000\t-\t-1");
+        CnvPlot plot = new CnvPlot(400, 300, 2);
+
+        BufferedImage scatter = plot.scatter(cnr, cns);
+        Assert.assertEquals(400, scatter.getWidth());
+        Assert.assertEquals(300, scatter.getHeight());
+        // the chr1 gain segment is orange, no bins fall between it and neutral
+        int gainRow = 10 + CnvPlot.y(1, -2, 2, 250);
+        Assert.assertEquals(0xff8c00, scatter.getRGB(70, gainRow) & 0xffffff);
+        Assert.assertEquals(0xffffff, scatter.getRGB(70, gainRow + 20) & 0xffffff);
+
+        BufferedImage diagram = plot.diagram(cns, null);
+        // chr1 starts with a gain, chr2 is lost along its whole length
+        int column = (400 - 60 - 10) / 2;
+        int[] top = rgb(diagram.getRGB(60 + column / 2, 40));
+        int[] bottom = rgb(diagram.getRGB(60 + column / 2, 220));
+        int[] loss = rgb(diagram.getRGB(60 + column + column / 2, 150));
+        Assert.assertTrue(top[0] == 255 && top[2] == 0);
+        Assert.assertTrue(bottom[0] == bottom[2]);
+        Assert.assertTrue(loss[2] == 255 && loss[0] == 0);
+    }
+
+    private static int[] rgb(int argb) {
+        return new int[]{(argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff};
+    }
+
+    private static File write(String prefix, String suffix, String... lines) throws IOException {
+        File file = Files.createTempFile(prefix, suffix).toFile();
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
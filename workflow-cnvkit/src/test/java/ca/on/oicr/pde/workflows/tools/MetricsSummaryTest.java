@@ -0,0 +1,70 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Assert;
+
+public class MetricsSummaryTest {
+
+    @org.testng.annotations.Test
+    public void summarizesStepsAcrossRuns() throws IOException {
+        File dir = Files.createTempDirectory("metrics").toFile();
+        File run1 = new File(dir, "run1");
+        File run2 = new File(dir, "run2");
+        run1.mkdir();
+        run2.mkdir();
+        write(new File(run1, "S1" + MetricsSummary.SUFFIX), MetricsSummary.HEADER,
+                "batch\t0\t30720\t4\t100.0\t300.0\t20.0\t2097152\t0\t3145728\t1048576",
+                "scatter\t1\t8192\t1\t10.0\t9.0\t1.0\t512000\t0\t0\t0");
+        // a failed attempt and its retry, /proc was not readable for the first
+        write(new File(run2, "S2" + MetricsSummary.SUFFIX), MetricsSummary.HEADER,
+                "batch\t0\t30720\t4\t50.0\t100.0\t0.0\t1048576\t1\t\t",
+                "batch\t0\t30720\t4\t300.0\t600.0\t0.0\t4194304\t0\t1048576\t2097152");
+        write(new File(run2, "ignored.tsv"), "not\ta\tmetrics\ttable");
+
+        MetricsSummary summary = new MetricsSummary();
+        summary.add(dir);
+        MetricsSummary.Step batch = summary.getSteps().get("batch");
+        Assert.assertEquals(2, summary.getSteps().size());
+        Assert.assertEquals(3, batch.getRuns());
+        Assert.assertEquals(1, batch.getFailed());
+        Assert.assertEquals(100.0, batch.getWallMedian(), 1e-9);
+        Assert.assertEquals(4096.0, batch.getRssMaxMb(), 1e-9);
+        Assert.assertEquals(1020.0 / 450.0, batch.cpuPerWall(), 1e-9);
+        Assert.assertEquals(1.0, batch.getRcharMedianMb(), 1e-9);
+        Assert.assertEquals(1.0, batch.getWcharMedianMb(), 1e-9);
+
+        // run2 is compared with run1
+        MetricsSummary baseline = new MetricsSummary();
+        baseline.add(run1);
+        MetricsSummary latest = new MetricsSummary();
+        latest.add(run2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        latest.write(new PrintStream(out, true, "UTF-8"), baseline);
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0].endsWith("\tbaseline_wall_p50_s\twall_p50_change"));
+        Assert.assertTrue(lines[1].startsWith("batch\t2\t1\t50.0\t300.0\t300.0\t"));
+        Assert.assertTrue(lines[0].contains("\trchar_p50_mb\twchar_p50_mb\t"));
+        Assert.assertTrue(lines[1].endsWith("\t1.0\t2.0\t100.0\t-50.0%"));
+    }
+
+    @org.testng.annotations.Test(expectedExceptions = IOException.class)
+    public void malformedLineIsRejected() throws IOException {
+        File table = Files.createTempFile("metrics", MetricsSummary.SUFFIX).toFile();
+        write(table, MetricsSummary.HEADER, "batch\t0\t30720\t4\t100.0");
+        new MetricsSummary().add(table);
+    }
+
+    private static void write(File file, String... lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
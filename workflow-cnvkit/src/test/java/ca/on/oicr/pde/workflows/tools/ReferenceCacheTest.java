@@ -0,0 +1,84 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Assert;
+
+public class ReferenceCacheTest {
+
+    private static final String HEADER = "chromosome\tstart\tend\tgene\tlog2\tdepth\n";
+
+    @org.testng.annotations.Test
+    public void stagesOnceAndSplitsTheIntervals() throws IOException {
+        File dir = Files.createTempDirectory("refcache").toFile();
+        File reference = new File(dir, "normal.cnn");
+        write(reference, HEADER + "chr1\t100\t200\tEGFR\t0\t1\nchr1\t200\t5000\tAntitarget\t0\t1\n");
+        ReferenceCache cache = new ReferenceCache(new File(dir, "cache"), 1L << 30);
+
+        File entry = cache.stage(reference);
+        Assert.assertEquals(64, entry.getName().length());
+        Assert.assertEquals("chr1\t100\t200\tEGFR\n", read(new File(entry, ReferenceCache.TARGETS)));
+        Assert.assertEquals("chr1\t200\t5000\tAntitarget\n", read(new File(entry, ReferenceCache.ANTITARGETS)));
+        Assert.assertEquals(entry, cache.stage(reference));
+    }
+
+    @org.testng.annotations.Test
+    public void backgroundBinsAreAntitargets() throws IOException {
+        File dir = Files.createTempDirectory("refcache").toFile();
+        File reference = new File(dir, "old.cnn");
+        write(reference, HEADER + "chr1\t100\t200\tEGFR\t0\t1\nchr1\t200\t5000\tBackground\t0\t1\n");
+        File entry = new ReferenceCache(new File(dir, "cache"), 1L << 30).stage(reference);
+        Assert.assertEquals("chr1\t100\t200\tEGFR\n", read(new File(entry, ReferenceCache.TARGETS)));
+        Assert.assertEquals("chr1\t200\t5000\tBackground\n", read(new File(entry, ReferenceCache.ANTITARGETS)));
+    }
+
+    @org.testng.annotations.Test
+    public void emptyKeyIsAMiss() throws IOException {
+        File dir = Files.createTempDirectory("refcache").toFile();
+        File reference = new File(dir, "normal.cnn");
+        write(reference, HEADER + "chr1\t100\t200\tEGFR\t0\t1\n");
+        ReferenceCache cache = new ReferenceCache(new File(dir, "cache"), 1L << 30);
+        File entry = cache.stage(reference);
+
+        // e.g. a node that went down while writing the key
+        for (File key : new File(dir, "cache/keys").listFiles()) {
+            write(key, "");
+        }
+        Assert.assertEquals(entry, cache.stage(reference));
+    }
+
+    @org.testng.annotations.Test
+    public void entriesHeldByARunningProcessAreNotEvicted() throws IOException {
+        File dir = Files.createTempDirectory("refcache").toFile();
+        File first = new File(dir, "first.cnn");
+        File second = new File(dir, "second.cnn");
+        File third = new File(dir, "third.cnn");
+        write(first, HEADER + "chr1\t100\t200\tEGFR\t0\t1\n");
+        write(second, HEADER + "chr2\t100\t200\tTP53\t0\t1\n");
+        write(third, HEADER + "chr3\t100\t200\tKRAS\t0\t1\n");
+        // room for a single entry
+        ReferenceCache cache = new ReferenceCache(new File(dir, "cache"), 1);
+
+        String self = new File("/proc/self").getCanonicalFile().getName();
+        File held = cache.stage(first, self);
+        File released = cache.stage(second, "999999999");
+        Assert.assertTrue(new File(held, ReferenceCache.REFERENCE).isFile());
+        Assert.assertTrue(new File(released, ReferenceCache.REFERENCE).isFile());
+
+        // the holder of the second entry is gone, the first one is still running
+        cache.stage(third);
+        Assert.assertTrue(new File(held, ReferenceCache.REFERENCE).isFile());
+        Assert.assertFalse(released.exists());
+        Assert.assertFalse(new File(dir, "cache/in-use/" + released.getName() + ".999999999").exists());
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
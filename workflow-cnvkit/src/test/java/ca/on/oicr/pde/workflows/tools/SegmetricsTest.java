@@ -0,0 +1,98 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+
+public class SegmetricsTest {
+
+    @org.testng.annotations.Test
+    public void randomStateMatchesNumpy() {
+        Segmetrics.RandomState random = new Segmetrics.RandomState();
+        random.seed(5489);
+        Assert.assertEquals(3499211612L, random.nextInt32() & 0xffffffffL);
+
+        // numpy.random.seed(0); numpy.random.randint(0, 10, 5)
+        random.seed(0);
+        int[] draws = new int[5];
+        for (int i = 0; i < draws.length; i++) {
+            draws[i] = random.nextInt(10);
+        }
+        Assert.assertArrayEquals(new int[]{5, 0, 3, 3, 7}, draws);
+
+        random.seed(42);
+        for (int i = 0; i < draws.length; i++) {
+            draws[i] = random.nextInt(10);
+        }
+        Assert.assertArrayEquals(new int[]{6, 3, 7, 4, 6}, draws);
+    }
+
+    @org.testng.annotations.Test
+    public void percentileInterpolatesLinearly() {
+        double[] sorted = {1, 2, 3, 4};
+        Assert.assertEquals(1.0, Segmetrics.percentile(sorted, 0), 0);
+        Assert.assertEquals(2.5, Segmetrics.percentile(sorted, 50), 1e-12);
+        Assert.assertEquals(1.15, Segmetrics.percentile(sorted, 5), 1e-12);
+        Assert.assertEquals(4.0, Segmetrics.percentile(sorted, 100), 0);
+        Assert.assertTrue(Double.isNaN(Segmetrics.percentile(new double[]{1, Double.NaN}, 50)));
+    }
+
+    @org.testng.annotations.Test
+    public void addsIntervalsPerSegment() {
+        CnvTable out = new Segmetrics(0.05, 100, 1).run(segments(), bins(), true, true);
+        Assert.assertEquals(Arrays.asList("chromosome", "start", "end", "gene", "log2", "ci_lo", "ci_hi", "pi_lo", "pi_hi"),
+                out.getColumns());
+        List<String[]> rows = out.getRows();
+
+        // chr1:0-400 spans the four bins of chr1, chr1:450-500 the one overlapping it
+        String[] first = rows.get(0);
+        // confidence_interval_bootstrap of cnvkit 0.9.3 on these bins, with numpy's RandomState(0xA5EED)
+        Assert.assertEquals("-0.883333", first[5]);
+        Assert.assertEquals("0.810714", first[6]);
+        Assert.assertEquals(-0.9625, Double.parseDouble(first[7]), 1e-9);
+        Assert.assertEquals(0.9625, Double.parseDouble(first[8]), 1e-9);
+        Assert.assertArrayEquals(new String[]{"0.5", "0.5", "0.5", "0.5"}, Arrays.copyOfRange(rows.get(1), 5, 9));
+        // no bins in range
+        Assert.assertArrayEquals(new String[]{"", "", "", ""}, Arrays.copyOfRange(rows.get(2), 5, 9));
+    }
+
+    @org.testng.annotations.Test
+    public void sameIntervalsWithMoreThreads() {
+        List<String[]> segments = new ArrayList<String[]>();
+        List<String[]> bins = new ArrayList<String[]>();
+        for (int s = 0; s < 500; s++) {
+            segments.add(new String[]{"chr2", String.valueOf(s * 1000), String.valueOf(s * 1000 + 1000), "-", "0"});
+            for (int b = 0; b < 10; b++) {
+                int start = s * 1000 + b * 100;
+                bins.add(new String[]{"chr2", String.valueOf(start), String.valueOf(start + 100), "-",
+                    String.valueOf(Math.sin(start)), String.valueOf(1 + (b % 3) / 4.0)});
+            }
+        }
+        CnvTable seg = new CnvTable("S", Arrays.asList("chromosome", "start", "end", "gene", "log2"), segments);
+        CnvTable cnr = new CnvTable("S", Arrays.asList("chromosome", "start", "end", "gene", "log2", "weight"), bins);
+        List<String[]> one = new Segmetrics(0.05, 100, 1).run(seg, cnr, true, true).getRows();
+        List<String[]> four = new Segmetrics(0.05, 100, 4).run(seg, cnr, true, true).getRows();
+        for (int i = 0; i < one.size(); i++) {
+            Assert.assertArrayEquals(one.get(i), four.get(i));
+        }
+    }
+
+    private static CnvTable segments() {
+        List<String[]> rows = new ArrayList<String[]>();
+        rows.add(new String[]{"chr1", "0", "400", "-", "0"});
+        rows.add(new String[]{"chr1", "450", "500", "-", "0.5"});
+        rows.add(new String[]{"chrX", "0", "100", "-", "0"});
+        return new CnvTable("S", Arrays.asList("chromosome", "start", "end", "gene", "log2"), rows);
+    }
+
+    private static CnvTable bins() {
+        List<String[]> rows = new ArrayList<String[]>();
+        rows.add(new String[]{"chr1", "0", "100", "A", "-1", "1"});
+        rows.add(new String[]{"chr1", "100", "200", "A", "1", "1"});
+        rows.add(new String[]{"chr1", "200", "300", "B", "-0.5", "0.5"});
+        rows.add(new String[]{"chr1", "300", "400", "B", "0.5", "0.5"});
+        rows.add(new String[]{"chr1", "400", "500", "C", "0.5", "1"});
+        return new CnvTable("S", Arrays.asList("chromosome", "start", "end", "gene", "log2", "weight"), rows);
+    }
+}
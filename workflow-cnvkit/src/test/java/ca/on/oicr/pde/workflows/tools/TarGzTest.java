@@ -0,0 +1,87 @@
+package ca.on.oicr.pde.workflows.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Assert;
+
+public class TarGzTest {
+
+    @org.testng.annotations.Test
+    public void archiveIsReadableAsPlainTarGz() throws IOException {
+        File dir = Files.createTempDirectory("targz").toFile();
+        File tmp = new File(dir, "cnvkit-out");
+        tmp.mkdir();
+        byte[] cnr = new byte[300000];
+        new Random(42).nextBytes(cnr);
+        write(new File(tmp, "S.cnr"), cnr);
+        write(new File(tmp, "S.seg"), "excluded".getBytes(StandardCharsets.UTF_8));
+        char[] longName = new char[150];
+        Arrays.fill(longName, 'a');
+        write(new File(tmp, new String(longName) + ".cns"), "segments".getBytes(StandardCharsets.UTF_8));
+
+        // small blocks so the archive spans many gzip members
+        TarGz tar = new TarGz(3, 4096, "s/^.*cnvkit-out/model-fit/", Arrays.asList("S.seg"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tar.write(Arrays.asList(tmp), out);
+
+        Map<String, byte[]> entries = readTar(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertEquals(Arrays.asList("model-fit/", "model-fit/S.cnr", "model-fit/" + new String(longName) + ".cns"),
+                Arrays.asList(entries.keySet().toArray()));
+        Assert.assertArrayEquals(cnr, entries.get("model-fit/S.cnr"));
+    }
+
+    private static void write(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Minimal reader for the GNU tar subset the archiver writes.
+     */
+    private static Map<String, byte[]> readTar(InputStream in) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        String longName = null;
+        byte[] header = new byte[512];
+        while (readFully(in, header) && header[0] != 0) {
+            String name = new String(header, 0, 100, StandardCharsets.UTF_8).replaceAll("\u0000.*", "");
+            long size = Long.parseLong(new String(header, 124, 11, StandardCharsets.US_ASCII), 8);
+            byte[] data = new byte[(int) size];
+            readFully(in, data);
+            readFully(in, new byte[(int) ((512 - size % 512) % 512)]);
+            if (header[156] == 'L') {
+                longName = new String(data, 0, data.length - 1, StandardCharsets.UTF_8);
+                continue;
+            }
+            entries.put(longName != null ? longName : name, data);
+            longName = null;
+        }
+        return entries;
+    }
+
+    private static boolean readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) {
+                return false;
+            }
+            off += n;
+        }
+        return true;
+    }
+}
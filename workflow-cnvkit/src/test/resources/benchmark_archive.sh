@@ -0,0 +1,48 @@
+#!/bin/bash
+# Compare tar -zcvf with the TarGz archiver on a cnvkit output directory.
+# Usage: benchmark_archive.sh <tmp dir of a finished run> <sample prefix> [threads]
+# Run from workflow-cnvkit after mvn compile.
+set -euo pipefail
+
+dir=${1%/}
+prefix=$2
+threads=${3:-4}
+classes=$(dirname "$0")/../../../target/classes
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+parent=$(dirname "$dir")
+name=$(basename "$dir")
+cd "$parent"
+
+# GNU time reports peak RSS, fall back to the bash keyword without it
+timed() {
+    local label=$1
+    shift
+    if [ -x /usr/bin/time ]; then
+        /usr/bin/time -f "$label: %e s wall, %U s user, %M KB peak RSS" "$@"
+    else
+        local TIMEFORMAT="$label: %R s wall, %U s user"
+        time "$@"
+    fi
+}
+
+echo "input: $(du -sh "$name" | cut -f1) in $(find "$name" -type f | wc -l) files"
+
+timed "tar -zcvf" \
+    tar -zcf "$work/tar.tar.gz" --transform "s/$name/model-fit/" --exclude "$prefix.seg" "$name"/*
+
+timed "TarGz ($threads threads)" \
+    java -cp "$classes" ca.on.oicr.pde.workflows.tools.TarGz --threads "$threads" \
+    --transform "s/$name/model-fit/" --exclude "$prefix.seg" -f "$work/java.tar.gz" "$name"/*
+
+ls -l "$work"/*.tar.gz | awk '{print $5, $9}'
+
+# the archives must list the same members and be readable by plain gzip
+gzip -t "$work/java.tar.gz"
+diff <(tar -tzf "$work/tar.tar.gz" | sort) <(tar -tzf "$work/java.tar.gz" | sort)
+mkdir "$work/a" "$work/b"
+tar -xzf "$work/tar.tar.gz" -C "$work/a"
+tar -xzf "$work/java.tar.gz" -C "$work/b"
+diff -r "$work/a" "$work/b"
+echo "archives match"
@@ -0,0 +1,36 @@
+#!/bin/bash
+# Compare cnvkit.py scatter and diagram with the CnvPlot renderer on the .cnr/.cns of a finished run.
+# Usage: benchmark_plots.sh <sample.cnr> <sample.cns> [threads]
+# Run from workflow-cnvkit after mvn compile, with cnvkit.py on the PATH.
+set -euo pipefail
+
+cnr=$1
+cns=$2
+threads=${3:-4}
+classes=$(dirname "$0")/../../../target/classes
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# GNU time reports peak RSS, fall back to the bash keyword without it
+timed() {
+    local label=$1
+    shift
+    if [ -x /usr/bin/time ]; then
+        /usr/bin/time -f "$label: %e s wall, %U s user, %M KB peak RSS" "$@"
+    else
+        local TIMEFORMAT="$label: %R s wall, %U s user"
+        time "$@"
+    fi
+}
+
+echo "input: $(($(wc -l < "$cnr") - 1)) bins, $(($(wc -l < "$cns") - 1)) segments"
+
+timed "cnvkit.py scatter" cnvkit.py scatter -s "$cns" "$cnr" -o "$work/cnvkit.scatter.png"
+timed "CnvPlot scatter ($threads threads)" \
+    java -cp "$classes" ca.on.oicr.pde.workflows.tools.CnvPlot scatter -s "$cns" "$cnr" -o "$work/java.scatter.png" --threads "$threads"
+
+timed "cnvkit.py diagram" cnvkit.py diagram -s "$cns" "$cnr" -o "$work/cnvkit.diagram.pdf"
+timed "CnvPlot diagram ($threads threads)" \
+    java -cp "$classes" ca.on.oicr.pde.workflows.tools.CnvPlot diagram -s "$cns" "$cnr" -o "$work/java.diagram.png" --threads "$threads"
+
+ls -l "$work" | awk 'NR > 1 {print $5, $9}'
@@ -0,0 +1,93 @@
+#!/usr/bin/env python3
+"""Run several cnvkit.py subcommands in one interpreter.
+
+Usage: cnvkit_fused.py <subcommand> [args...] [::: <subcommand> [args...]]...
+
+Each step is parsed and run exactly as cnvkit.py would run it, in order,
+stopping at the first failure. Tables read by one step are kept in memory and
+later steps get a copy, so the .cnr and .cns files are parsed once per job
+instead of once per step. A cached table is only reused while the file's size
+and modification time are unchanged, so a file rewritten by an earlier step is
+read again. How many tables were parsed and how many were served from memory
+is printed on stderr at the end.
+"""
+import os
+import sys
+
+from cnvlib import cmdutil, commands, tabio
+
+SEPARATOR = ":::"
+
+_tables = {}
+_counts = {"parsed": 0, "cached": 0}
+
+
+def cached(read_cna):
+    def cached_read_cna(infile, *args, **kwargs):
+        if not isinstance(infile, str) or not os.path.isfile(infile):
+            return read_cna(infile, *args, **kwargs)
+        stat = os.stat(infile)
+        key = (read_cna.__module__, os.path.abspath(infile), stat.st_size,
+               stat.st_mtime, args, tuple(sorted(kwargs.items())))
+        if key in _tables:
+            _counts["cached"] += 1
+        else:
+            _tables[key] = read_cna(infile, *args, **kwargs)
+            _counts["parsed"] += 1
+        return _tables[key].copy()
+    return cached_read_cna
+
+
+def patch_read_cna():
+    """Replace read_cna in every loaded cnvlib module that has it.
+
+    The subcommands do not look it up in tabio when they run: cnvlib.commands
+    imports read_cna from cmdutil, which has its own, so each module holding a
+    reference to one of the originals gets the cached version of that one.
+    """
+    originals = {}
+    for module in (tabio, cmdutil):
+        if hasattr(module, "read_cna"):
+            originals[id(module.read_cna)] = cached(module.read_cna)
+    patched = []
+    for name, module in sorted(sys.modules.items()):
+        if module is None or not (name == "cnvlib" or name.startswith("cnvlib.")):
+            continue
+        read_cna = getattr(module, "read_cna", None)
+        if read_cna is not None and id(read_cna) in originals:
+            module.read_cna = originals[id(read_cna)]
+            patched.append(name)
+    return patched
+
+
+def split_steps(argv):
+    steps = [[]]
+    for arg in argv:
+        if arg == SEPARATOR:
+            steps.append([])
+        else:
+            steps[-1].append(arg)
+    return [step for step in steps if step]
+
+
+def main(argv):
+    steps = split_steps(argv)
+    if not steps:
+        sys.exit(__doc__)
+    patched = patch_read_cna()
+    if "cnvlib.commands" not in patched:
+        print("cnvlib.commands has no read_cna to cache, tables are read by each step",
+              file=sys.stderr)
+    for step in steps:
+        print("cnvkit.py " + " ".join(step), file=sys.stderr)
+        args = commands.parse_args(step)
+        args.func(args)
+        # plotting steps leave their figures open
+        if "matplotlib.pyplot" in sys.modules:
+            sys.modules["matplotlib.pyplot"].close("all")
+    print("read_cna: %d tables parsed, %d served from memory"
+          % (_counts["parsed"], _counts["cached"]), file=sys.stderr)
+
+
+if __name__ == "__main__":
+    main(sys.argv[1:])